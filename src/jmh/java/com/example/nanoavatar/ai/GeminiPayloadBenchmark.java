@@ -0,0 +1,131 @@
+package com.example.nanoavatar.ai;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CPU-часть обращения к нейросети без сети:
+ *   buildRequest          — сборка JSON-запроса (Gson) и его сериализация в тело;
+ *   extractMessageContent — разбор ответа chat/completions прежним способом:
+ *                           body.string() + дерево JsonObject;
+ *   readCompletion        — потоковый разбор {@link CompletionReader} прямо из тела ответа.
+ *
+ * Тело ответа в обоих случаях — ResponseBody поверх готовых байтов, как его отдаёт OkHttp.
+ *
+ * Запуск: mvn -Pbench compile exec:exec -Djmh.include=GeminiPayloadBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GeminiPayloadBenchmark {
+
+    private static final String MODE_PROMPT =
+            "- Отвечай официально, без жаргона.\n" +
+            "- Оформляй ответ маркированным списком.\n" +
+            "- В конце дай краткое резюме и следующие шаги.\n";
+
+    private static final String USER_PROMPT =
+            "Составь план подготовки к собеседованию на позицию Java-разработчика за две недели";
+
+    private static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+
+    private final Gson gson = new Gson();
+
+    @Param({"1000", "8000", "64000"})
+    public int replyChars;
+
+    private GeminiClient client;
+    private byte[] responseJson;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        client = new GeminiClient("http://localhost", "bench-agent", "bench-key", "gemini-2.5-flash");
+
+        StringBuilder reply = new StringBuilder(replyChars);
+        while (reply.length() < replyChars) {
+            reply.append("Пункт плана: повторить коллекции, многопоточность и \\\"JVM\\\".\\n");
+        }
+        responseJson = ("{\"id\":\"chatcmpl-1\",\"object\":\"chat.completion\",\"created\":1700000000," +
+                "\"model\":\"gemini-2.5-flash\",\"choices\":[{\"index\":0,\"message\":{\"role\":\"assistant\"," +
+                "\"content\":\"" + reply + "\"},\"finish_reason\":\"stop\"}]," +
+                "\"usage\":{\"prompt_tokens\":120,\"completion_tokens\":900,\"total_tokens\":1020}}")
+                .getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public long buildRequest() throws IOException {
+        Request request = client.buildRequest(MODE_PROMPT, USER_PROMPT, false);
+        // тело сериализуется при отправке — учитываем и его
+        Buffer sink = new Buffer();
+        request.body().writeTo(sink);
+        return sink.size();
+    }
+
+    @Benchmark
+    public String extractMessageContent() throws IOException {
+        return extractMessageContent(ResponseBody.create(responseJson, JSON).string());
+    }
+
+    @Benchmark
+    public Completion readCompletion() throws IOException {
+        return CompletionReader.read(ResponseBody.create(responseJson, JSON).charStream());
+    }
+
+    /**
+     * Прежний разбор из GeminiClient — через строку и дерево JsonObject, текст из
+     * choices[0].message.content (строка или массив частей с type=text). Эталон для сравнения.
+     */
+    private String extractMessageContent(String json) throws IOException {
+        JsonObject root = gson.fromJson(json, JsonObject.class);
+        JsonArray choices = root.getAsJsonArray("choices");
+        if (choices == null || choices.size() == 0) {
+            throw new IOException("No choices in Gemini response");
+        }
+
+        JsonObject message = choices.get(0).getAsJsonObject().getAsJsonObject("message");
+        if (message == null) {
+            throw new IOException("No message field in Gemini response");
+        }
+
+        JsonElement contentEl = message.get("content");
+        if (contentEl == null) {
+            throw new IOException("No content field in Gemini response");
+        }
+
+        if (contentEl.isJsonPrimitive()) {
+            return contentEl.getAsString();
+        }
+
+        if (contentEl.isJsonArray()) {
+            StringBuilder sb = new StringBuilder();
+            for (JsonElement partEl : contentEl.getAsJsonArray()) {
+                if (!partEl.isJsonObject()) continue;
+                JsonObject part = partEl.getAsJsonObject();
+                JsonElement typeEl = part.get("type");
+                if (typeEl != null && "text".equals(typeEl.getAsString())) {
+                    JsonElement textEl = part.get("text");
+                    if (textEl != null) {
+                        sb.append(textEl.getAsString()).append(" ");
+                    }
+                }
+            }
+            return sb.toString().trim();
+        }
+
+        return contentEl.toString();
+    }
+}
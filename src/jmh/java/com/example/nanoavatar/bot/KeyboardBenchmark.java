@@ -0,0 +1,57 @@
+package com.example.nanoavatar.bot;
+
+import com.example.nanoavatar.filters.FilterNode;
+import com.example.nanoavatar.filters.FilterRegistry;
+import com.example.nanoavatar.filters.OptionMask;
+import org.openjdk.jmh.annotations.*;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Клавиатура категории при каждом нажатии в меню.
+ *
+ * cached — как в боте (готовая разметка по маске опций категории),
+ * build  — сборка кнопок заново.
+ *
+ * Запуск: mvn -Pbench compile exec:exec -Djmh.include=KeyboardBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeyboardBenchmark {
+
+    private KeyboardCache keyboards;
+    private FilterNode category;
+    private OptionMask options;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        FilterRegistry registry = new FilterRegistry();
+        keyboards = new KeyboardCache(registry);
+
+        // первая категория корня, у неё включена половина опций
+        for (FilterNode node : registry.getAllNodes()) {
+            if (FilterRegistry.ROOT_ID.equals(node.getParentId()) && !node.isLeaf()) {
+                category = node;
+                break;
+            }
+        }
+        List<String> children = category.getChildrenIds();
+        options = registry.maskOf(children.subList(0, children.size() / 2));
+    }
+
+    @Benchmark
+    public InlineKeyboardMarkup cached() {
+        return keyboards.category(category, options);
+    }
+
+    @Benchmark
+    public InlineKeyboardMarkup build() {
+        return keyboards.buildCategory(category, options);
+    }
+}
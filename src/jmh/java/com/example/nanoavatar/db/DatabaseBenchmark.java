@@ -0,0 +1,82 @@
+package com.example.nanoavatar.db;
+
+import com.example.nanoavatar.user.UserService;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Время работы с БД на одно сообщение пользователя:
+ * ensureUser + getBalance + списание + возврат (худший случай processUserQuery),
+ * и отдельно getBalance / changeBalance.
+ *
+ * poolSize = 0 — старое поведение (DriverManager на каждый вызов),
+ * poolSize > 0 — пул с WAL и кэшем подготовленных запросов.
+ *
+ * Запуск: mvn -Pbench compile exec:exec -Djmh.include=DatabaseBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DatabaseBenchmark {
+
+    private static final int CHATS = 1_000;
+
+    @Param({"0", "4"})
+    public int poolSize;
+
+    private File dbFile;
+    private Database db;
+    private UserService userService;
+
+    @State(Scope.Thread)
+    public static class ChatCursor {
+        long next;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dbFile = File.createTempFile("nanoavatar-bench", ".db");
+        db = new Database(dbFile.getAbsolutePath(), poolSize,
+                Database.DEFAULT_BUSY_TIMEOUT_MS, Database.DEFAULT_STATEMENT_CACHE_SIZE);
+        userService = new UserService(db);
+        for (long chatId = 1; chatId <= CHATS; chatId++) {
+            userService.ensureUser(chatId, "user" + chatId);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        db.close();
+        dbFile.delete();
+        new File(dbFile.getAbsolutePath() + "-wal").delete();
+        new File(dbFile.getAbsolutePath() + "-shm").delete();
+    }
+
+    @Benchmark
+    public int perMessage(ChatCursor cursor) {
+        long chatId = 1 + (cursor.next++ % CHATS);
+        userService.ensureUser(chatId, "user" + chatId);
+        int balance = userService.getBalance(chatId);
+        userService.changeBalance(chatId, -1, "SPEND", "bench");
+        userService.changeBalance(chatId, 1, "REFUND", "bench");
+        return balance;
+    }
+
+    @Benchmark
+    public int getBalance(ChatCursor cursor) {
+        long chatId = 1 + (cursor.next++ % CHATS);
+        return userService.getBalance(chatId);
+    }
+
+    @Benchmark
+    public void changeBalance(ChatCursor cursor) {
+        long chatId = 1 + (cursor.next++ % CHATS);
+        userService.changeBalance(chatId, 1, "BONUS", "bench");
+    }
+}
@@ -0,0 +1,52 @@
+package com.example.nanoavatar.filters;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Сборка modePrompt + payload в processUserQuery.
+ *
+ * memoized — как в боте (поиск готовых настроек по маске),
+ * build    — полная сборка строк без кэша.
+ * options  — сколько опций включено у пользователя.
+ *
+ * Запуск: mvn -Pbench compile exec:exec -Djmh.include=ModeSettingsBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ModeSettingsBenchmark {
+
+    @Param({"0", "5", "15"})
+    public int options;
+
+    private FilterRegistry registry;
+    private OptionMask mask;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        registry = new FilterRegistry();
+        // опции берём через одну, чтобы задеть разные категории
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; ids.size() < options && i < registry.getLeafCount(); i += 2) {
+            ids.add(registry.getLeaf(i).getId());
+        }
+        mask = registry.maskOf(ids);
+    }
+
+    @Benchmark
+    public ModeSettings memoized() {
+        return registry.modeSettings(mask);
+    }
+
+    @Benchmark
+    public ModeSettings build() {
+        return registry.buildModeSettings(mask);
+    }
+}
@@ -0,0 +1,157 @@
+package com.example.nanoavatar.loadtest;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Заглушка OpenAI-совместимого chat/completions (как у Timeweb).
+ *
+ * Ответ откладывается через планировщик, а не sleep — тысячи одновременных
+ * запросов не требуют тысяч потоков. Поддерживается и "stream": true (SSE).
+ */
+final class FakeLlmServer {
+
+    private static final String REPLY =
+            "Вот план на сегодня:\n- разобрать почту\n- подготовить отчёт\n- созвон в 15:00\n" +
+            "Начни с самого неприятного пункта, остальное пойдёт легче.";
+    private static final int STREAM_CHUNKS = 8;
+    private static final long STREAM_CHUNK_INTERVAL_MS = 50;
+
+    private final HttpServer server;
+    private final LatencyModel latency;
+    private final ScheduledExecutorService timer = Executors.newScheduledThreadPool(4, r -> {
+        Thread t = new Thread(r, "fake-llm-timer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+
+    FakeLlmServer(LatencyModel latency) throws IOException {
+        this.latency = latency;
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        // потоки-демоны: после отчёта процесс теста должен завершиться сам
+        this.server.setExecutor(Executors.newFixedThreadPool(8, r -> {
+            Thread t = new Thread(r, "fake-llm-http");
+            t.setDaemon(true);
+            return t;
+        }));
+        this.server.createContext("/", this::handle);
+    }
+
+    void start() {
+        server.start();
+    }
+
+    void stop() {
+        server.stop(0);
+        timer.shutdownNow();
+    }
+
+    String baseUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    long getRequests() {
+        return requests.get();
+    }
+
+    long getErrors() {
+        return errors.get();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+        boolean stream;
+        try {
+            JsonObject payload = JsonParser.parseString(body).getAsJsonObject();
+            stream = payload.has("stream") && payload.get("stream").getAsBoolean();
+        } catch (RuntimeException e) {
+            send(exchange, 400, "application/json", "{\"error\":\"bad json\"}");
+            return;
+        }
+
+        long delay = latency.nextDelayMs();
+        if (latency.nextIsError()) {
+            errors.incrementAndGet();
+            timer.schedule(() -> send(exchange, 500, "application/json",
+                    "{\"error\":{\"message\":\"upstream overloaded\"}}"), delay, TimeUnit.MILLISECONDS);
+            return;
+        }
+        if (stream) {
+            timer.schedule(() -> startStream(exchange), delay, TimeUnit.MILLISECONDS);
+        } else {
+            timer.schedule(() -> send(exchange, 200, "application/json", completion()), delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static String completion() {
+        JsonObject message = new JsonObject();
+        message.addProperty("role", "assistant");
+        message.addProperty("content", REPLY);
+        return "{\"id\":\"chatcmpl-fake\",\"object\":\"chat.completion\",\"choices\":[{\"index\":0,\"message\":"
+                + message + ",\"finish_reason\":\"stop\"}],"
+                + "\"usage\":{\"prompt_tokens\":150,\"completion_tokens\":60,\"total_tokens\":210}}";
+    }
+
+    private void startStream(HttpExchange exchange) {
+        try {
+            exchange.getResponseHeaders().set("Content-Type", "text/event-stream");
+            exchange.sendResponseHeaders(200, 0);
+            streamChunk(exchange, 0);
+        } catch (IOException e) {
+            exchange.close();
+        }
+    }
+
+    // каждый кусок планирует следующий, так записи в один поток ответа не пересекаются
+    private void streamChunk(HttpExchange exchange, int index) {
+        OutputStream os = exchange.getResponseBody();
+        try {
+            if (index == STREAM_CHUNKS) {
+                // как OpenAI с stream_options.include_usage: usage отдельным последним чанком
+                os.write(("data: {\"choices\":[],\"usage\":{\"prompt_tokens\":150," +
+                        "\"completion_tokens\":60,\"total_tokens\":210}}\n\n").getBytes(StandardCharsets.UTF_8));
+                os.write("data: [DONE]\n\n".getBytes(StandardCharsets.UTF_8));
+                os.close();
+                return;
+            }
+            int from = REPLY.length() * index / STREAM_CHUNKS;
+            int to = REPLY.length() * (index + 1) / STREAM_CHUNKS;
+            JsonObject delta = new JsonObject();
+            delta.addProperty("content", REPLY.substring(from, to));
+            String chunk = "data: {\"choices\":[{\"index\":0,\"delta\":" + delta + "}]}\n\n";
+            os.write(chunk.getBytes(StandardCharsets.UTF_8));
+            os.flush();
+            timer.schedule(() -> streamChunk(exchange, index + 1), STREAM_CHUNK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        } catch (IOException e) {
+            exchange.close();
+        }
+    }
+
+    private static void send(HttpExchange exchange, int status, String contentType, String body) {
+        try {
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", contentType);
+            exchange.sendResponseHeaders(status, bytes.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(bytes);
+            }
+        } catch (IOException e) {
+            exchange.close();
+        }
+    }
+}
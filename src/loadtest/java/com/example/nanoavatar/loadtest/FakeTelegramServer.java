@@ -0,0 +1,279 @@
+package com.example.nanoavatar.loadtest;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Заглушка Telegram Bot API.
+ *
+ * getUpdates отдаёт апдейты, которые положил драйвер ({@link #enqueue}), остальные методы
+ * (sendMessage, editMessageText, sendInvoice, answerCallbackQuery, ...) принимаются
+ * и отвечают правдоподобным JSON. Драйвер может ждать конкретный вызов бота для
+ * своего чата через {@link #expect} — так меряется время реакции.
+ *
+ * Если бот вызвал setWebhook, апдейты не копятся для getUpdates, а сразу POST'ятся
+ * на его адрес с секретом в заголовке; на не-200 доставка повторяется, как у Telegram.
+ */
+final class FakeTelegramServer {
+
+    // на getUpdates и служебные методы задержку и 429 не накладываем
+    // библиотека пишет методы в нижнем регистре (sendmessage), сравниваем так же
+    private static final Set<String> CONTROL_METHODS = Set.of("getupdates", "deletewebhook", "getme", "setwebhook");
+
+    private final HttpServer server;
+    private final LatencyModel latency;
+    private final ScheduledExecutorService timer = Executors.newScheduledThreadPool(4, r -> {
+        Thread t = new Thread(r, "fake-telegram-timer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final BlockingQueue<JsonObject> updates = new LinkedBlockingQueue<>();
+    private final AtomicLong nextUpdateId = new AtomicLong(1);
+    private final AtomicInteger nextMessageId = new AtomicInteger(1);
+
+    // не больше одного ожидания на чат: драйвер ждёт реакции, прежде чем слать следующий апдейт
+    private final Map<Long, Expectation> expectations = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> callsByMethod = new ConcurrentSkipListMap<>();
+    private final AtomicLong throttled = new AtomicLong();
+
+    // webhook-режим: адрес и секрет из setWebhook
+    private final HttpClient webhookClient = HttpClient.newHttpClient();
+    private volatile URI webhookUrl;
+    private volatile String webhookSecret;
+    private final AtomicLong webhookRetries = new AtomicLong();
+
+    FakeTelegramServer(LatencyModel latency) throws IOException {
+        this.latency = latency;
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        // потоки-демоны: после отчёта процесс теста должен завершиться сам
+        this.server.setExecutor(Executors.newFixedThreadPool(32, r -> {
+            Thread t = new Thread(r, "fake-telegram-http");
+            t.setDaemon(true);
+            return t;
+        }));
+        this.server.createContext("/", this::handle);
+    }
+
+    void start() {
+        server.start();
+    }
+
+    void stop() {
+        server.stop(0);
+        timer.shutdownNow();
+    }
+
+    /** Значение для TELEGRAM_API_URL: библиотека дописывает к нему токен и метод. */
+    String baseUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/bot";
+    }
+
+    void enqueue(JsonObject update) {
+        update.addProperty("update_id", nextUpdateId.getAndIncrement());
+        if (webhookUrl != null) {
+            deliver(update.toString());
+        } else {
+            updates.add(update);
+        }
+    }
+
+    private void deliver(String update) {
+        HttpRequest request = HttpRequest.newBuilder(webhookUrl)
+                .header("Content-Type", "application/json")
+                .header("X-Telegram-Bot-Api-Secret-Token", webhookSecret)
+                .POST(HttpRequest.BodyPublishers.ofString(update))
+                .build();
+        webhookClient.sendAsync(request, HttpResponse.BodyHandlers.discarding())
+                .whenComplete((response, error) -> {
+                    if (error == null && response.statusCode() == 200) return;
+                    webhookRetries.incrementAndGet();
+                    timer.schedule(() -> deliver(update), 100, TimeUnit.MILLISECONDS);
+                });
+    }
+
+    int nextMessageId() {
+        return nextMessageId.getAndIncrement();
+    }
+
+    /**
+     * Завершится, когда бот вызовет для chatId один из methods.
+     * Результат — то, что заглушка вернёт боту (для sendMessage — созданное сообщение).
+     */
+    CompletableFuture<JsonObject> expect(long chatId, Set<String> methods) {
+        Expectation expectation = new Expectation(methods);
+        expectations.put(chatId, expectation);
+        return expectation.future;
+    }
+
+    void cancelExpectation(long chatId) {
+        expectations.remove(chatId);
+    }
+
+    int pendingUpdates() {
+        return updates.size();
+    }
+
+    Map<String, AtomicLong> getCallsByMethod() {
+        return callsByMethod;
+    }
+
+    long getThrottled() {
+        return throttled.get();
+    }
+
+    /** Сколько раз бот не принял webhook-доставку (очередь полна) и её пришлось повторить. */
+    long getWebhookRetries() {
+        return webhookRetries.get();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        String method = path.substring(path.lastIndexOf('/') + 1).toLowerCase(Locale.ROOT);
+        String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+        JsonObject request = body.isBlank() ? new JsonObject() : JsonParser.parseString(body).getAsJsonObject();
+
+        callsByMethod.computeIfAbsent(method, m -> new AtomicLong()).incrementAndGet();
+
+        if ("getupdates".equals(method)) {
+            handleGetUpdates(exchange, request);
+            return;
+        }
+        if ("setwebhook".equals(method)) {
+            webhookSecret = request.has("secret_token") ? request.get("secret_token").getAsString() : "";
+            webhookUrl = URI.create(request.get("url").getAsString());
+        }
+        if (CONTROL_METHODS.contains(method)) {
+            send(exchange, "{\"ok\":true,\"result\":true}");
+            return;
+        }
+
+        long delay = latency.nextDelayMs();
+        if (latency.nextIsError()) {
+            throttled.incrementAndGet();
+            timer.schedule(() -> send(exchange, 429, "{\"ok\":false,\"error_code\":429," +
+                    "\"description\":\"Too Many Requests: retry after 1\",\"parameters\":{\"retry_after\":1}}"),
+                    delay, TimeUnit.MILLISECONDS);
+            return;
+        }
+
+        long chatId = chatIdOf(request);
+        JsonObject result = resultFor(method, chatId, request);
+        Expectation expectation = expectations.get(chatId);
+        if (expectation != null && expectation.methods.contains(method)
+                && expectations.remove(chatId, expectation)) {
+            expectation.future.complete(result != null ? result : new JsonObject());
+        }
+
+        String response = "{\"ok\":true,\"result\":" + (result != null ? result : "true") + "}";
+        timer.schedule(() -> send(exchange, response), delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void handleGetUpdates(HttpExchange exchange, JsonObject request) {
+        int limit = request.has("limit") ? request.get("limit").getAsInt() : 100;
+        int timeoutSec = request.has("timeout") ? request.get("timeout").getAsInt() : 0;
+        StringBuilder result = new StringBuilder("{\"ok\":true,\"result\":[");
+        try {
+            JsonObject first = updates.poll(Math.max(1, timeoutSec), TimeUnit.SECONDS);
+            if (first != null) {
+                result.append(first);
+                JsonObject next;
+                for (int i = 1; i < limit && (next = updates.poll()) != null; i++) {
+                    result.append(',').append(next);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        send(exchange, result.append("]}").toString());
+    }
+
+    /** Созданное/изменённое сообщение или null для методов, которые отвечают true. */
+    private JsonObject resultFor(String method, long chatId, JsonObject request) {
+        switch (method) {
+            case "sendmessage":
+            case "sendinvoice":
+                return message(nextMessageId(), chatId, request);
+            case "editmessagetext":
+                int messageId = request.has("message_id") ? request.get("message_id").getAsInt() : 0;
+                return message(messageId, chatId, request);
+            default:
+                return null;
+        }
+    }
+
+    private static JsonObject message(int messageId, long chatId, JsonObject request) {
+        JsonObject chat = new JsonObject();
+        chat.addProperty("id", chatId);
+        chat.addProperty("type", "private");
+        JsonObject message = new JsonObject();
+        message.addProperty("message_id", messageId);
+        message.addProperty("date", System.currentTimeMillis() / 1000);
+        message.add("chat", chat);
+        JsonElement text = request.get("text");
+        if (text != null) message.add("text", text);
+        return message;
+    }
+
+    private static long chatIdOf(JsonObject request) {
+        if (request.has("chat_id")) {
+            return Long.parseLong(request.get("chat_id").getAsString());
+        }
+        // answerCallbackQuery / answerPreCheckoutQuery: id запроса = "<chatId>:<n>"
+        for (String key : new String[]{"callback_query_id", "pre_checkout_query_id"}) {
+            if (request.has(key)) {
+                String id = request.get(key).getAsString();
+                int colon = id.indexOf(':');
+                if (colon > 0) return Long.parseLong(id.substring(0, colon));
+            }
+        }
+        return 0L;
+    }
+
+    private static void send(HttpExchange exchange, String body) {
+        send(exchange, 200, body);
+    }
+
+    private static void send(HttpExchange exchange, int status, String body) {
+        try {
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(status, bytes.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(bytes);
+            }
+        } catch (IOException e) {
+            exchange.close();
+        }
+    }
+
+    private static final class Expectation {
+        final Set<String> methods;
+        final CompletableFuture<JsonObject> future = new CompletableFuture<>();
+
+        Expectation(Set<String> methods) {
+            Set<String> lower = new HashSet<>();
+            for (String m : methods) lower.add(m.toLowerCase(Locale.ROOT));
+            this.methods = lower;
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.example.nanoavatar.loadtest;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Задержка и доля ошибок заглушки.
+ *
+ * Задержка — логнормальная с заданной медианой и sigma (sigma = 0 — фиксированная),
+ * этим хорошо описываются хвосты реальных API.
+ */
+final class LatencyModel {
+
+    private final double medianMs;
+    private final double sigma;
+    private final double errorRate;
+
+    LatencyModel(double medianMs, double sigma, double errorRate) {
+        this.medianMs = medianMs;
+        this.sigma = sigma;
+        this.errorRate = errorRate;
+    }
+
+    long nextDelayMs() {
+        if (medianMs <= 0) return 0;
+        double z = ThreadLocalRandom.current().nextGaussian();
+        return Math.round(medianMs * Math.exp(sigma * z));
+    }
+
+    boolean nextIsError() {
+        return errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate;
+    }
+
+    @Override
+    public String toString() {
+        return "median=" + medianMs + "ms sigma=" + sigma + " errors=" + errorRate;
+    }
+}
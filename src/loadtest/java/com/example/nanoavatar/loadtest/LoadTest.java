@@ -0,0 +1,273 @@
+package com.example.nanoavatar.loadtest;
+
+import com.example.nanoavatar.filters.FilterRegistry;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Сквозной нагрузочный тест бота без настоящих Telegram и Timeweb.
+ *
+ * 1. Поднимает заглушки Bot API и chat/completions на localhost.
+ * 2. Запускает App отдельным процессом, направив его на заглушки (TELEGRAM_API_URL, TIMEWEB_BASE_URL)
+ *    и на временную базу.
+ * 3. Ступенями наращивает число синтетических чатов и на каждой ступени меряет
+ *    пропускную способность, p50/p99 времени реакции и конкуренцию за SQLite (из /metrics бота).
+ *
+ * Запуск: mvn -Ploadtest compile exec:exec [-Dloadtest.stages=100,500,1000 ...]
+ * Все параметры — системные свойства, см. {@link #main}.
+ */
+public final class LoadTest {
+
+    // строки /metrics бота, которые попадают в отчёт
+    private static final String[] APP_METRICS = {
+            "nanoavatar_db_pool_acquire_seconds",
+            "nanoavatar_db_operation_seconds{op=\"reserve_credits\"",
+            "nanoavatar_db_operation_seconds{op=\"ensure_user\"",
+            "nanoavatar_db_errors_total",
+            "nanoavatar_update_queue_wait_seconds",
+            "nanoavatar_llm_request_seconds",
+            "nanoavatar_llm_calls_queued",
+            "nanoavatar_telegram_errors_total",
+            "nanoavatar_update_queue_depth",
+            "nanoavatar_busy_workers",
+            "nanoavatar_sessions "
+    };
+
+    private LoadTest() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int[] stages = Arrays.stream(prop("loadtest.stages", "50,200,500,1000,2000").split(","))
+                .map(String::trim).mapToInt(Integer::parseInt).toArray();
+        int stageSeconds = Integer.parseInt(prop("loadtest.stageSeconds", "30"));
+        long thinkMs = Long.parseLong(prop("loadtest.thinkMs", "1000"));
+        int payEvery = Integer.parseInt(prop("loadtest.payEvery", "5"));
+        int metricsPort = Integer.parseInt(prop("loadtest.metricsPort", "19090"));
+
+        LatencyModel llmLatency = new LatencyModel(
+                Double.parseDouble(prop("llm.medianMs", "800")),
+                Double.parseDouble(prop("llm.sigma", "0.6")),
+                Double.parseDouble(prop("llm.errorRate", "0.02")));
+        LatencyModel telegramLatency = new LatencyModel(
+                Double.parseDouble(prop("telegram.medianMs", "30")),
+                Double.parseDouble(prop("telegram.sigma", "0.4")),
+                Double.parseDouble(prop("telegram.errorRate", "0")));
+
+        FakeTelegramServer telegram = new FakeTelegramServer(telegramLatency);
+        FakeLlmServer llm = new FakeLlmServer(llmLatency);
+        telegram.start();
+        llm.start();
+
+        File workDir = new File(prop("loadtest.workDir", "target/loadtest"));
+        workDir.mkdirs();
+        File dbFile = new File(workDir, "loadtest.db");
+        for (String suffix : new String[]{"", "-wal", "-shm"}) {
+            new File(dbFile.getPath() + suffix).delete();
+        }
+
+        Process app = startApp(workDir, dbFile, telegram, llm, metricsPort);
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(4);
+        List<VirtualChat> chats = new ArrayList<>();
+        List<StageStats> results = new ArrayList<>();
+
+        try {
+            waitForHealth(metricsPort, app);
+            System.out.println("Bot API stub: " + telegram.baseUrl() + ", LLM stub: " + llm.baseUrl()
+                    + " (" + llmLatency + ")");
+
+            FilterRegistry registry = new FilterRegistry();
+            StageStats[] current = new StageStats[1];
+            Map<String, Double> previousMetrics = scrape(metricsPort);
+
+            for (int target : stages) {
+                StageStats stats = new StageStats(target);
+                current[0] = stats;
+                while (chats.size() < target) {
+                    VirtualChat chat = new VirtualChat(1_000_000L + chats.size(), telegram, scheduler,
+                            () -> current[0], registry, thinkMs, payEvery);
+                    chats.add(chat);
+                    chat.start();
+                }
+
+                Thread.sleep(stageSeconds * 1000L);
+                stats.finishedAtNanos = System.nanoTime();
+                results.add(stats);
+
+                Map<String, Double> metrics = scrape(metricsPort);
+                printStage(stats, telegram, metrics, previousMetrics);
+                previousMetrics = metrics;
+                if (!app.isAlive()) {
+                    System.out.println("Bot process exited with code " + app.exitValue());
+                    break;
+                }
+            }
+            printSummary(results, telegram, llm);
+        } finally {
+            chats.forEach(VirtualChat::stop);
+            scheduler.shutdownNow();
+            app.destroy();
+            telegram.stop();
+            llm.stop();
+        }
+    }
+
+    private static Process startApp(File workDir, File dbFile, FakeTelegramServer telegram,
+                                    FakeLlmServer llm, int metricsPort) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("com.example.nanoavatar.App");
+
+        ProcessBuilder pb = new ProcessBuilder(command);
+        Map<String, String> env = pb.environment();
+        env.put("BOT_TOKEN", "123456:LOADTEST");
+        env.put("BOT_USERNAME", "loadtest_bot");
+        env.put("TELEGRAM_API_URL", telegram.baseUrl());
+        env.put("DATABASE_PATH", dbFile.getAbsolutePath());
+        env.put("YOOKASSA_PROVIDER_TOKEN", "loadtest");
+        env.put("TIMEWEB_BASE_URL", llm.baseUrl());
+        env.put("TIMEWEB_AGENT_ID", "loadtest-agent");
+        env.put("GEMINI_API_KEY", "loadtest-key");
+        env.put("METRICS_PORT", String.valueOf(metricsPort));
+        env.put("STREAM_REPLIES", prop("loadtest.streamReplies", "false"));
+        // -Dloadtest.webhook=true: апдейты приходят на встроенный webhook-сервер вместо getUpdates
+        if (Boolean.parseBoolean(prop("loadtest.webhook", "false"))) {
+            int webhookPort = Integer.parseInt(prop("loadtest.webhookPort", "18443"));
+            env.put("BOT_MODE", "webhook");
+            env.put("WEBHOOK_PORT", String.valueOf(webhookPort));
+            env.put("WEBHOOK_URL", "http://127.0.0.1:" + webhookPort + "/telegram");
+            env.put("WEBHOOK_SECRET", "loadtest-secret");
+        }
+        // остальные настройки бота можно переопределить: -Dapp.BOT_WORKER_THREADS=32
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith("app.")) {
+                env.put(name.substring("app.".length()), System.getProperty(name));
+            }
+        }
+
+        File log = new File(workDir, "app.log");
+        pb.redirectErrorStream(true);
+        pb.redirectOutput(log);
+        System.out.println("Starting bot, log: " + log.getPath());
+        return pb.start();
+    }
+
+    private static void waitForHealth(int port, Process app) throws Exception {
+        long deadline = System.currentTimeMillis() + 60_000;
+        while (System.currentTimeMillis() < deadline) {
+            if (!app.isAlive()) {
+                throw new IllegalStateException("Bot exited with code " + app.exitValue() + ", see app.log");
+            }
+            try {
+                HttpURLConnection conn = (HttpURLConnection) new URL("http://127.0.0.1:" + port + "/health").openConnection();
+                if (conn.getResponseCode() == 200) return;
+            } catch (IOException ignored) {
+                // ещё не поднялся
+            }
+            Thread.sleep(500);
+        }
+        throw new IllegalStateException("Bot did not become healthy in 60 s");
+    }
+
+    /** /metrics бота: строка без значения → значение. */
+    private static Map<String, Double> scrape(int port) {
+        Map<String, Double> values = new LinkedHashMap<>();
+        try (InputStream in = new URL("http://127.0.0.1:" + port + "/metrics").openStream()) {
+            String text = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            for (String line : text.split("\n")) {
+                if (line.startsWith("#") || line.isBlank()) continue;
+                int space = line.lastIndexOf(' ');
+                values.put(line.substring(0, space), Double.parseDouble(line.substring(space + 1)));
+            }
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Could not scrape bot metrics: " + e);
+        }
+        return values;
+    }
+
+    private static void printStage(StageStats stats, FakeTelegramServer telegram,
+                                   Map<String, Double> metrics, Map<String, Double> previous) {
+        System.out.println();
+        System.out.printf(Locale.ROOT, "=== %d chats: %.1f steps/s, p50 %s, p99 %s, timeouts %d, backlog %d updates%n",
+                stats.chats, stats.throughput(),
+                ms(stats.all.quantileNanos(0.5)), ms(stats.all.quantileNanos(0.99)),
+                stats.timeouts.get(), telegram.pendingUpdates());
+        for (StageStats.Step step : StageStats.Step.values()) {
+            var h = stats.bySteps.get(step);
+            if (h.getCount() == 0) continue;
+            System.out.printf(Locale.ROOT, "    %-8s n=%-7d p50 %-9s p99 %s%n", step.name().toLowerCase(),
+                    h.getCount(), ms(h.quantileNanos(0.5)), ms(h.quantileNanos(0.99)));
+        }
+
+        // конкуренция за SQLite за ступень: сколько раз ждали соединение и сколько в среднем
+        double waits = delta(metrics, previous, "nanoavatar_db_pool_acquire_seconds_count");
+        double waitSum = delta(metrics, previous, "nanoavatar_db_pool_acquire_seconds_sum");
+        System.out.printf(Locale.ROOT, "    db pool: %.0f waits, mean wait %s%n",
+                waits, waits > 0 ? ms((long) (waitSum / waits * 1e9)) : "-");
+
+        System.out.println("    bot metrics (cumulative):");
+        for (Map.Entry<String, Double> e : metrics.entrySet()) {
+            for (String prefix : APP_METRICS) {
+                if (e.getKey().startsWith(prefix)) {
+                    System.out.printf(Locale.ROOT, "      %s %s%n", e.getKey(), e.getValue());
+                    break;
+                }
+            }
+        }
+    }
+
+    private static void printSummary(List<StageStats> results, FakeTelegramServer telegram, FakeLlmServer llm) {
+        System.out.println();
+        System.out.println("chats    steps/s     p50        p99        timeouts");
+        StageStats saturated = null;
+        StageStats prev = null;
+        for (StageStats s : results) {
+            System.out.printf(Locale.ROOT, "%-8d %-11.1f %-10s %-10s %d%n", s.chats, s.throughput(),
+                    ms(s.all.quantileNanos(0.5)), ms(s.all.quantileNanos(0.99)), s.timeouts.get());
+            // насыщение: нагрузку подняли, а пропускная способность почти не выросла или p99 резко подскочил
+            if (saturated == null && prev != null) {
+                double loadGrowth = (double) s.chats / prev.chats;
+                double throughputGrowth = s.throughput() / Math.max(0.001, prev.throughput());
+                boolean latencyJump = s.all.quantileNanos(0.99) > 3 * Math.max(1, prev.all.quantileNanos(0.99));
+                if (throughputGrowth < 1 + (loadGrowth - 1) / 2 || latencyJump || s.timeouts.get() > 0) {
+                    saturated = s;
+                }
+            }
+            prev = s;
+        }
+        System.out.println();
+        if (saturated != null) {
+            System.out.println("Saturation at about " + saturated.chats + " concurrent chats.");
+        } else {
+            System.out.println("No saturation detected; add larger stages (-Dloadtest.stages=...).");
+        }
+
+        Map<String, AtomicLong> calls = telegram.getCallsByMethod();
+        System.out.println("Bot API calls: " + calls + ", throttled: " + telegram.getThrottled()
+                + ", webhook retries: " + telegram.getWebhookRetries());
+        System.out.println("LLM requests: " + llm.getRequests() + ", injected errors: " + llm.getErrors());
+    }
+
+    private static double delta(Map<String, Double> now, Map<String, Double> before, String key) {
+        return now.getOrDefault(key, 0.0) - before.getOrDefault(key, 0.0);
+    }
+
+    private static String ms(long nanos) {
+        return String.format(Locale.ROOT, "%.1fms", nanos / 1e6);
+    }
+
+    private static String prop(String name, String defaultValue) {
+        String v = System.getProperty(name);
+        return v == null || v.isBlank() ? defaultValue : v;
+    }
+}
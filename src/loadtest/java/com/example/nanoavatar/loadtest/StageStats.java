@@ -0,0 +1,56 @@
+package com.example.nanoavatar.loadtest;
+
+import com.example.nanoavatar.metrics.Counter;
+import com.example.nanoavatar.metrics.Histogram;
+import com.example.nanoavatar.metrics.Metrics;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/** Результаты одной ступени нагрузки: латентность по типам шагов, успехи, таймауты. */
+final class StageStats {
+
+    /** Что делает виртуальный пользователь на шаге. */
+    enum Step { MENU, CALLBACK, PROMPT, PAYMENT }
+
+    final int chats;
+    final long startedAtNanos = System.nanoTime();
+    volatile long finishedAtNanos;
+
+    final Histogram all;
+    final Map<Step, Histogram> bySteps = new EnumMap<>(Step.class);
+    final Counter completed;
+    final Counter timeouts;
+
+    StageStats(int chats) {
+        this.chats = chats;
+        String stage = String.valueOf(chats);
+        this.all = Metrics.histogram("loadtest_step_seconds", "Time from update to bot reaction",
+                "chats", stage, "step", "all");
+        for (Step step : Step.values()) {
+            bySteps.put(step, Metrics.histogram("loadtest_step_seconds", "Time from update to bot reaction",
+                    "chats", stage, "step", step.name().toLowerCase()));
+        }
+        this.completed = Metrics.counter("loadtest_steps_total", "Finished steps", "chats", stage, "result", "ok");
+        this.timeouts = Metrics.counter("loadtest_steps_total", "Finished steps", "chats", stage, "result", "timeout");
+    }
+
+    void record(Step step, long nanos) {
+        all.record(nanos);
+        bySteps.get(step).record(nanos);
+        completed.inc();
+    }
+
+    void recordTimeout() {
+        timeouts.inc();
+    }
+
+    double seconds() {
+        long end = finishedAtNanos != 0 ? finishedAtNanos : System.nanoTime();
+        return (end - startedAtNanos) / 1e9;
+    }
+
+    double throughput() {
+        return completed.get() / Math.max(0.001, seconds());
+    }
+}
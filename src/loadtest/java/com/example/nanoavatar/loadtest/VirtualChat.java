@@ -0,0 +1,221 @@
+package com.example.nanoavatar.loadtest;
+
+import com.example.nanoavatar.filters.FilterNode;
+import com.example.nanoavatar.filters.FilterRegistry;
+import com.google.gson.JsonObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+/**
+ * Один синтетический пользователь. Сценарий повторяется по кругу:
+ * /start → категория → опция → пресет → два вопроса нейросети,
+ * а каждый payEvery-й круг ещё и пополнение баланса (/topup → сумма → pre-checkout → оплата).
+ *
+ * Следующий апдейт отправляется только после реакции бота на предыдущий (плюс пауза
+ * "на подумать"), как у живого человека.
+ */
+final class VirtualChat {
+
+    private static final long STEP_TIMEOUT_SEC = 30;
+
+    private static final String[] PRESETS = {"WORK", "STUDY", "ACCURACY", "CREATIVE"};
+    // часть вопросов повторяется у всех пользователей — это проверяет и кэш ответов
+    private static final String[] COMMON_PROMPTS = {
+            "Составь план на день",
+            "Как быстро выучить английский?",
+            "Напиши вежливый отказ на встречу"
+    };
+
+    private final long chatId;
+    private final FakeTelegramServer telegram;
+    private final ScheduledExecutorService scheduler;
+    private final Supplier<StageStats> stage;
+    private final List<FilterNode> categories;
+    private final long meanThinkMs;
+    private final int payEvery;
+
+    private volatile boolean running = true;
+    private int menuMessageId;
+    private int round;
+    private int callbackSeq;
+
+    VirtualChat(long chatId, FakeTelegramServer telegram, ScheduledExecutorService scheduler,
+                Supplier<StageStats> stage, FilterRegistry registry, long meanThinkMs, int payEvery) {
+        this.chatId = chatId;
+        this.telegram = telegram;
+        this.scheduler = scheduler;
+        this.stage = stage;
+        this.meanThinkMs = meanThinkMs;
+        this.payEvery = payEvery;
+        this.categories = new ArrayList<>();
+        for (String id : registry.getRoot().getChildrenIds()) {
+            categories.add(registry.getNode(id));
+        }
+    }
+
+    void start() {
+        // разносим старты, чтобы новая ступень не начиналась залпом
+        scheduler.schedule(this::runRound, ThreadLocalRandom.current().nextLong(Math.max(1, meanThinkMs)),
+                TimeUnit.MILLISECONDS);
+    }
+
+    void stop() {
+        running = false;
+        telegram.cancelExpectation(chatId);
+    }
+
+    private void runRound() {
+        if (!running) return;
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        FilterNode category = categories.get(rnd.nextInt(categories.size()));
+        List<String> options = category.getChildrenIds();
+        String option = options.get(rnd.nextInt(options.size()));
+        boolean pay = payEvery > 0 && round % payEvery == payEvery - 1;
+        round++;
+
+        CompletableFuture<?> chain = step(StageStats.Step.MENU, () -> message("/start"), "sendMessage")
+                .thenAccept(menu -> menuMessageId = menu.get("message_id").getAsInt())
+                .thenCompose(v -> think(() -> step(StageStats.Step.CALLBACK,
+                        () -> callback("NODE:" + category.getId()), "editMessageText")))
+                .thenCompose(v -> think(() -> step(StageStats.Step.CALLBACK,
+                        () -> callback("SELECT:" + option), "editMessageText")))
+                .thenCompose(v -> think(() -> step(StageStats.Step.CALLBACK,
+                        () -> callback("PRESET:" + PRESETS[ThreadLocalRandom.current().nextInt(PRESETS.length)]),
+                        "editMessageText")))
+                .thenCompose(v -> think(() -> step(StageStats.Step.PROMPT,
+                        () -> message(COMMON_PROMPTS[ThreadLocalRandom.current().nextInt(COMMON_PROMPTS.length)]),
+                        "sendMessage")))
+                .thenCompose(v -> think(() -> step(StageStats.Step.PROMPT,
+                        () -> message("Вопрос " + chatId + "-" + round + ": что почитать вечером?"),
+                        "sendMessage")));
+
+        if (pay) {
+            chain = chain
+                    .thenCompose(v -> think(() -> step(StageStats.Step.PAYMENT, () -> message("/topup"), "sendMessage")))
+                    .thenCompose(v -> think(() -> step(StageStats.Step.PAYMENT, () -> message("300"), "sendInvoice")))
+                    .thenCompose(v -> step(StageStats.Step.PAYMENT, this::preCheckout, "answerPreCheckoutQuery"))
+                    .thenCompose(v -> step(StageStats.Step.PAYMENT, this::successfulPayment, "sendMessage"));
+        }
+
+        chain.whenComplete((v, error) -> {
+            // после таймаута начинаем круг заново с /start
+            if (running) scheduler.schedule(this::runRound, thinkMs(), TimeUnit.MILLISECONDS);
+        });
+    }
+
+    /** Отправляет апдейт и ждёт вызова одного из methods для этого чата. */
+    private CompletableFuture<JsonObject> step(StageStats.Step type, Supplier<JsonObject> update, String... methods) {
+        if (!running) return CompletableFuture.failedFuture(new IllegalStateException("stopped"));
+        StageStats stats = stage.get();
+        CompletableFuture<JsonObject> reaction = telegram.expect(chatId, Set.of(methods));
+        long start = System.nanoTime();
+        telegram.enqueue(update.get());
+        return reaction
+                .orTimeout(STEP_TIMEOUT_SEC, TimeUnit.SECONDS)
+                .whenComplete((result, error) -> {
+                    if (error == null) {
+                        stats.record(type, System.nanoTime() - start);
+                    } else if (error instanceof TimeoutException) {
+                        telegram.cancelExpectation(chatId);
+                        stats.recordTimeout();
+                    }
+                });
+    }
+
+    private <T> CompletableFuture<T> think(Supplier<CompletableFuture<T>> next) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        scheduler.schedule(() -> {
+            next.get().whenComplete((v, e) -> {
+                if (e != null) result.completeExceptionally(e);
+                else result.complete(v);
+            });
+        }, thinkMs(), TimeUnit.MILLISECONDS);
+        return result;
+    }
+
+    // экспоненциальные паузы — поток событий получается пуассоновским
+    private long thinkMs() {
+        return (long) (-Math.log(1 - ThreadLocalRandom.current().nextDouble()) * meanThinkMs);
+    }
+
+    // ===== АПДЕЙТЫ =====
+
+    private JsonObject user() {
+        JsonObject from = new JsonObject();
+        from.addProperty("id", chatId);
+        from.addProperty("is_bot", false);
+        from.addProperty("first_name", "Load");
+        from.addProperty("username", "load_" + chatId);
+        return from;
+    }
+
+    private JsonObject chat() {
+        JsonObject chat = new JsonObject();
+        chat.addProperty("id", chatId);
+        chat.addProperty("type", "private");
+        return chat;
+    }
+
+    private JsonObject baseMessage(int messageId) {
+        JsonObject message = new JsonObject();
+        message.addProperty("message_id", messageId);
+        message.addProperty("date", System.currentTimeMillis() / 1000);
+        message.add("chat", chat());
+        message.add("from", user());
+        return message;
+    }
+
+    private JsonObject message(String text) {
+        JsonObject message = baseMessage(telegram.nextMessageId());
+        message.addProperty("text", text);
+        JsonObject update = new JsonObject();
+        update.add("message", message);
+        return update;
+    }
+
+    private JsonObject callback(String data) {
+        JsonObject query = new JsonObject();
+        query.addProperty("id", chatId + ":" + (++callbackSeq));
+        query.add("from", user());
+        query.add("message", baseMessage(menuMessageId));
+        query.addProperty("chat_instance", String.valueOf(chatId));
+        query.addProperty("data", data);
+        JsonObject update = new JsonObject();
+        update.add("callback_query", query);
+        return update;
+    }
+
+    private JsonObject preCheckout() {
+        JsonObject query = new JsonObject();
+        query.addProperty("id", chatId + ":pay" + round);
+        query.add("from", user());
+        query.addProperty("currency", "RUB");
+        query.addProperty("total_amount", 30000);
+        query.addProperty("invoice_payload", "TOPUP_300");
+        JsonObject update = new JsonObject();
+        update.add("pre_checkout_query", query);
+        return update;
+    }
+
+    private JsonObject successfulPayment() {
+        JsonObject payment = new JsonObject();
+        payment.addProperty("currency", "RUB");
+        payment.addProperty("total_amount", 30000);
+        payment.addProperty("invoice_payload", "TOPUP_300");
+        payment.addProperty("telegram_payment_charge_id", "tg-" + chatId + "-" + round);
+        payment.addProperty("provider_payment_charge_id", "yk-" + chatId + "-" + round);
+        JsonObject message = baseMessage(telegram.nextMessageId());
+        message.add("successful_payment", payment);
+        JsonObject update = new JsonObject();
+        update.add("message", message);
+        return update;
+    }
+}
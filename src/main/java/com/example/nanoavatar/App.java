@@ -1,15 +1,40 @@
 package com.example.nanoavatar;
 
+import com.example.nanoavatar.ai.AdaptiveLimiter;
+import com.example.nanoavatar.ai.CircuitBreaker;
 import com.example.nanoavatar.ai.GeminiClient;
+import com.example.nanoavatar.ai.HedgingReplyClient;
+import com.example.nanoavatar.ai.LimitingReplyClient;
+import com.example.nanoavatar.ai.LimitingStreamingClient;
+import com.example.nanoavatar.ai.LlmBackend;
+import com.example.nanoavatar.ai.LlmRouter;
+import com.example.nanoavatar.ai.ReplyCache;
+import com.example.nanoavatar.ai.ReplyClient;
+import com.example.nanoavatar.ai.SingleFlightReplyClient;
+import com.example.nanoavatar.ai.SingleFlightStreamingClient;
+import com.example.nanoavatar.ai.StreamingReplyClient;
 import com.example.nanoavatar.bot.NanoAvatarBot;
+import com.example.nanoavatar.bot.WebhookServer;
+import com.example.nanoavatar.broadcast.BroadcastService;
 import com.example.nanoavatar.db.Database;
+import com.example.nanoavatar.filters.FilterRegistry;
+import com.example.nanoavatar.memory.ConversationStore;
+import com.example.nanoavatar.metrics.MetricsServer;
 import com.example.nanoavatar.payment.PaymentService;
 import com.example.nanoavatar.scheduler.DailyBonusScheduler;
+import com.example.nanoavatar.user.SessionStore;
 import com.example.nanoavatar.user.UserService;
 import io.github.cdimascio.dotenv.Dotenv;
+import org.telegram.telegrambots.bots.DefaultBotOptions;
 import org.telegram.telegrambots.meta.TelegramBotsApi;
+import org.telegram.telegrambots.meta.api.methods.updates.SetWebhook;
 import org.telegram.telegrambots.updatesreceivers.DefaultBotSession;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
 public class App {
 
     public static void main(String[] args) throws Exception {
@@ -24,7 +49,18 @@ public class App {
         String token = requireEnv(dotenv, "BOT_TOKEN");
         String username = requireEnv(dotenv, "BOT_USERNAME");
 
+        // адрес Bot API (для нагрузочного теста — локальная заглушка) и потоки executeAsync
+        String telegramApiUrl = envOrDotenv(dotenv, "TELEGRAM_API_URL", "");
+        int telegramMaxThreads = Integer.parseInt(envOrDotenv(dotenv, "TELEGRAM_MAX_THREADS", "8"));
+
+        // приём апдейтов: polling (long polling) или webhook (встроенный HTTP-сервер за прокси)
+        String botMode = envOrDotenv(dotenv, "BOT_MODE", "polling");
+
         String dbPath = envOrDotenv(dotenv, "DATABASE_PATH", "bot.db");
+        int dbBusyTimeoutMs = Integer.parseInt(envOrDotenv(dotenv, "DB_BUSY_TIMEOUT_MS",
+                String.valueOf(Database.DEFAULT_BUSY_TIMEOUT_MS)));
+        int dbStatementCacheSize = Integer.parseInt(envOrDotenv(dotenv, "DB_STATEMENT_CACHE_SIZE",
+                String.valueOf(Database.DEFAULT_STATEMENT_CACHE_SIZE)));
 
         String providerToken = requireEnv(dotenv, "YOOKASSA_PROVIDER_TOKEN");
         int minTopup = Integer.parseInt(envOrDotenv(dotenv, "MIN_TOPUP_RUB", "100"));
@@ -34,6 +70,65 @@ public class App {
         // ✅ Жёстко 5 кредитов в день
         int dailyBonus = 5;
 
+        // кэш ответов на повторяющиеся запросы (0 — выключен)
+        int replyCacheSize = Integer.parseInt(envOrDotenv(dotenv, "REPLY_CACHE_SIZE", "1000"));
+        long replyCacheTtlMinutes = Long.parseLong(envOrDotenv(dotenv, "REPLY_CACHE_TTL_MINUTES", "60"));
+
+        // параллельная обработка апдейтов: потоки и глубина очереди
+        int workerThreads = Integer.parseInt(envOrDotenv(dotenv, "BOT_WORKER_THREADS", "16"));
+        int updateQueueDepth = Integer.parseInt(envOrDotenv(dotenv, "BOT_UPDATE_QUEUE_DEPTH", "1000"));
+
+        // пул соединений SQLite (0 — без пула, как раньше); по умолчанию — по числу рабочих потоков
+        int dbPoolSize = Integer.parseInt(envOrDotenv(dotenv, "DB_POOL_SIZE",
+                String.valueOf(Database.poolSizeFor(workerThreads))));
+
+        // потоковый ответ: правим сообщение по мере генерации, не чаще раза в интервал
+        boolean streamReplies = Boolean.parseBoolean(envOrDotenv(dotenv, "STREAM_REPLIES", "true"));
+        long streamEditIntervalMs = Long.parseLong(envOrDotenv(dotenv, "STREAM_EDIT_INTERVAL_MS", "1000"));
+
+        // склейка одинаковых одновременных запросов к нейросети (и обычных, и потоковых)
+        // и общий таймаут такого запроса (0 — выключена)
+        long singleFlightTimeoutMs = Long.parseLong(envOrDotenv(dotenv, "LLM_SINGLE_FLIGHT_TIMEOUT_MS", "120000"));
+
+        // адаптивный лимит запросов к нейросети и предохранитель (LLM_LIMIT_ENABLED=false — без них)
+        boolean llmLimitEnabled = Boolean.parseBoolean(envOrDotenv(dotenv, "LLM_LIMIT_ENABLED", "true"));
+        int llmLimitInitial = Integer.parseInt(envOrDotenv(dotenv, "LLM_LIMIT_INITIAL", "16"));
+        int llmLimitMin = Integer.parseInt(envOrDotenv(dotenv, "LLM_LIMIT_MIN", "2"));
+        int llmLimitMax = Integer.parseInt(envOrDotenv(dotenv, "LLM_LIMIT_MAX", "128"));
+        int llmLimitQueue = Integer.parseInt(envOrDotenv(dotenv, "LLM_LIMIT_QUEUE", "32"));
+        // ответ дольше этого считается признаком перегрузки
+        long llmSlowCallMs = Long.parseLong(envOrDotenv(dotenv, "LLM_SLOW_CALL_MS", "30000"));
+        long llmBreakerOpenSeconds = Long.parseLong(envOrDotenv(dotenv, "LLM_BREAKER_OPEN_SECONDS", "30"));
+
+        // хеджирование: повтор запроса, если ответа нет дольше квантиля задержек; не больше BUDGET_PERCENT % запросов
+        boolean llmHedgeEnabled = Boolean.parseBoolean(envOrDotenv(dotenv, "LLM_HEDGE_ENABLED", "false"));
+        double llmHedgeQuantile = Double.parseDouble(envOrDotenv(dotenv, "LLM_HEDGE_QUANTILE", "0.95"));
+        long llmHedgeMinDelayMs = Long.parseLong(envOrDotenv(dotenv, "LLM_HEDGE_MIN_DELAY_MS", "1000"));
+        double llmHedgeBudgetPercent = Double.parseDouble(envOrDotenv(dotenv, "LLM_HEDGE_BUDGET_PERCENT", "5"));
+
+        // рассылки: глобальный лимит Telegram, число отправителей, окно доставки бонуса
+        double broadcastRate = Double.parseDouble(envOrDotenv(dotenv, "BROADCAST_RATE_PER_SEC", "25"));
+        int broadcastSenders = Integer.parseInt(envOrDotenv(dotenv, "BROADCAST_SENDERS", "4"));
+        long bonusWindowMinutes = Long.parseLong(envOrDotenv(dotenv, "BONUS_DELIVERY_WINDOW_MINUTES", "30"));
+
+        // сессии: сколько держать в памяти и через сколько минут простоя выгружать
+        int sessionCacheSize = Integer.parseInt(envOrDotenv(dotenv, "SESSION_CACHE_SIZE",
+                String.valueOf(SessionStore.DEFAULT_MAX_SESSIONS)));
+        long sessionIdleMinutes = Long.parseLong(envOrDotenv(dotenv, "SESSION_IDLE_MINUTES",
+                String.valueOf(SessionStore.DEFAULT_IDLE_MINUTES)));
+
+        // память разговора: бюджет последних реплик и краткого содержания в токенах, размер кэша в памяти
+        boolean memoryEnabled = Boolean.parseBoolean(envOrDotenv(dotenv, "CONVERSATION_MEMORY_ENABLED", "true"));
+        int memoryHistoryTokens = Integer.parseInt(envOrDotenv(dotenv, "CONVERSATION_HISTORY_TOKENS", "1500"));
+        int memorySummaryTokens = Integer.parseInt(envOrDotenv(dotenv, "CONVERSATION_SUMMARY_TOKENS", "300"));
+        // оценка размера запроса: сверх лимита сначала урезается история, потом запрос отклоняется (0 — без лимита)
+        int maxPromptTokens = Integer.parseInt(envOrDotenv(dotenv, "LLM_MAX_PROMPT_TOKENS", "6000"));
+        int memoryCacheSize = Integer.parseInt(envOrDotenv(dotenv, "CONVERSATION_CACHE_SIZE",
+                String.valueOf(ConversationStore.DEFAULT_MAX_CONVERSATIONS)));
+
+        // /metrics и /health (0 — не поднимать HTTP-сервер)
+        int metricsPort = Integer.parseInt(envOrDotenv(dotenv, "METRICS_PORT", "9090"));
+
         String moscowZoneId = envOrDotenv(dotenv, "MOSCOW_TIMEZONE", "Europe/Moscow");
 
         // Timeweb AI-агент (OpenAI-совместимый API)
@@ -42,25 +137,182 @@ public class App {
         String geminiApiKey = requireEnv(dotenv, "GEMINI_API_KEY");
         String geminiModel = envOrDotenv(dotenv, "GEMINI_MODEL", "gemini-2.5-flash");
 
-        Database db = new Database(dbPath);
+        // несколько агентов: LLM_BACKENDS=main:3,reserve:1 (имя:вес); пусто — один агент выше
+        String llmBackends = envOrDotenv(dotenv, "LLM_BACKENDS", "");
+        // сколько ошибок подряд выводит бэкенд из ротации и на сколько секунд
+        int llmEjectAfterFailures = Integer.parseInt(envOrDotenv(dotenv, "LLM_BACKEND_EJECT_FAILURES", "5"));
+        long llmEjectSeconds = Long.parseLong(envOrDotenv(dotenv, "LLM_BACKEND_EJECT_SECONDS", "30"));
+
+        // HTTP-клиент нейросети: параллельность (всего / на хост агента), пул соединений, HTTP/2, таймауты
+        GeminiClient.HttpSettings defaults = GeminiClient.HttpSettings.DEFAULT;
+        GeminiClient.HttpSettings llmHttp = new GeminiClient.HttpSettings(
+                Integer.parseInt(envOrDotenv(dotenv, "LLM_MAX_REQUESTS", String.valueOf(defaults.maxRequests))),
+                Integer.parseInt(envOrDotenv(dotenv, "LLM_MAX_REQUESTS_PER_HOST",
+                        String.valueOf(defaults.maxRequestsPerHost))),
+                Integer.parseInt(envOrDotenv(dotenv, "LLM_MAX_IDLE_CONNECTIONS",
+                        String.valueOf(defaults.maxIdleConnections))),
+                Long.parseLong(envOrDotenv(dotenv, "LLM_KEEP_ALIVE_SECONDS", String.valueOf(defaults.keepAliveSeconds))),
+                Boolean.parseBoolean(envOrDotenv(dotenv, "LLM_HTTP2", String.valueOf(defaults.http2))),
+                Long.parseLong(envOrDotenv(dotenv, "LLM_CONNECT_TIMEOUT_MS", String.valueOf(defaults.connectTimeoutMs))),
+                Long.parseLong(envOrDotenv(dotenv, "LLM_READ_TIMEOUT_MS", String.valueOf(defaults.readTimeoutMs))),
+                Long.parseLong(envOrDotenv(dotenv, "LLM_CALL_TIMEOUT_MS", String.valueOf(defaults.callTimeoutMs))));
+
+        Database db = new Database(dbPath, dbPoolSize, dbBusyTimeoutMs, dbStatementCacheSize);
         UserService userService = new UserService(db);
 
         PaymentService paymentService =
                 new PaymentService(providerToken, minTopup, creditsPerRub, userService);
 
-        GeminiClient geminiClient =
-                new GeminiClient(timewebBaseUrl, timewebAgentId, geminiApiKey, geminiModel);
+        // нижнее звено: один агент или маршрутизатор по нескольким; оно же отдаёт потоковые ответы
+        ReplyClient llmClient;
+        StreamingReplyClient streamClient;
+        if (llmBackends.isBlank()) {
+            GeminiClient geminiClient =
+                    new GeminiClient(timewebBaseUrl, timewebAgentId, geminiApiKey, geminiModel, llmHttp);
+            llmClient = geminiClient;
+            streamClient = geminiClient;
+        } else {
+            LlmRouter router = new LlmRouter(
+                    buildBackends(dotenv, llmBackends, timewebBaseUrl, timewebAgentId, geminiApiKey, geminiModel,
+                            llmHttp),
+                    llmEjectAfterFailures, Duration.ofSeconds(llmEjectSeconds).toMillis());
+            llmClient = router;
+            streamClient = router;
+        }
+
+        // цепочка обычных ответов: склейка одинаковых -> хеджирование -> лимит -> агент / маршрутизатор
+        ReplyClient replyClient = llmClient;
+        AdaptiveLimiter llmLimiter = null;
+        if (llmLimitEnabled) {
+            CircuitBreaker breaker = new CircuitBreaker(llmSlowCallMs,
+                    Duration.ofSeconds(llmBreakerOpenSeconds).toMillis());
+            llmLimiter = new AdaptiveLimiter(llmLimitInitial, llmLimitMin, llmLimitMax, llmSlowCallMs, breaker);
+            replyClient = new LimitingReplyClient(replyClient, llmLimiter, llmLimitQueue);
+        }
+        if (llmHedgeEnabled) {
+            // над лимитом: дубль занимает разрешение, как любой другой вызов
+            replyClient = new HedgingReplyClient(replyClient, llmHedgeQuantile, llmHedgeMinDelayMs,
+                    llmHedgeBudgetPercent);
+        }
+        if (llmLimiter != null) {
+            // потоковые ответы под тем же лимитом; ниже склейки — разрешение берёт только первый запрос
+            streamClient = new LimitingStreamingClient(streamClient, llmLimiter);
+        }
+        if (singleFlightTimeoutMs > 0) {
+            replyClient = new SingleFlightReplyClient(replyClient, singleFlightTimeoutMs);
+            // потоковые ответы (STREAM_REPLIES) склеиваются отдельно: фрагменты раздаются всем ожидающим
+            streamClient = new SingleFlightStreamingClient(streamClient, singleFlightTimeoutMs);
+        }
+
+        ReplyCache replyCache = replyCacheSize > 0
+                ? new ReplyCache(replyCacheSize, Duration.ofMinutes(replyCacheTtlMinutes).toMillis())
+                : null;
+
+        FilterRegistry registry = new FilterRegistry();
+        SessionStore sessionStore = new SessionStore(db, registry, sessionCacheSize,
+                Duration.ofMinutes(sessionIdleMinutes));
+        // при остановке дописываем несохранённые сессии
+        Runtime.getRuntime().addShutdownHook(new Thread(sessionStore::close, "session-store-close"));
+
+        ConversationStore conversations = null;
+        if (memoryEnabled) {
+            // краткое содержание сжимается через ту же цепочку, что и обычные ответы
+            conversations = new ConversationStore(db, replyClient, memoryHistoryTokens, memorySummaryTokens,
+                    memoryCacheSize, Duration.ofMinutes(sessionIdleMinutes));
+            Runtime.getRuntime().addShutdownHook(new Thread(conversations::close, "conversation-store-close"));
+        }
+
+        DefaultBotOptions botOptions = new DefaultBotOptions();
+        botOptions.setMaxThreads(telegramMaxThreads);
+        if (!telegramApiUrl.isBlank()) {
+            botOptions.setBaseUrl(telegramApiUrl);
+        }
 
-        TelegramBotsApi api = new TelegramBotsApi(DefaultBotSession.class);
         NanoAvatarBot bot = new NanoAvatarBot(
-                token, username, db, paymentService, geminiClient, promptPrice);
-        api.registerBot(bot);
+                botOptions, token, username, db, registry, sessionStore, paymentService,
+                streamClient, replyClient, replyCache, conversations, maxPromptTokens, promptPrice,
+                workerThreads, updateQueueDepth, streamReplies, streamEditIntervalMs);
+        if ("webhook".equalsIgnoreCase(botMode)) {
+            startWebhook(dotenv, bot);
+        } else {
+            TelegramBotsApi api = new TelegramBotsApi(DefaultBotSession.class);
+            api.registerBot(bot);
+        }
+
+        if (metricsPort > 0) {
+            MetricsServer metricsServer = new MetricsServer(metricsPort, db::isHealthy);
+            metricsServer.start();
+        }
 
-        DailyBonusScheduler scheduler =
-                new DailyBonusScheduler(userService, bot, dailyBonus, moscowZoneId);
+        BroadcastService broadcastService =
+                new BroadcastService(db, bot, broadcastRate, broadcastSenders);
+        broadcastService.resumePending();
+
+        DailyBonusScheduler scheduler = new DailyBonusScheduler(userService, broadcastService,
+                dailyBonus, moscowZoneId, Duration.ofMinutes(bonusWindowMinutes));
         scheduler.start();
     }
 
+    /**
+     * Бэкенды из LLM_BACKENDS. Для каждого имени NAME читаются LLM_BACKEND_NAME_BASE_URL, _AGENT_ID,
+     * _API_KEY, _MODEL (по умолчанию — общие TIMEWEB_* / GEMINI_*) и _MAX_CONCURRENT (0 — без предела).
+     */
+    private static List<LlmBackend> buildBackends(Dotenv dotenv, String spec, String baseUrl, String agentId,
+                                                  String apiKey, String model, GeminiClient.HttpSettings http) {
+        List<LlmBackend> backends = new ArrayList<>();
+        for (String entry : spec.split(",")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) continue;
+            int colon = entry.indexOf(':');
+            String name = colon >= 0 ? entry.substring(0, colon).trim() : entry;
+            int weight = colon >= 0 ? Integer.parseInt(entry.substring(colon + 1).trim()) : 1;
+
+            String prefix = "LLM_BACKEND_" + name.toUpperCase(Locale.ROOT) + "_";
+            GeminiClient client = new GeminiClient(
+                    envOrDotenv(dotenv, prefix + "BASE_URL", baseUrl),
+                    envOrDotenv(dotenv, prefix + "AGENT_ID", agentId),
+                    envOrDotenv(dotenv, prefix + "API_KEY", apiKey),
+                    envOrDotenv(dotenv, prefix + "MODEL", model),
+                    http, name);
+            int maxConcurrent = Integer.parseInt(envOrDotenv(dotenv, prefix + "MAX_CONCURRENT", "0"));
+            backends.add(new LlmBackend(name, client, weight, maxConcurrent));
+        }
+        return backends;
+    }
+
+    /**
+     * Webhook-режим: поднимаем приёмник апдейтов и (если не выключено) регистрируем адрес в Telegram.
+     * WEBHOOK_REGISTER=false — если адрес регистрируется снаружи. Инстанс за прокси должен быть один
+     * (см. {@link WebhookServer}).
+     */
+    private static void startWebhook(Dotenv dotenv, NanoAvatarBot bot) throws Exception {
+        // публичный HTTPS-адрес, на который Telegram шлёт апдейты (прокси проксирует его на WEBHOOK_PORT)
+        String webhookUrl = requireEnv(dotenv, "WEBHOOK_URL");
+        // допустимы A-Z, a-z, 0-9, _ и -, до 256 символов
+        String webhookSecret = requireEnv(dotenv, "WEBHOOK_SECRET");
+        int webhookPort = Integer.parseInt(envOrDotenv(dotenv, "WEBHOOK_PORT", "8080"));
+        String webhookPath = envOrDotenv(dotenv, "WEBHOOK_PATH", "/telegram");
+        // сколько HTTP-поток ждёт места в очереди апдейтов, прежде чем ответить 503
+        long webhookAcceptTimeoutMs = Long.parseLong(envOrDotenv(dotenv, "WEBHOOK_ACCEPT_TIMEOUT_MS", "2000"));
+        int webhookHttpThreads = Integer.parseInt(envOrDotenv(dotenv, "WEBHOOK_HTTP_THREADS", "4"));
+        int webhookMaxConnections = Integer.parseInt(envOrDotenv(dotenv, "WEBHOOK_MAX_CONNECTIONS", "40"));
+        boolean webhookRegister = Boolean.parseBoolean(envOrDotenv(dotenv, "WEBHOOK_REGISTER", "true"));
+
+        WebhookServer webhookServer = new WebhookServer(webhookPort, webhookPath, webhookSecret,
+                webhookAcceptTimeoutMs, webhookHttpThreads, bot::offerUpdate);
+        webhookServer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(webhookServer::stop, "webhook-stop"));
+
+        if (webhookRegister) {
+            bot.execute(SetWebhook.builder()
+                    .url(webhookUrl)
+                    .secretToken(webhookSecret)
+                    .maxConnections(webhookMaxConnections)
+                    .allowedUpdates(List.of("message", "callback_query", "pre_checkout_query"))
+                    .build());
+        }
+    }
+
     private static String envOrDotenv(Dotenv dotenv, String key, String defaultValue) {
         String v = System.getenv(key);
         if (v != null && !v.isBlank()) return v;
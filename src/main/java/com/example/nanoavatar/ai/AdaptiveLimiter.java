@@ -0,0 +1,122 @@
+package com.example.nanoavatar.ai;
+
+import com.example.nanoavatar.metrics.Metrics;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Адаптивный лимит одновременных запросов к нейросети (AIMD).
+ *
+ * Быстрый успешный ответ при загруженном лимите поднимает его на 1/limit — примерно +1 за
+ * «круг» запросов. Ошибка, таймаут или ответ дольше slowCallMs умножают лимит на {@value #BACKOFF};
+ * запросы, начатые до последнего снижения, его уже не снижают — одна перегрузка даёт одно снижение.
+ * Так лимит сам находит, сколько запросов бэкенд держит без деградации.
+ *
+ * Поверх лимита работает {@link CircuitBreaker}: при разомкнутом разрешения не выдаются вовсе.
+ */
+public class AdaptiveLimiter {
+
+    private static final double BACKOFF = 0.75;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final long slowCallNanos;
+    private final CircuitBreaker breaker;
+    private volatile Runnable onRelease = () -> { };
+
+    // под this
+    private double limit;
+    private int inFlight;
+    private long lastDecreaseAt = System.nanoTime();
+
+    public AdaptiveLimiter(int initialLimit, int minLimit, int maxLimit, long slowCallMs, CircuitBreaker breaker) {
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+        this.slowCallNanos = slowCallMs * 1_000_000L;
+        this.breaker = breaker;
+        Metrics.gauge("nanoavatar_llm_concurrency_limit", "Current adaptive LLM concurrency limit", this::getLimit);
+        Metrics.gauge("nanoavatar_llm_concurrency_in_flight", "LLM calls holding a limiter permit",
+                this::getInFlight);
+    }
+
+    /** Разрешение на один вызов или null, если лимит исчерпан или предохранитель разомкнут. */
+    public synchronized Permit tryAcquire() {
+        if (inFlight >= (int) limit) return null;
+        if (!breaker.tryPass()) return null;
+        inFlight++;
+        return new Permit(inFlight);
+    }
+
+    /** Выдаст ли сейчас {@link #tryAcquire()} разрешение. */
+    public synchronized boolean hasCapacity() {
+        return inFlight < (int) limit && breaker.isPassable();
+    }
+
+    public CircuitBreaker getBreaker() {
+        return breaker;
+    }
+
+    /** Вызывается после каждого освобождения разрешения (вне блокировки). */
+    void setOnRelease(Runnable onRelease) {
+        this.onRelease = onRelease;
+    }
+
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    private void release(Permit permit, Boolean success) {
+        long now = System.nanoTime();
+        long latency = now - permit.startedAt;
+        synchronized (this) {
+            inFlight--;
+            if (success != null) {
+                if (success && latency <= slowCallNanos) {
+                    // растём, только если лимит действительно был нужен
+                    if (permit.inFlightAtStart * 2 >= limit) {
+                        limit = Math.min(maxLimit, limit + 1.0 / limit);
+                    }
+                } else if (permit.startedAt > lastDecreaseAt) {
+                    limit = Math.max(minLimit, limit * BACKOFF);
+                    lastDecreaseAt = now;
+                }
+            }
+        }
+        if (success != null) {
+            breaker.record(success, latency);
+        } else {
+            breaker.release();
+        }
+        onRelease.run();
+    }
+
+    /** Разрешение на один вызов; освобождается ровно один раз одним из методов. */
+    public final class Permit {
+        final long startedAt = System.nanoTime();
+        final int inFlightAtStart;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Permit(int inFlightAtStart) {
+            this.inFlightAtStart = inFlightAtStart;
+        }
+
+        public void success() {
+            if (released.compareAndSet(false, true)) release(this, true);
+        }
+
+        /** Ошибка или таймаут бэкенда. */
+        public void failure() {
+            if (released.compareAndSet(false, true)) release(this, false);
+        }
+
+        /** Вызов не состоялся (например, не хватило кредитов) — на лимит не влияет. */
+        public void cancel() {
+            if (released.compareAndSet(false, true)) release(this, null);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.example.nanoavatar.ai;
+
+import java.util.List;
+
+/**
+ * Один запрос к нейросети: инструкции под настройки пользователя, контекст разговора и его сообщение.
+ *
+ * Контекст — краткое содержание старой части разговора (summary) и последние реплики (history);
+ * у нового разговора их нет.
+ *
+ * key задаётся, только если ответ можно разделить с другими пользователями
+ * (те же настройки и тот же запрос без контекста дают одинаково пригодный ответ) — по нему
+ * одинаковые запросы склеиваются в {@link SingleFlightReplyClient}. null — запрос личный.
+ */
+public final class ChatRequest {
+
+    private final String modePrompt;
+    private final String summary;
+    private final List<ChatTurn> history;
+    private final String userPrompt;
+    private final ReplyCache.Key key;
+
+    public ChatRequest(String modePrompt, String userPrompt, ReplyCache.Key key) {
+        this(modePrompt, null, List.of(), userPrompt, key);
+    }
+
+    public ChatRequest(String modePrompt, String summary, List<ChatTurn> history, String userPrompt,
+                       ReplyCache.Key key) {
+        this.modePrompt = modePrompt;
+        this.summary = summary;
+        this.history = history;
+        this.userPrompt = userPrompt;
+        this.key = key;
+    }
+
+    public String getModePrompt() {
+        return modePrompt;
+    }
+
+    /** Краткое содержание ранней части разговора или null. */
+    public String getSummary() {
+        return summary;
+    }
+
+    /** Последние реплики разговора, от старых к новым. */
+    public List<ChatTurn> getHistory() {
+        return history;
+    }
+
+    public String getUserPrompt() {
+        return userPrompt;
+    }
+
+    /**
+     * Тот же запрос без самых старых реплик истории — короче примерно на excessTokens
+     * (реплики убираются парами «вопрос — ответ»; если не хватит, уходит вся история).
+     */
+    public ChatRequest withoutOldestTurns(int excessTokens) {
+        int drop = 0;
+        int dropped = 0;
+        while (drop < history.size() && dropped < excessTokens) {
+            dropped += TokenEstimator.estimate(history.get(drop).getText());
+            drop++;
+            if (drop < history.size() && history.get(drop).getRole() == ChatTurn.Role.ASSISTANT) {
+                dropped += TokenEstimator.estimate(history.get(drop).getText());
+                drop++;
+            }
+        }
+        if (drop == 0) return this;
+        return new ChatRequest(modePrompt, summary, history.subList(drop, history.size()), userPrompt, key);
+    }
+
+    /** Ключ для склейки одинаковых запросов или null. */
+    public ReplyCache.Key getKey() {
+        return key;
+    }
+}
@@ -0,0 +1,32 @@
+package com.example.nanoavatar.ai;
+
+/**
+ * Одна реплика из истории разговора: сообщение пользователя или ответ ассистента.
+ */
+public final class ChatTurn {
+
+    public enum Role {
+        USER, ASSISTANT;
+
+        /** Роль в OpenAI-совместимом API. */
+        public String apiName() {
+            return this == USER ? "user" : "assistant";
+        }
+    }
+
+    private final Role role;
+    private final String text;
+
+    public ChatTurn(Role role, String text) {
+        this.role = role;
+        this.text = text;
+    }
+
+    public Role getRole() {
+        return role;
+    }
+
+    public String getText() {
+        return text;
+    }
+}
@@ -0,0 +1,123 @@
+package com.example.nanoavatar.ai;
+
+import com.example.nanoavatar.metrics.Counter;
+import com.example.nanoavatar.metrics.Metrics;
+
+import java.util.Arrays;
+
+/**
+ * Предохранитель для бэкенда нейросети.
+ *
+ * CLOSED   — запросы идут; считаем исходы последних {@value #WINDOW} вызовов.
+ *            Если среди них не меньше половины неудачных (ошибка или дольше slowCallMs), размыкаемся.
+ * OPEN     — openMs все запросы сразу отклоняются, бэкенд отдыхает.
+ * HALF_OPEN — пропускаем один пробный запрос: успех замыкает, неудача снова размыкает.
+ */
+public class CircuitBreaker {
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private static final int WINDOW = 20;
+    private static final int MIN_CALLS = 10;
+    private static final double FAILURE_RATE = 0.5;
+
+    private static final Counter OPENED = Metrics.counter("nanoavatar_llm_breaker_opened_total",
+            "Times the LLM circuit breaker opened");
+
+    private final long slowCallNanos;
+    private final long openNanos;
+
+    // под this
+    private State state = State.CLOSED;
+    private long openedAt;
+    private boolean probeInFlight;
+    private final boolean[] failures = new boolean[WINDOW];
+    private int calls;
+    private int failed;
+    private int next;
+
+    public CircuitBreaker(long slowCallMs, long openMs) {
+        this.slowCallNanos = slowCallMs * 1_000_000L;
+        this.openNanos = openMs * 1_000_000L;
+        Metrics.gauge("nanoavatar_llm_breaker_state", "LLM circuit breaker: 0 closed, 1 open, 2 half-open",
+                () -> getState().ordinal());
+    }
+
+    /** Можно ли сейчас отправить запрос. В HALF_OPEN разрешение получает только один пробный вызов. */
+    public synchronized boolean tryPass() {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (System.nanoTime() - openedAt < openNanos) return false;
+                state = State.HALF_OPEN;
+                probeInFlight = false;
+                // fall through
+            default:
+                if (probeInFlight) return false;
+                probeInFlight = true;
+                return true;
+        }
+    }
+
+    /** Пропустит ли {@link #tryPass()} запрос — без занятия пробного слота. */
+    public synchronized boolean isPassable() {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                return System.nanoTime() - openedAt >= openNanos;
+            default:
+                return !probeInFlight;
+        }
+    }
+
+    /** Исход вызова, пропущенного {@link #tryPass()}. */
+    public synchronized void record(boolean success, long latencyNanos) {
+        boolean failure = !success || latencyNanos > slowCallNanos;
+        if (state == State.HALF_OPEN) {
+            probeInFlight = false;
+            if (failure) {
+                open();
+            } else {
+                state = State.CLOSED;
+                reset();
+            }
+            return;
+        }
+        if (state == State.OPEN) return; // запоздавший ответ, начатый до размыкания
+
+        if (calls == WINDOW && failures[next]) failed--;
+        failures[next] = failure;
+        if (failure) failed++;
+        next = (next + 1) % WINDOW;
+        if (calls < WINDOW) calls++;
+
+        if (calls >= MIN_CALLS && failed >= calls * FAILURE_RATE) {
+            open();
+        }
+    }
+
+    /** Пробный вызов не состоялся (например, запрос отменили) — слот снова свободен. */
+    public synchronized void release() {
+        if (state == State.HALF_OPEN) probeInFlight = false;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    private void open() {
+        state = State.OPEN;
+        openedAt = System.nanoTime();
+        OPENED.inc();
+        reset();
+    }
+
+    private void reset() {
+        calls = 0;
+        failed = 0;
+        next = 0;
+        Arrays.fill(failures, false);
+    }
+}
@@ -0,0 +1,60 @@
+package com.example.nanoavatar.ai;
+
+/**
+ * Результат запроса к нейросети: текст ответа и расход токенов из блока usage.
+ *
+ * shared — ответ получен чужим вызовом (склейка в {@link SingleFlightReplyClient}):
+ * токены за него уже учтены у того, кто вызов сделал.
+ */
+public final class Completion {
+
+    /** Значение счётчика токенов, если агент не прислал usage. */
+    public static final int UNKNOWN = -1;
+
+    private final String content;
+    private final int promptTokens;
+    private final int completionTokens;
+    private final int totalTokens;
+    private final boolean shared;
+
+    public Completion(String content, int promptTokens, int completionTokens, int totalTokens) {
+        this(content, promptTokens, completionTokens, totalTokens, false);
+    }
+
+    private Completion(String content, int promptTokens, int completionTokens, int totalTokens, boolean shared) {
+        this.content = content;
+        this.promptTokens = promptTokens;
+        this.completionTokens = completionTokens;
+        this.totalTokens = totalTokens;
+        this.shared = shared;
+    }
+
+    /** Тот же ответ для того, кто его не оплачивал вызовом. */
+    public Completion asShared() {
+        return shared ? this : new Completion(content, promptTokens, completionTokens, totalTokens, true);
+    }
+
+    public String getContent() {
+        return content;
+    }
+
+    public int getPromptTokens() {
+        return promptTokens;
+    }
+
+    public int getCompletionTokens() {
+        return completionTokens;
+    }
+
+    public int getTotalTokens() {
+        return totalTokens;
+    }
+
+    public boolean hasUsage() {
+        return totalTokens != UNKNOWN;
+    }
+
+    public boolean isShared() {
+        return shared;
+    }
+}
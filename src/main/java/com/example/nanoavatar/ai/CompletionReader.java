@@ -0,0 +1,175 @@
+package com.example.nanoavatar.ai;
+
+import com.google.gson.JsonParser;
+import com.google.gson.Strictness;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Потоковый разбор ответа chat/completions.
+ *
+ * Читает JSON прямо из тела ответа и берёт только choices[0].message.content и usage,
+ * всё остальное пропускает не разбирая. Ни строки со всем телом, ни дерева JsonObject
+ * не создаётся — в памяти остаётся только сам текст ответа.
+ *
+ * content бывает строкой или массивом частей вида {"type": "text", "text": "..."}.
+ */
+final class CompletionReader {
+
+    private CompletionReader() {
+    }
+
+    static Completion read(Reader in) throws IOException {
+        JsonReader reader = new JsonReader(in);
+        // как и Gson.fromJson по умолчанию
+        reader.setStrictness(Strictness.LENIENT);
+        try {
+            String content = null;
+            boolean hasChoices = false;
+            int[] usage = {Completion.UNKNOWN, Completion.UNKNOWN, Completion.UNKNOWN};
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "choices":
+                        if (reader.peek() == JsonToken.BEGIN_ARRAY) {
+                            reader.beginArray();
+                            if (reader.hasNext()) {
+                                hasChoices = true;
+                                content = readChoice(reader);
+                            }
+                            while (reader.hasNext()) reader.skipValue();
+                            reader.endArray();
+                        } else {
+                            reader.skipValue();
+                        }
+                        break;
+                    case "usage":
+                        readUsage(reader, usage);
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+
+            if (!hasChoices) {
+                throw new IOException("No choices in Gemini response");
+            }
+            if (content == null) {
+                throw new IOException("Gemini API response doesn't contain message content");
+            }
+            return new Completion(content.trim(), usage[0], usage[1], usage[2]);
+        } catch (IllegalStateException | NumberFormatException e) {
+            // неожиданный тип значения в известном поле
+            throw new IOException("Malformed Gemini response: " + e.getMessage(), e);
+        }
+    }
+
+    /** choices[i]: ищем message.content. */
+    private static String readChoice(JsonReader reader) throws IOException {
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            reader.skipValue();
+            return null;
+        }
+        String content = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if ("message".equals(reader.nextName()) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    if ("content".equals(reader.nextName())) {
+                        content = readContent(reader);
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return content;
+    }
+
+    private static String readContent(JsonReader reader) throws IOException {
+        switch (reader.peek()) {
+            case STRING:
+            case NUMBER:
+            case BOOLEAN:
+                return reader.nextString();
+            case NULL:
+                reader.nextNull();
+                return null;
+            case BEGIN_ARRAY:
+                return readParts(reader);
+            default:
+                // неизвестная форма — отдаём как есть, как раньше
+                return JsonParser.parseReader(reader).toString();
+        }
+    }
+
+    /** Массив частей: склеиваем текстовые через пробел. */
+    private static String readParts(JsonReader reader) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                reader.skipValue();
+                continue;
+            }
+            String type = null;
+            String text = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if ("type".equals(name) && reader.peek() == JsonToken.STRING) {
+                    type = reader.nextString();
+                } else if ("text".equals(name) && reader.peek() != JsonToken.NULL) {
+                    text = reader.nextString();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            if ("text".equals(type) && text != null) {
+                sb.append(text).append(' ');
+            }
+        }
+        reader.endArray();
+        return sb.toString();
+    }
+
+    private static void readUsage(JsonReader reader, int[] usage) throws IOException {
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            reader.skipValue();
+            return;
+        }
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() != JsonToken.NUMBER) {
+                reader.skipValue();
+                continue;
+            }
+            switch (name) {
+                case "prompt_tokens":
+                    usage[0] = reader.nextInt();
+                    break;
+                case "completion_tokens":
+                    usage[1] = reader.nextInt();
+                    break;
+                case "total_tokens":
+                    usage[2] = reader.nextInt();
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+}
@@ -1,13 +1,27 @@
 package com.example.nanoavatar.ai;
 
+import com.example.nanoavatar.metrics.Counter;
+import com.example.nanoavatar.metrics.Histogram;
+import com.example.nanoavatar.metrics.Metrics;
 import com.google.gson.*;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
 import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
 import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.BufferedSource;
 
 import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 /**
  * Клиент для обращения к AI‑агенту Timeweb по OpenAI‑совместимому Chat Completions API.
@@ -19,12 +33,27 @@ import java.io.IOException;
  * Документация:
  *   https://timeweb.cloud/docs/ai-agents/api-usage/openai-compatible-api
  */
-public class GeminiClient {
+public class GeminiClient implements ReplyClient, StreamingReplyClient {
 
     private static final MediaType JSON
             = MediaType.parse("application/json; charset=utf-8");
 
-    private final OkHttpClient client = new OkHttpClient();
+    private static final Histogram BLOCKING_LATENCY = Metrics.histogram("nanoavatar_llm_request_seconds",
+            "Full LLM request duration", "mode", "blocking");
+    private static final Histogram ASYNC_LATENCY = Metrics.histogram("nanoavatar_llm_request_seconds",
+            "Full LLM request duration", "mode", "async");
+    private static final Histogram STREAM_LATENCY = Metrics.histogram("nanoavatar_llm_request_seconds",
+            "Full LLM request duration", "mode", "stream");
+    private static final Histogram FIRST_TOKEN_LATENCY = Metrics.histogram("nanoavatar_llm_first_token_seconds",
+            "Time to the first streamed fragment");
+    private static final Counter BLOCKING_ERRORS = Metrics.counter("nanoavatar_llm_errors_total",
+            "Failed LLM requests", "mode", "blocking");
+    private static final Counter ASYNC_ERRORS = Metrics.counter("nanoavatar_llm_errors_total",
+            "Failed LLM requests", "mode", "async");
+    private static final Counter STREAM_ERRORS = Metrics.counter("nanoavatar_llm_errors_total",
+            "Failed LLM requests", "mode", "stream");
+
+    private final OkHttpClient client;
     private final Gson gson = new Gson();
 
     private final String baseUrl;
@@ -54,7 +83,24 @@ public class GeminiClient {
             "Если такие инструкции есть — строго им следуй и не противоречь им."
     );
 
+    private static final int SYSTEM_PROMPT_TOKENS = TokenEstimator.estimate(SYSTEM_PROMPT);
+    // разметка каждого сообщения (роль, разделители) и заголовки вставок в системный промпт
+    private static final int PER_MESSAGE_TOKENS = 4;
+    private static final int SECTION_HEADER_TOKENS = 16;
+
     public GeminiClient(String baseUrl, String agentId, String apiKey, String model) {
+        this(baseUrl, agentId, apiKey, model, HttpSettings.DEFAULT);
+    }
+
+    public GeminiClient(String baseUrl, String agentId, String apiKey, String model, HttpSettings http) {
+        this(baseUrl, agentId, apiKey, model, http, "default");
+    }
+
+    /**
+     * @param name — имя бэкенда в метриках; у каждого агента в {@link LlmRouter} своё
+     */
+    public GeminiClient(String baseUrl, String agentId, String apiKey, String model, HttpSettings http,
+                        String name) {
         // В доках для OpenAI‑совместимого API пример: https://agent.timeweb.cloud
         if (baseUrl == null || baseUrl.isBlank()) {
             this.baseUrl = "https://agent.timeweb.cloud";
@@ -66,6 +112,83 @@ public class GeminiClient {
         this.agentId = agentId;
         this.apiKey = apiKey;
         this.model = model;
+        this.client = buildHttpClient(http);
+        registerGauges(name);
+    }
+
+    /**
+     * Сетевые настройки клиента. Значения по умолчанию OkHttp (64 запроса всего, 5 на хост,
+     * read timeout 10 с, без общего таймаута) для долгих ответов нейросети не подходят:
+     * все запросы идут на один хост агента, а ответ целиком может генерироваться минуту.
+     */
+    public static final class HttpSettings {
+
+        public static final HttpSettings DEFAULT = new HttpSettings(
+                128, 64, 16, 300, true, 5_000, 120_000, 180_000);
+
+        public final int maxRequests;
+        public final int maxRequestsPerHost;
+        public final int maxIdleConnections;
+        public final long keepAliveSeconds;
+        public final boolean http2;
+        public final long connectTimeoutMs;
+        public final long readTimeoutMs;
+        public final long callTimeoutMs;
+
+        /**
+         * @param maxRequests        — одновременных запросов всего (остальные ждут в очереди Dispatcher)
+         * @param maxRequestsPerHost — одновременных запросов к агенту; подбирается под его реальную ёмкость
+         * @param http2              — HTTP/2 через ALPN: запросы мультиплексируются в одно TLS-соединение
+         * @param readTimeoutMs      — пауза между байтами ответа (для обычного режима — до первого байта)
+         * @param callTimeoutMs      — весь вызов целиком, включая чтение ответа (0 — без ограничения)
+         */
+        public HttpSettings(int maxRequests, int maxRequestsPerHost, int maxIdleConnections,
+                            long keepAliveSeconds, boolean http2,
+                            long connectTimeoutMs, long readTimeoutMs, long callTimeoutMs) {
+            this.maxRequests = maxRequests;
+            this.maxRequestsPerHost = maxRequestsPerHost;
+            this.maxIdleConnections = maxIdleConnections;
+            this.keepAliveSeconds = keepAliveSeconds;
+            this.http2 = http2;
+            this.connectTimeoutMs = connectTimeoutMs;
+            this.readTimeoutMs = readTimeoutMs;
+            this.callTimeoutMs = callTimeoutMs;
+        }
+    }
+
+    private static OkHttpClient buildHttpClient(HttpSettings http) {
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(Math.max(1, http.maxRequests));
+        dispatcher.setMaxRequestsPerHost(Math.max(1, http.maxRequestsPerHost));
+
+        OkHttpClient.Builder builder = new OkHttpClient.Builder()
+                .dispatcher(dispatcher)
+                .connectionPool(new ConnectionPool(http.maxIdleConnections, http.keepAliveSeconds, TimeUnit.SECONDS))
+                .connectTimeout(http.connectTimeoutMs, TimeUnit.MILLISECONDS)
+                .readTimeout(http.readTimeoutMs, TimeUnit.MILLISECONDS)
+                .writeTimeout(http.connectTimeoutMs, TimeUnit.MILLISECONDS)
+                .callTimeout(http.callTimeoutMs, TimeUnit.MILLISECONDS);
+        if (http.http2) {
+            // ping держит мультиплексированное соединение живым и быстро замечает обрыв
+            builder.protocols(List.of(Protocol.HTTP_2, Protocol.HTTP_1_1))
+                    .pingInterval(30, TimeUnit.SECONDS);
+        } else {
+            builder.protocols(List.of(Protocol.HTTP_1_1));
+        }
+        return builder.build();
+    }
+
+    private void registerGauges(String name) {
+        Dispatcher dispatcher = client.dispatcher();
+        ConnectionPool pool = client.connectionPool();
+        Metrics.gauge("nanoavatar_llm_calls_running", "LLM HTTP calls in flight", dispatcher::runningCallsCount,
+                "backend", name);
+        Metrics.gauge("nanoavatar_llm_calls_queued", "LLM HTTP calls waiting for a dispatcher slot",
+                dispatcher::queuedCallsCount, "backend", name);
+        Metrics.gauge("nanoavatar_llm_connections", "Open connections to the LLM host", pool::connectionCount,
+                "backend", name);
+        Metrics.gauge("nanoavatar_llm_connections_idle", "Idle connections to the LLM host",
+                pool::idleConnectionCount, "backend", name);
     }
 
     /**
@@ -73,9 +196,170 @@ public class GeminiClient {
      *
      * @param modePrompt  — доп. инструкции под активные настройки (может быть null/пусто)
      * @param userPrompt  — сообщение пользователя
-     * @return текст ответа ассистента
+     * @return текст ответа ассистента и расход токенов
+     */
+    public Completion generateReply(String modePrompt, String userPrompt) throws IOException {
+        Request request = buildRequest(modePrompt, userPrompt, false);
+
+        long start = System.nanoTime();
+        try (Response response = client.newCall(request).execute()) {
+            return readReply(response);
+        } catch (IOException | RuntimeException e) {
+            BLOCKING_ERRORS.inc();
+            throw e;
+        } finally {
+            BLOCKING_LATENCY.recordSince(start);
+        }
+    }
+
+    /**
+     * То же, что {@link #generateReply}, но без блокировки потока: запрос ставится в очередь
+     * Dispatcher'а OkHttp, future завершается из его потока.
+     * Ошибки (HTTP, разбор ответа, таймауты) приходят как исключительное завершение с IOException.
+     * Отмена future отменяет и HTTP-вызов.
+     */
+    public CompletableFuture<Completion> generateReplyAsync(String modePrompt, String userPrompt) {
+        return generateReplyAsync(new ChatRequest(modePrompt, userPrompt, null));
+    }
+
+    @Override
+    public CompletableFuture<Completion> generateReplyAsync(ChatRequest chatRequest) {
+        CompletableFuture<Completion> result = new CompletableFuture<>();
+        Request request;
+        try {
+            request = buildRequest(chatRequest, false);
+        } catch (IllegalStateException e) {
+            ASYNC_ERRORS.inc();
+            result.completeExceptionally(e);
+            return result;
+        }
+
+        long start = System.nanoTime();
+        Call call = client.newCall(request);
+        call.enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                ASYNC_LATENCY.recordSince(start);
+                ASYNC_ERRORS.inc();
+                result.completeExceptionally(e);
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                try (response) {
+                    result.complete(readReply(response));
+                } catch (IOException | RuntimeException e) {
+                    ASYNC_ERRORS.inc();
+                    result.completeExceptionally(e);
+                } finally {
+                    ASYNC_LATENCY.recordSince(start);
+                }
+            }
+        });
+        result.whenComplete((reply, error) -> {
+            if (result.isCancelled()) call.cancel();
+        });
+        return result;
+    }
+
+    private Completion readReply(Response response) throws IOException {
+        ResponseBody body = response.body();
+        if (!response.isSuccessful()) {
+            String errorBody = body != null ? body.string() : "";
+            throw new IOException("Gemini API error: HTTP " + response.code()
+                    + " Body: " + errorBody);
+        }
+        if (body == null) {
+            throw new IOException("Gemini API returned empty body");
+        }
+        // разбираем прямо из потока, без промежуточной строки и дерева JSON
+        return CompletionReader.read(body.charStream());
+    }
+
+    /**
+     * Тот же запрос, но в режиме "stream": true.
+     * Ответ приходит как SSE (строки "data: {...}"), каждый кусок текста
+     * сразу отдаётся в onDelta — так пользователь видит ответ по мере генерации.
+     *
+     * @param onDelta — вызывается на каждый непустой фрагмент choices[0].delta.content
+     * @return полный текст ответа; usage — если агент прислал его в одном из чанков
      */
-    public String generateReply(String modePrompt, String userPrompt) throws IOException {
+    public Completion generateReplyStream(String modePrompt, String userPrompt,
+                                          Consumer<String> onDelta) throws IOException {
+        return generateReplyStream(new ChatRequest(modePrompt, userPrompt, null), onDelta);
+    }
+
+    @Override
+    public Completion generateReplyStream(ChatRequest chatRequest, Consumer<String> onDelta) throws IOException {
+        Request request = buildRequest(chatRequest, true);
+
+        long start = System.nanoTime();
+        try (Response response = client.newCall(request).execute()) {
+            ResponseBody body = response.body();
+            if (!response.isSuccessful()) {
+                String errorBody = body != null ? body.string() : "";
+                throw new IOException("Gemini API error: HTTP " + response.code()
+                        + " Body: " + errorBody);
+            }
+            if (body == null) {
+                throw new IOException("Gemini API returned empty stream");
+            }
+
+            StringBuilder full = new StringBuilder();
+            int[] usage = {Completion.UNKNOWN, Completion.UNKNOWN, Completion.UNKNOWN};
+            BufferedSource source = body.source();
+            String line;
+            while ((line = source.readUtf8Line()) != null) {
+                if (!line.startsWith("data:")) continue; // пустые строки, комментарии ":" и т.п.
+
+                String data = line.substring("data:".length()).trim();
+                if (data.isEmpty()) continue;
+                if ("[DONE]".equals(data)) break;
+
+                String delta = extractDeltaContent(data, usage);
+                if (delta != null && !delta.isEmpty()) {
+                    if (full.length() == 0) FIRST_TOKEN_LATENCY.recordSince(start);
+                    full.append(delta);
+                    onDelta.accept(delta);
+                }
+            }
+
+            if (full.length() == 0) {
+                throw new IOException("Gemini API stream doesn't contain message content");
+            }
+            return new Completion(full.toString().trim(), usage[0], usage[1], usage[2]);
+        } catch (IOException | RuntimeException e) {
+            STREAM_ERRORS.inc();
+            throw e;
+        } finally {
+            STREAM_LATENCY.recordSince(start);
+        }
+    }
+
+    /**
+     * Оценка размера запроса в токенах — того, что соберёт buildRequest, — без сериализации.
+     * Считается локально {@link TokenEstimator}, поэтому годится до отправки и списания кредитов.
+     */
+    public static int estimatePromptTokens(ChatRequest request) {
+        int tokens = SYSTEM_PROMPT_TOKENS + PER_MESSAGE_TOKENS;
+        if (request.getModePrompt() != null && !request.getModePrompt().isBlank()) {
+            tokens += SECTION_HEADER_TOKENS + TokenEstimator.estimate(request.getModePrompt());
+        }
+        if (request.getSummary() != null && !request.getSummary().isBlank()) {
+            tokens += SECTION_HEADER_TOKENS + TokenEstimator.estimate(request.getSummary());
+        }
+        for (ChatTurn turn : request.getHistory()) {
+            tokens += PER_MESSAGE_TOKENS + TokenEstimator.estimate(turn.getText());
+        }
+        return tokens + PER_MESSAGE_TOKENS + TokenEstimator.estimate(request.getUserPrompt());
+    }
+
+    // package-private для GeminiPayloadBenchmark
+    Request buildRequest(String modePrompt, String userPrompt, boolean stream) {
+        return buildRequest(new ChatRequest(modePrompt, userPrompt, null), stream);
+    }
+
+    Request buildRequest(ChatRequest chatRequest, boolean stream) {
         if (agentId == null || agentId.isBlank()) {
             throw new IllegalStateException("TIMEWEB_AGENT_ID is not configured");
         }
@@ -88,18 +372,32 @@ public class GeminiClient {
         // system
         JsonObject systemMsg = new JsonObject();
         systemMsg.addProperty("role", "system");
+        String modePrompt = chatRequest.getModePrompt();
         StringBuilder sysContent = new StringBuilder(SYSTEM_PROMPT);
         if (modePrompt != null && !modePrompt.isBlank()) {
             sysContent.append("\n\nДополнительные настройки стиля и поведения:\n");
             sysContent.append(modePrompt);
         }
+        String summary = chatRequest.getSummary();
+        if (summary != null && !summary.isBlank()) {
+            sysContent.append("\n\nКраткое содержание более ранней части разговора:\n");
+            sysContent.append(summary);
+        }
         systemMsg.addProperty("content", sysContent.toString());
         messages.add(systemMsg);
 
+        // последние реплики разговора
+        for (ChatTurn turn : chatRequest.getHistory()) {
+            JsonObject turnMsg = new JsonObject();
+            turnMsg.addProperty("role", turn.getRole().apiName());
+            turnMsg.addProperty("content", turn.getText());
+            messages.add(turnMsg);
+        }
+
         // user
         JsonObject userMsg = new JsonObject();
         userMsg.addProperty("role", "user");
-        userMsg.addProperty("content", userPrompt);
+        userMsg.addProperty("content", chatRequest.getUserPrompt());
         messages.add(userMsg);
 
         JsonObject payload = new JsonObject();
@@ -107,76 +405,70 @@ public class GeminiClient {
             payload.addProperty("model", model);
         }
         payload.add("messages", messages);
-        payload.addProperty("stream", false);
+        payload.addProperty("stream", stream);
+        if (stream) {
+            // без этого OpenAI-совместимый API не присылает usage в потоке; приходит последним чанком с пустым choices
+            JsonObject streamOptions = new JsonObject();
+            streamOptions.addProperty("include_usage", true);
+            payload.add("stream_options", streamOptions);
+        }
 
         String url = baseUrl + "/api/v1/cloud-ai/agents/" + agentId + "/v1/chat/completions";
 
         RequestBody body = RequestBody.create(JSON, gson.toJson(payload));
-        Request request = new Request.Builder()
+        Request.Builder builder = new Request.Builder()
                 .url(url)
                 .post(body)
                 .addHeader("Authorization", "Bearer " + apiKey)
-                .addHeader("content-type", "application/json")
-                .build();
-
-        try (Response response = client.newCall(request).execute()) {
-            String responseBody = response.body() != null ? response.body().string() : "";
-
-            if (!response.isSuccessful()) {
-                throw new IOException("Gemini API error: HTTP " + response.code()
-                        + " Body: " + responseBody);
-            }
-
-            String content = extractMessageContent(responseBody);
-            if (content == null) {
-                throw new IOException("Gemini API response doesn't contain message content");
-            }
-            return content.trim();
+                .addHeader("content-type", "application/json");
+        if (stream) {
+            builder.addHeader("Accept", "text/event-stream");
         }
+        return builder.build();
     }
 
     /**
-     * Достаём текст из choices[0].message.content
-     * (поддерживаем и строку, и массив объектов с type=text).
+     * Из SSE-чанка достаём choices[0].delta.content.
+     * Чанки без текста (role, finish_reason, usage) возвращают null; usage, если есть, пишется в usage.
      */
-    private String extractMessageContent(String json) throws IOException {
-        JsonObject root = gson.fromJson(json, JsonObject.class);
-        JsonArray choices = root.getAsJsonArray("choices");
-        if (choices == null || choices.size() == 0) {
-            throw new IOException("No choices in Gemini response");
+    private String extractDeltaContent(String json, int[] usage) throws IOException {
+        JsonElement parsed;
+        try {
+            parsed = JsonParser.parseString(json);
+        } catch (JsonParseException e) {
+            throw new IOException("Malformed Gemini stream chunk: " + json, e);
         }
-
-        JsonObject firstChoice = choices.get(0).getAsJsonObject();
-        JsonObject message = firstChoice.getAsJsonObject("message");
-        if (message == null) {
-            throw new IOException("No message field in Gemini response");
+        if (parsed.isJsonNull()) return null;
+        if (!parsed.isJsonObject()) {
+            throw new IOException("Malformed Gemini stream chunk: " + json);
         }
+        JsonObject chunk = parsed.getAsJsonObject();
 
-        JsonElement contentEl = message.get("content");
-        if (contentEl == null) {
-            throw new IOException("No content field in Gemini response");
+        JsonElement usageEl = chunk.get("usage");
+        if (usageEl != null && usageEl.isJsonObject()) {
+            JsonObject u = usageEl.getAsJsonObject();
+            usage[0] = intOrUnknown(u, "prompt_tokens");
+            usage[1] = intOrUnknown(u, "completion_tokens");
+            usage[2] = intOrUnknown(u, "total_tokens");
         }
 
-        if (contentEl.isJsonPrimitive()) {
-            return contentEl.getAsString();
-        }
+        // финальный чанк с usage приходит с пустым choices
+        JsonElement choicesEl = chunk.get("choices");
+        if (choicesEl == null || !choicesEl.isJsonArray()) return null;
+        JsonArray choices = choicesEl.getAsJsonArray();
+        if (choices.size() == 0 || !choices.get(0).isJsonObject()) return null;
 
-        if (contentEl.isJsonArray()) {
-            StringBuilder sb = new StringBuilder();
-            for (JsonElement partEl : contentEl.getAsJsonArray()) {
-                if (!partEl.isJsonObject()) continue;
-                JsonObject part = partEl.getAsJsonObject();
-                JsonElement typeEl = part.get("type");
-                if (typeEl != null && "text".equals(typeEl.getAsString())) {
-                    JsonElement textEl = part.get("text");
-                    if (textEl != null) {
-                        sb.append(textEl.getAsString()).append(" ");
-                    }
-                }
-            }
-            return sb.toString().trim();
-        }
+        JsonElement deltaEl = choices.get(0).getAsJsonObject().get("delta");
+        if (deltaEl == null || !deltaEl.isJsonObject()) return null;
+
+        JsonElement contentEl = deltaEl.getAsJsonObject().get("content");
+        if (contentEl == null || contentEl.isJsonNull()) return null;
+        return contentEl.isJsonPrimitive() ? contentEl.getAsString() : null;
+    }
 
-        return contentEl.toString();
+    private static int intOrUnknown(JsonObject obj, String name) {
+        JsonElement el = obj.get(name);
+        return el != null && el.isJsonPrimitive() && el.getAsJsonPrimitive().isNumber()
+                ? el.getAsInt() : Completion.UNKNOWN;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,177 @@
+package com.example.nanoavatar.ai;
+
+import com.example.nanoavatar.metrics.Counter;
+import com.example.nanoavatar.metrics.Metrics;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Хеджирование запросов к нейросети: срезаем хвост задержек.
+ *
+ * Если ответа нет дольше порога, отправляем тот же запрос ещё раз, берём первый успешный ответ,
+ * второй вызов отменяем. Порог — квантиль (обычно p95) задержек последних {@value #WINDOW} успешных
+ * запросов целиком, от старта основного вызова до ответа, но не меньше minDelayMs. Дубли ограничены бюджетом: не больше budgetPercent процентов от запросов,
+ * чтобы в перегрузку хеджирование не удваивало нагрузку.
+ *
+ * Ошибка возвращается, только если упали оба вызова (или единственный, если дубль не понадобился).
+ *
+ * Стоит над {@link LimitingReplyClient}: дубль берёт разрешение лимита наравне с обычными запросами,
+ * а когда цепочка ниже не примет запрос, дубль не отправляется. Потоковые ответы (STREAM_REPLIES)
+ * не хеджируются — отдавать пользователю фрагменты двух разных генераций нельзя.
+ */
+public class HedgingReplyClient implements ReplyClient {
+
+    private static final int WINDOW = 512;
+    // порог пересчитываем не на каждом ответе
+    private static final int RECOMPUTE_EVERY = 32;
+    private static final int MIN_SAMPLES = 50;
+    // копится не больше стольких неиспользованных дублей
+    private static final double MAX_BUDGET = 10.0;
+
+    private static final Counter HEDGES_FIRED = Metrics.counter("nanoavatar_llm_hedges_total",
+            "Hedged LLM requests by outcome", "outcome", "fired");
+    private static final Counter HEDGES_WON = Metrics.counter("nanoavatar_llm_hedges_total",
+            "Hedged LLM requests by outcome", "outcome", "won");
+    private static final Counter HEDGES_NO_BUDGET = Metrics.counter("nanoavatar_llm_hedges_total",
+            "Hedged LLM requests by outcome", "outcome", "no_budget");
+    private static final Counter HEDGES_BUSY = Metrics.counter("nanoavatar_llm_hedges_total",
+            "Hedged LLM requests by outcome", "outcome", "busy");
+
+    private final ReplyClient delegate;
+    private final double quantile;
+    private final long minDelayMs;
+    private final double budgetPerRequest;
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "llm-hedge-timer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // под this
+    private final long[] latencies = new long[WINDOW];
+    private int samples;
+    private int next;
+    private double budget = MAX_BUDGET;
+    private volatile long thresholdMs;
+
+    public HedgingReplyClient(ReplyClient delegate, double quantile, long minDelayMs, double budgetPercent) {
+        this.delegate = delegate;
+        this.quantile = quantile;
+        this.minDelayMs = minDelayMs;
+        this.budgetPerRequest = budgetPercent / 100.0;
+        this.thresholdMs = minDelayMs;
+        Metrics.gauge("nanoavatar_llm_hedge_threshold_seconds", "Current delay before a hedged LLM request",
+                () -> thresholdMs / 1000.0);
+    }
+
+    @Override
+    public boolean canAccept() {
+        return delegate.canAccept();
+    }
+
+    @Override
+    public CompletableFuture<Completion> generateReplyAsync(ChatRequest request) {
+        synchronized (this) {
+            budget = Math.min(MAX_BUDGET, budget + budgetPerRequest);
+        }
+        long start = System.nanoTime();
+        CompletableFuture<Completion> result = new CompletableFuture<>();
+        AtomicInteger pending = new AtomicInteger(1);
+
+        CompletableFuture<Completion> primary = call(request, result, pending, false);
+        CompletableFuture<?>[] hedge = new CompletableFuture<?>[1];
+        ScheduledFuture<?> timeout = timer.schedule(() -> {
+            if (result.isDone()) return;
+            // лимит и его очередь заняты — дубль получил бы отказ, а бюджет бы потратился
+            if (!delegate.canAccept()) {
+                HEDGES_BUSY.inc();
+                return;
+            }
+            if (!tryTakeBudget()) {
+                HEDGES_NO_BUDGET.inc();
+                return;
+            }
+            HEDGES_FIRED.inc();
+            pending.incrementAndGet();
+            CompletableFuture<Completion> second = call(request, result, pending, true);
+            synchronized (hedge) {
+                hedge[0] = second;
+            }
+            // основной мог ответить, пока мы отправляли дубль
+            if (result.isDone()) second.cancel(true);
+        }, thresholdMs, TimeUnit.MILLISECONDS);
+
+        // победитель найден или запрос отменён — лишнее отменяем
+        result.whenComplete((completion, error) -> {
+            // в порог идёт задержка всего запроса от старта основного вызова, кто бы ни ответил:
+            // отменённые медленные основные и короткие дубли иначе тянули бы квантиль вниз
+            if (error == null) recordLatency(System.nanoTime() - start);
+            timeout.cancel(false);
+            primary.cancel(true);
+            synchronized (hedge) {
+                if (hedge[0] != null) hedge[0].cancel(true);
+            }
+        });
+        return result;
+    }
+
+    private CompletableFuture<Completion> call(ChatRequest request, CompletableFuture<Completion> result,
+                                               AtomicInteger pending, boolean isHedge) {
+        CompletableFuture<Completion> upstream;
+        try {
+            upstream = delegate.generateReplyAsync(request);
+        } catch (RuntimeException e) {
+            upstream = CompletableFuture.failedFuture(e);
+        }
+        upstream.whenComplete((completion, error) -> {
+            if (error == null) {
+                if (result.complete(completion) && isHedge) HEDGES_WON.inc();
+            } else if (pending.decrementAndGet() == 0) {
+                // упали все отправленные вызовы
+                result.completeExceptionally(unwrap(error));
+            }
+        });
+        return upstream;
+    }
+
+    private synchronized boolean tryTakeBudget() {
+        if (budget < 1.0) return false;
+        budget -= 1.0;
+        return true;
+    }
+
+    private void recordLatency(long nanos) {
+        long[] snapshot = null;
+        synchronized (this) {
+            latencies[next] = nanos;
+            next = (next + 1) % WINDOW;
+            if (samples < WINDOW) samples++;
+            if (samples >= MIN_SAMPLES && next % RECOMPUTE_EVERY == 0) {
+                snapshot = Arrays.copyOf(latencies, samples);
+            }
+        }
+        if (snapshot != null) {
+            Arrays.sort(snapshot);
+            long q = snapshot[Math.min(snapshot.length - 1, (int) (quantile * snapshot.length))];
+            thresholdMs = Math.max(minDelayMs, TimeUnit.NANOSECONDS.toMillis(q));
+        }
+    }
+
+    public long getThresholdMs() {
+        return thresholdMs;
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        if (error instanceof CompletionException && error.getCause() != null) {
+            return error.getCause();
+        }
+        return error;
+    }
+}
@@ -0,0 +1,162 @@
+package com.example.nanoavatar.ai;
+
+import com.example.nanoavatar.metrics.Counter;
+import com.example.nanoavatar.metrics.Metrics;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Ограничение запросов к нейросети адаптивным лимитом {@link AdaptiveLimiter}.
+ *
+ * Свободно разрешение — запрос уходит сразу. Лимит исчерпан — ждёт в короткой очереди
+ * и уходит, как только какой-то вызов завершится. Очередь полна или предохранитель разомкнут —
+ * future сразу завершается {@link LlmBusyException}. Бот проверяет {@link #canAccept()}
+ * ещё до списания кредитов, так что обычно до отказа после списания не доходит.
+ */
+public class LimitingReplyClient implements ReplyClient {
+
+    private static final Counter REJECTED_BREAKER = rejected("breaker_open");
+    private static final Counter REJECTED_QUEUE = rejected("queue_full");
+
+    private final ReplyClient delegate;
+    private final AdaptiveLimiter limiter;
+    private final int queueDepth;
+    // под this
+    private final ArrayDeque<Pending> queue = new ArrayDeque<>();
+
+    public LimitingReplyClient(ReplyClient delegate, AdaptiveLimiter limiter, int queueDepth) {
+        this.delegate = delegate;
+        this.limiter = limiter;
+        this.queueDepth = Math.max(0, queueDepth);
+        limiter.setOnRelease(this::drain);
+        Metrics.gauge("nanoavatar_llm_limiter_queue", "Requests waiting for a limiter permit", this::getQueued);
+    }
+
+    private static Counter rejected(String reason) {
+        return Metrics.counter("nanoavatar_llm_rejected_total", "LLM requests refused by the limiter",
+                "reason", reason);
+    }
+
+    @Override
+    public boolean canAccept() {
+        if (!limiter.getBreaker().isPassable()) return false;
+        if (limiter.hasCapacity()) return true;
+        synchronized (this) {
+            return queue.size() < queueDepth;
+        }
+    }
+
+    @Override
+    public CompletableFuture<Completion> generateReplyAsync(ChatRequest request) {
+        CompletableFuture<Completion> result = new CompletableFuture<>();
+        if (!limiter.getBreaker().isPassable()) {
+            REJECTED_BREAKER.inc();
+            result.completeExceptionally(new LlmBusyException("LLM backend is temporarily unavailable"));
+            return result;
+        }
+        AdaptiveLimiter.Permit permit = limiter.tryAcquire();
+        if (permit != null) {
+            run(request, permit, result);
+            return result;
+        }
+        Pending pending = new Pending(request, result);
+        synchronized (this) {
+            if (queue.size() >= queueDepth) {
+                REJECTED_QUEUE.inc();
+                result.completeExceptionally(new LlmBusyException("Too many LLM requests in flight"));
+                return result;
+            }
+            queue.add(pending);
+        }
+        // отменённый в очереди запрос просто убираем
+        result.whenComplete((completion, error) -> {
+            if (result.isCancelled()) {
+                synchronized (this) {
+                    queue.remove(pending);
+                }
+            }
+        });
+        // все вызовы могли завершиться, пока мы вставали в очередь
+        drain();
+        return result;
+    }
+
+    public synchronized int getQueued() {
+        return queue.size();
+    }
+
+    private void run(ChatRequest request, AdaptiveLimiter.Permit permit, CompletableFuture<Completion> result) {
+        CompletableFuture<Completion> upstream;
+        try {
+            upstream = delegate.generateReplyAsync(request);
+        } catch (RuntimeException e) {
+            permit.cancel();
+            result.completeExceptionally(e);
+            return;
+        }
+        upstream.whenComplete((completion, error) -> {
+            if (error == null) {
+                permit.success();
+                result.complete(completion);
+            } else if (upstream.isCancelled()) {
+                permit.cancel();
+                result.cancel(false);
+            } else {
+                permit.failure();
+                result.completeExceptionally(error);
+            }
+        });
+        result.whenComplete((completion, error) -> {
+            if (result.isCancelled()) upstream.cancel(true);
+        });
+    }
+
+    /** Отдаёт освободившиеся разрешения ожидающим; при разомкнутом предохранителе очередь сбрасывается. */
+    private void drain() {
+        while (true) {
+            Pending next;
+            AdaptiveLimiter.Permit permit;
+            List<Pending> rejected = null;
+            synchronized (this) {
+                if (queue.isEmpty()) return;
+                if (limiter.getBreaker().isPassable()) {
+                    permit = limiter.tryAcquire();
+                    if (permit == null) return;
+                    next = queue.poll();
+                } else {
+                    permit = null;
+                    next = null;
+                    rejected = new ArrayList<>(queue);
+                    queue.clear();
+                }
+            }
+            if (rejected != null) {
+                // ответы бота (возврат кредита) выполняются уже вне блокировки
+                for (Pending pending : rejected) {
+                    REJECTED_BREAKER.inc();
+                    pending.result.completeExceptionally(
+                            new LlmBusyException("LLM backend is temporarily unavailable"));
+                }
+                return;
+            }
+            if (next.result.isDone()) {
+                permit.cancel();
+                continue;
+            }
+            run(next.request, permit, next.result);
+        }
+    }
+
+    private static final class Pending {
+        final ChatRequest request;
+        final CompletableFuture<Completion> result;
+
+        Pending(ChatRequest request, CompletableFuture<Completion> result) {
+            this.request = request;
+            this.result = result;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.example.nanoavatar.ai;
+
+import com.example.nanoavatar.metrics.Counter;
+import com.example.nanoavatar.metrics.Metrics;
+
+import java.io.IOException;
+import java.util.function.Consumer;
+
+/**
+ * Адаптивный лимит {@link AdaptiveLimiter} для потоковых ответов — тот же, что у {@link LimitingReplyClient}.
+ *
+ * Стоит под {@link SingleFlightStreamingClient}, так что разрешение берёт только первый из одинаковых
+ * запросов, а задержку лимитеру сообщает только настоящий вызов нейросети. Очереди нет: поток ответа
+ * и так держит рабочий поток чата, поэтому без свободного разрешения сразу {@link LlmBusyException}.
+ * Бот проверяет {@link #canAccept(ChatRequest)} ещё до списания кредитов.
+ */
+public class LimitingStreamingClient implements StreamingReplyClient {
+
+    private static final Counter REJECTED_BREAKER = rejected("breaker_open");
+    private static final Counter REJECTED_LIMIT = rejected("limit_reached");
+
+    private final StreamingReplyClient delegate;
+    private final AdaptiveLimiter limiter;
+
+    public LimitingStreamingClient(StreamingReplyClient delegate, AdaptiveLimiter limiter) {
+        this.delegate = delegate;
+        this.limiter = limiter;
+    }
+
+    private static Counter rejected(String reason) {
+        return Metrics.counter("nanoavatar_llm_rejected_total", "LLM requests refused by the limiter",
+                "reason", reason);
+    }
+
+    @Override
+    public boolean canAccept(ChatRequest request) {
+        return limiter.getBreaker().isPassable() && limiter.hasCapacity();
+    }
+
+    @Override
+    public Completion generateReplyStream(ChatRequest request, Consumer<String> onDelta) throws IOException {
+        if (!limiter.getBreaker().isPassable()) {
+            REJECTED_BREAKER.inc();
+            throw new LlmBusyException("LLM backend is temporarily unavailable");
+        }
+        AdaptiveLimiter.Permit permit = limiter.tryAcquire();
+        if (permit == null) {
+            REJECTED_LIMIT.inc();
+            throw new LlmBusyException("Too many LLM requests in flight");
+        }
+        try {
+            Completion completion = delegate.generateReplyStream(request, onDelta);
+            permit.success();
+            return completion;
+        } catch (IOException | RuntimeException e) {
+            permit.failure();
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package com.example.nanoavatar.ai;
+
+import com.example.nanoavatar.metrics.Counter;
+import com.example.nanoavatar.metrics.Histogram;
+import com.example.nanoavatar.metrics.Metrics;
+
+/**
+ * Один OpenAI-совместимый бэкенд для {@link LlmRouter}: клиент, вес и состояние для выбора.
+ *
+ * Задержка оценивается peak-EWMA: ответ медленнее оценки сразу поднимает её до себя,
+ * более быстрые ответы и простой плавно опускают (постоянная затухания {@value #DECAY_SECONDS} с).
+ * Так один медленный ответ тут же уводит трафик с бэкенда, а вернётся он постепенно.
+ */
+public class LlmBackend {
+
+    private static final double DECAY_SECONDS = 10.0;
+    private static final double DECAY_NANOS = DECAY_SECONDS * 1e9;
+    // оценка для бэкенда без единого ответа — чтобы новый не забирал весь трафик
+    private static final double INITIAL_RTT_NANOS = 1e9;
+    // ejection удлиняется вдвое при каждом повторе подряд, но не больше чем в столько раз
+    private static final int MAX_EJECT_MULTIPLIER = 8;
+
+    private final String name;
+    private final GeminiClient client;
+    private final int weight;
+    private final int maxConcurrent;
+
+    private final Histogram latency;
+    private final Counter successes;
+    private final Counter failures;
+    private final Counter ejections;
+
+    // под this
+    private int inFlight;
+    private double ewmaNanos = INITIAL_RTT_NANOS;
+    private long stampNanos = System.nanoTime();
+    private int consecutiveFailures;
+    private int ejectMultiplier = 1;
+    private long ejectedUntil;
+
+    /**
+     * @param weight        — доля трафика относительно остальных при равной задержке
+     * @param maxConcurrent — предел одновременных запросов к бэкенду (0 — без предела)
+     */
+    public LlmBackend(String name, GeminiClient client, int weight, int maxConcurrent) {
+        this.name = name;
+        this.client = client;
+        this.weight = Math.max(1, weight);
+        this.maxConcurrent = Math.max(0, maxConcurrent);
+
+        latency = Metrics.histogram("nanoavatar_llm_backend_seconds", "LLM request duration by backend",
+                "backend", name);
+        successes = Metrics.counter("nanoavatar_llm_backend_requests_total", "LLM requests routed to a backend",
+                "backend", name, "result", "success");
+        failures = Metrics.counter("nanoavatar_llm_backend_requests_total", "LLM requests routed to a backend",
+                "backend", name, "result", "failure");
+        ejections = Metrics.counter("nanoavatar_llm_backend_ejections_total",
+                "Times a backend was taken out of rotation", "backend", name);
+        Metrics.gauge("nanoavatar_llm_backend_in_flight", "LLM requests in flight by backend",
+                this::getInFlight, "backend", name);
+        Metrics.gauge("nanoavatar_llm_backend_ewma_seconds", "Peak-EWMA latency estimate by backend",
+                () -> getEwmaNanos() / 1e9, "backend", name);
+        Metrics.gauge("nanoavatar_llm_backend_ejected", "1 while the backend is out of rotation",
+                () -> isEjected(System.nanoTime()) ? 1 : 0, "backend", name);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    GeminiClient getClient() {
+        return client;
+    }
+
+    synchronized boolean isEjected(long now) {
+        return now - ejectedUntil < 0;
+    }
+
+    synchronized boolean hasCapacity() {
+        return maxConcurrent == 0 || inFlight < maxConcurrent;
+    }
+
+    /** Стоимость нового запроса: задержка × (запросов в работе + 1) / вес. Меньше — лучше. */
+    synchronized double cost(long now) {
+        decay(now, 0);
+        return ewmaNanos * (inFlight + 1) / weight;
+    }
+
+    /** Занимает слот; false, если бэкенд уже на пределе. */
+    synchronized boolean tryAcquire() {
+        if (maxConcurrent > 0 && inFlight >= maxConcurrent) return false;
+        inFlight++;
+        return true;
+    }
+
+    /** Исход запроса; вернёт true, если бэкенд из-за него выведен из ротации. */
+    boolean release(long startedAt, Boolean success, int ejectAfterFailures, long ejectNanos,
+                    boolean canEject) {
+        long now = System.nanoTime();
+        long rtt = now - startedAt;
+        boolean ejected = false;
+        synchronized (this) {
+            inFlight--;
+            if (success == null) return false; // отменён — о бэкенде ничего не говорит
+            if (success) {
+                decay(now, rtt);
+                consecutiveFailures = 0;
+                ejectMultiplier = 1;
+            } else {
+                // ошибка тоже дорогая: не даём ей сделать бэкенд «быстрым»
+                decay(now, Math.max(rtt, (long) ewmaNanos));
+                consecutiveFailures++;
+                if (consecutiveFailures >= ejectAfterFailures && canEject && !isEjected(now)) {
+                    ejectedUntil = now + ejectNanos * ejectMultiplier;
+                    ejectMultiplier = Math.min(MAX_EJECT_MULTIPLIER, ejectMultiplier * 2);
+                    // после возврата одна ошибка снова выведет его из ротации
+                    consecutiveFailures = ejectAfterFailures - 1;
+                    ejected = true;
+                }
+            }
+        }
+        latency.record(rtt);
+        (success ? successes : failures).inc();
+        if (ejected) ejections.inc();
+        return ejected;
+    }
+
+    private void decay(long now, long rttNanos) {
+        if (rttNanos > ewmaNanos) {
+            ewmaNanos = rttNanos;
+        } else {
+            double w = Math.exp(-Math.max(0, now - stampNanos) / DECAY_NANOS);
+            ewmaNanos = ewmaNanos * w + rttNanos * (1 - w);
+        }
+        stampNanos = now;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    synchronized double getEwmaNanos() {
+        return ewmaNanos;
+    }
+}
@@ -0,0 +1,16 @@
+package com.example.nanoavatar.ai;
+
+import java.io.IOException;
+
+/**
+ * Запрос не отправлен: бэкенд нейросети перегружен (исчерпан лимит и очередь)
+ * или предохранитель разомкнут. Повторить стоит через некоторое время.
+ */
+public class LlmBusyException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public LlmBusyException(String message) {
+        super(message);
+    }
+}
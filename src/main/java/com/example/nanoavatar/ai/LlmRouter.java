@@ -0,0 +1,128 @@
+package com.example.nanoavatar.ai;
+
+import com.example.nanoavatar.metrics.Counter;
+import com.example.nanoavatar.metrics.Metrics;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+
+/**
+ * Маршрутизатор запросов по нескольким OpenAI-совместимым бэкендам (агенты Timeweb и т.п.).
+ *
+ * Каждый запрос уходит на бэкенд с наименьшей стоимостью {@link LlmBackend#cost}:
+ * peak-EWMA задержки × (запросов в работе + 1) / вес. Бэкенды на пределе maxConcurrent
+ * и выведенные из ротации не рассматриваются. После ejectAfterFailures ошибок подряд бэкенд
+ * выводится на ejectMs (при повторах дольше), но последний живой — никогда: когда падают все,
+ * дальше разбирается предохранитель лимитера.
+ *
+ * Нет ни одного свободного бэкенда — future сразу завершается {@link LlmBusyException}.
+ */
+public class LlmRouter implements ReplyClient, StreamingReplyClient {
+
+    private static final Counter NO_BACKEND = Metrics.counter("nanoavatar_llm_router_rejected_total",
+            "LLM requests with no backend available");
+
+    private final List<LlmBackend> backends;
+    private final int ejectAfterFailures;
+    private final long ejectNanos;
+
+    public LlmRouter(List<LlmBackend> backends, int ejectAfterFailures, long ejectMs) {
+        if (backends.isEmpty()) {
+            throw new IllegalArgumentException("At least one LLM backend is required");
+        }
+        this.backends = List.copyOf(backends);
+        this.ejectAfterFailures = Math.max(1, ejectAfterFailures);
+        this.ejectNanos = ejectMs * 1_000_000L;
+    }
+
+    @Override
+    public boolean canAccept() {
+        long now = System.nanoTime();
+        for (LlmBackend backend : backends) {
+            if (!backend.isEjected(now) && backend.hasCapacity()) return true;
+        }
+        return false;
+    }
+
+    @Override
+    public CompletableFuture<Completion> generateReplyAsync(ChatRequest request) {
+        LlmBackend backend = acquire();
+        if (backend == null) {
+            return CompletableFuture.failedFuture(new LlmBusyException("All LLM backends are busy or ejected"));
+        }
+        long start = System.nanoTime();
+        CompletableFuture<Completion> upstream;
+        try {
+            upstream = backend.getClient().generateReplyAsync(request);
+        } catch (RuntimeException e) {
+            release(backend, start, false);
+            throw e;
+        }
+        upstream.whenComplete((completion, error) ->
+                release(backend, start, error == null ? Boolean.TRUE : upstream.isCancelled() ? null : Boolean.FALSE));
+        return upstream;
+    }
+
+    @Override
+    public Completion generateReplyStream(ChatRequest request, Consumer<String> onDelta) throws IOException {
+        LlmBackend backend = acquire();
+        if (backend == null) {
+            throw new LlmBusyException("All LLM backends are busy or ejected");
+        }
+        long start = System.nanoTime();
+        Boolean success = Boolean.FALSE;
+        try {
+            Completion reply = backend.getClient().generateReplyStream(request, onDelta);
+            success = Boolean.TRUE;
+            return reply;
+        } finally {
+            release(backend, start, success);
+        }
+    }
+
+    /** Самый дешёвый доступный бэкенд с уже занятым слотом или null. */
+    private LlmBackend acquire() {
+        int n = backends.size();
+        while (true) {
+            long now = System.nanoTime();
+            // случайная точка старта — при равной стоимости нагрузка не липнет к первому в списке
+            int offset = ThreadLocalRandom.current().nextInt(n);
+            LlmBackend best = null;
+            double bestCost = Double.MAX_VALUE;
+            for (int i = 0; i < n; i++) {
+                LlmBackend backend = backends.get((offset + i) % n);
+                if (backend.isEjected(now) || !backend.hasCapacity()) continue;
+                double cost = backend.cost(now);
+                if (cost < bestCost) {
+                    best = backend;
+                    bestCost = cost;
+                }
+            }
+            if (best == null) {
+                NO_BACKEND.inc();
+                return null;
+            }
+            // слот могли занять между проверкой и захватом — выбираем заново
+            if (best.tryAcquire()) return best;
+        }
+    }
+
+    private void release(LlmBackend backend, long startedAt, Boolean success) {
+        backend.release(startedAt, success, ejectAfterFailures, ejectNanos, hasOtherLive(backend));
+    }
+
+    private boolean hasOtherLive(LlmBackend except) {
+        long now = System.nanoTime();
+        for (LlmBackend backend : backends) {
+            if (backend != except && !backend.isEjected(now)) return true;
+        }
+        return false;
+    }
+
+    public List<LlmBackend> getBackends() {
+        return backends;
+    }
+}
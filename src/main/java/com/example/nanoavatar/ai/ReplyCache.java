@@ -0,0 +1,242 @@
+package com.example.nanoavatar.ai;
+
+import com.example.nanoavatar.metrics.Counter;
+import com.example.nanoavatar.metrics.Metrics;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Ограниченный кэш ответов нейросети для повторяющихся запросов.
+ *
+ * Ключ — SHA-256 от (modePrompt, нормализованный userPrompt).
+ * Вытеснение в духе W-TinyLFU: новые записи попадают в маленькое LRU-окно,
+ * а в основную область проходят, только если встречаются чаще, чем её LRU-жертва
+ * (частоты считает count-min sketch с периодическим "старением").
+ * У каждой записи есть TTL.
+ */
+public class ReplyCache {
+
+    private static final Counter EVICTIONS = Metrics.counter("nanoavatar_reply_cache_evictions_total",
+            "Reply cache entries evicted from the main area");
+
+    private final int windowCapacity;
+    private final int mainCapacity;
+    private final long ttlMillis;
+
+    // LRU-порядок: первый элемент — самый давно использованный
+    private final LinkedHashMap<Key, Entry> window = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<Key, Entry> main = new LinkedHashMap<>(16, 0.75f, true);
+    private final FrequencySketch sketch;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+
+    public ReplyCache(int maxEntries, long ttlMillis) {
+        int capacity = Math.max(2, maxEntries);
+        this.windowCapacity = Math.max(1, capacity / 100);
+        this.mainCapacity = capacity - windowCapacity;
+        this.ttlMillis = ttlMillis;
+        this.sketch = new FrequencySketch(capacity);
+    }
+
+    /** Ключ кэша: одинаковые настройки + одинаковый (с точностью до регистра и пробелов) запрос. */
+    public static Key keyOf(String modePrompt, String userPrompt) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update((modePrompt == null ? "" : modePrompt).getBytes(StandardCharsets.UTF_8));
+            md.update((byte) 0);
+            md.update(normalize(userPrompt).getBytes(StandardCharsets.UTF_8));
+            ByteBuffer digest = ByteBuffer.wrap(md.digest());
+            return new Key(digest.getLong(), digest.getLong());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    static String normalize(String prompt) {
+        if (prompt == null) return "";
+        return prompt.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+    }
+
+    public synchronized String get(Key key) {
+        sketch.increment(key.hashCode());
+
+        Entry entry = window.get(key);
+        if (entry == null) entry = main.get(key);
+
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        if (entry.expiresAt < System.currentTimeMillis()) {
+            window.remove(key);
+            main.remove(key);
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry.value;
+    }
+
+    public synchronized void put(Key key, String reply) {
+        Entry entry = new Entry(reply, System.currentTimeMillis() + ttlMillis);
+        if (main.containsKey(key)) {
+            main.put(key, entry);
+            return;
+        }
+        window.put(key, entry);
+        if (window.size() <= windowCapacity) return;
+
+        // самый старый из окна претендует на место в основной области
+        Iterator<Map.Entry<Key, Entry>> it = window.entrySet().iterator();
+        Map.Entry<Key, Entry> candidate = it.next();
+        it.remove();
+        admit(candidate.getKey(), candidate.getValue());
+    }
+
+    private void admit(Key candidateKey, Entry candidate) {
+        if (main.size() < mainCapacity) {
+            main.put(candidateKey, candidate);
+            return;
+        }
+
+        Iterator<Map.Entry<Key, Entry>> it = main.entrySet().iterator();
+        Map.Entry<Key, Entry> victim = it.next();
+
+        // протухшую жертву выкидываем без сравнения частот
+        boolean victimExpired = victim.getValue().expiresAt < System.currentTimeMillis();
+        if (victimExpired
+                || sketch.frequency(candidateKey.hashCode()) > sketch.frequency(victim.getKey().hashCode())) {
+            it.remove();
+            evictions.increment();
+            EVICTIONS.inc();
+            main.put(candidateKey, candidate);
+        } else {
+            rejections.increment();
+        }
+    }
+
+    // ===== МЕТРИКИ =====
+
+    public long getHits() { return hits.sum(); }
+    public long getMisses() { return misses.sum(); }
+    public long getEvictions() { return evictions.sum(); }
+    /** Сколько кандидатов не прошли фильтр частоты. */
+    public long getRejections() { return rejections.sum(); }
+
+    public double getHitRate() {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return total == 0 ? 0.0 : (double) h / total;
+    }
+
+    public synchronized int size() {
+        return window.size() + main.size();
+    }
+
+    public static final class Key {
+        private final long hi;
+        private final long lo;
+
+        Key(long hi, long lo) {
+            this.hi = hi;
+            this.lo = lo;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return hi == other.hi && lo == other.lo;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(hi ^ lo);
+        }
+    }
+
+    private static final class Entry {
+        final String value;
+        final long expiresAt;
+
+        Entry(String value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * Count-min sketch на 4 строки с 4-битными по смыслу счётчиками (максимум 15).
+     * После sampleSize инкрементов все счётчики делятся пополам — старая популярность забывается.
+     */
+    private static final class FrequencySketch {
+        private static final int DEPTH = 4;
+        private static final int MAX_COUNT = 15;
+
+        private final int[][] table;
+        private final int[] seeds = new int[DEPTH];
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(int capacity) {
+            int width = Integer.highestOneBit(Math.max(16, capacity) * 2 - 1);
+            this.table = new int[DEPTH][width];
+            this.mask = width - 1;
+            this.sampleSize = 10 * capacity;
+            for (int i = 0; i < DEPTH; i++) {
+                seeds[i] = ThreadLocalRandom.current().nextInt() | 1;
+            }
+        }
+
+        void increment(int hash) {
+            boolean added = false;
+            for (int i = 0; i < DEPTH; i++) {
+                int idx = index(hash, i);
+                if (table[i][idx] < MAX_COUNT) {
+                    table[i][idx]++;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                reset();
+            }
+        }
+
+        int frequency(int hash) {
+            int min = MAX_COUNT;
+            for (int i = 0; i < DEPTH; i++) {
+                min = Math.min(min, table[i][index(hash, i)]);
+            }
+            return min;
+        }
+
+        private int index(int hash, int row) {
+            int h = hash * seeds[row];
+            h ^= h >>> 16;
+            return h & mask;
+        }
+
+        private void reset() {
+            for (int[] row : table) {
+                for (int j = 0; j < row.length; j++) {
+                    row[j] >>>= 1;
+                }
+            }
+            additions /= 2;
+        }
+    }
+}
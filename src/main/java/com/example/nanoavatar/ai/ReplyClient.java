@@ -0,0 +1,23 @@
+package com.example.nanoavatar.ai;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Асинхронный источник ответов нейросети.
+ *
+ * Реализации складываются цепочкой поверх {@link GeminiClient}
+ * (например, {@link SingleFlightReplyClient}) — бот работает с верхним звеном и не знает, что под ним.
+ * Ошибки приходят исключительным завершением future, обычно IOException.
+ */
+public interface ReplyClient {
+
+    CompletableFuture<Completion> generateReplyAsync(ChatRequest request);
+
+    /**
+     * Примет ли цепочка запрос прямо сейчас. Бот спрашивает до списания кредитов,
+     * чтобы при перегрузке сразу ответить «занято», а не списывать и возвращать.
+     */
+    default boolean canAccept() {
+        return true;
+    }
+}
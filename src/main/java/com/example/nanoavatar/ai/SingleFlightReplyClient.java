@@ -0,0 +1,172 @@
+package com.example.nanoavatar.ai;
+
+import com.example.nanoavatar.metrics.Counter;
+import com.example.nanoavatar.metrics.Metrics;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Склейка одинаковых запросов, которые летят одновременно (single-flight).
+ *
+ * Первый запрос с данным ключом {@link ChatRequest#getKey()} уходит к нейросети, остальные,
+ * пришедшие до ответа, ждут его же результат — и ответ, и ошибку. У каждого ожидающего своя future:
+ * отмена одной не трогает остальных, а когда отменились все, отменяется и сам вызов.
+ *
+ * На ключ действует общий таймаут: если ответа нет за timeoutMs, все ожидающие получают IOException
+ * (бот вернёт каждому кредит), вызов отменяется, следующий запрос с тем же ключом пойдёт заново.
+ * Запросы без ключа проходят насквозь.
+ */
+public class SingleFlightReplyClient implements ReplyClient {
+
+    private static final Counter LEADERS = Metrics.counter("nanoavatar_llm_single_flight_total",
+            "Requests by single-flight role", "mode", "async", "role", "leader");
+    private static final Counter FOLLOWERS = Metrics.counter("nanoavatar_llm_single_flight_total",
+            "Requests by single-flight role", "mode", "async", "role", "follower");
+    private static final Counter TIMEOUTS = Metrics.counter("nanoavatar_llm_single_flight_timeouts_total",
+            "Shared LLM calls abandoned after the per-key timeout", "mode", "async");
+
+    private final ReplyClient delegate;
+    private final long timeoutMs;
+    private final Map<ReplyCache.Key, Flight> flights = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "single-flight-timer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public SingleFlightReplyClient(ReplyClient delegate, long timeoutMs) {
+        this.delegate = delegate;
+        this.timeoutMs = timeoutMs;
+        Metrics.gauge("nanoavatar_llm_single_flight_keys", "Distinct prompts currently in flight", flights::size);
+    }
+
+    @Override
+    public CompletableFuture<Completion> generateReplyAsync(ChatRequest request) {
+        ReplyCache.Key key = request.getKey();
+        if (key == null) {
+            return delegate.generateReplyAsync(request);
+        }
+        while (true) {
+            Flight flight = flights.get(key);
+            if (flight == null) {
+                Flight created = new Flight(key);
+                if (flights.putIfAbsent(key, created) == null) {
+                    LEADERS.inc();
+                    // сначала встаём в ожидание, потом стартуем: вызов может упасть сразу
+                    CompletableFuture<Completion> waiter = created.join(true);
+                    start(created, request);
+                    return waiter;
+                }
+                continue;
+            }
+            CompletableFuture<Completion> waiter = flight.join(false);
+            if (waiter != null) {
+                FOLLOWERS.inc();
+                return waiter;
+            }
+            // вызов только что завершился и убирается из карты — начинаем новый
+        }
+    }
+
+    @Override
+    public boolean canAccept() {
+        return delegate.canAccept();
+    }
+
+    private void start(Flight flight, ChatRequest request) {
+        CompletableFuture<Completion> upstream;
+        try {
+            upstream = delegate.generateReplyAsync(request);
+        } catch (RuntimeException e) {
+            finish(flight, null, e);
+            return;
+        }
+        flight.upstream = upstream;
+        flight.timeout = timer.schedule(() -> {
+            if (finish(flight, null, new IOException("LLM request timed out after " + timeoutMs + " ms"))) {
+                TIMEOUTS.inc();
+                upstream.cancel(true);
+            }
+        }, timeoutMs, TimeUnit.MILLISECONDS);
+        upstream.whenComplete((completion, error) -> finish(flight, completion, unwrap(error)));
+    }
+
+    /** Завершает вызов для всех ожидающих; true, если именно этот вызов его завершил. */
+    private boolean finish(Flight flight, Completion completion, Throwable error) {
+        synchronized (flight) {
+            if (flight.closed) return false;
+            flight.closed = true;
+        }
+        flights.remove(flight.key, flight);
+        ScheduledFuture<?> timeout = flight.timeout;
+        if (timeout != null) timeout.cancel(false);
+        if (error != null) {
+            flight.result.completeExceptionally(error);
+        } else {
+            flight.result.complete(completion);
+        }
+        return true;
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        if (error instanceof CompletionException && error.getCause() != null) {
+            return error.getCause();
+        }
+        return error;
+    }
+
+    private final class Flight {
+        final ReplyCache.Key key;
+        final CompletableFuture<Completion> result = new CompletableFuture<>();
+        volatile CompletableFuture<Completion> upstream;
+        volatile ScheduledFuture<?> timeout;
+        // под this
+        int waiters;
+        boolean closed;
+
+        Flight(ReplyCache.Key key) {
+            this.key = key;
+        }
+
+        /**
+         * Новая future ожидающего или null, если вызов уже завершён.
+         * Остальным ответ отдаётся помеченным {@link Completion#asShared()} — токены учтёт лидер.
+         */
+        synchronized CompletableFuture<Completion> join(boolean leader) {
+            if (closed) return null;
+            waiters++;
+            CompletableFuture<Completion> waiter = new CompletableFuture<>();
+            result.whenComplete((completion, error) -> {
+                if (error != null) {
+                    waiter.completeExceptionally(error);
+                } else {
+                    waiter.complete(leader ? completion : completion.asShared());
+                }
+            });
+            waiter.whenComplete((completion, error) -> {
+                if (waiter.isCancelled()) leave();
+            });
+            return waiter;
+        }
+
+        private void leave() {
+            synchronized (this) {
+                if (--waiters > 0) return;
+            }
+            // ответ больше никому не нужен
+            if (finish(this, null, new CancellationException("All waiters cancelled"))) {
+                CompletableFuture<Completion> call = upstream;
+                if (call != null) call.cancel(true);
+            }
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.example.nanoavatar.ai;
+
+import com.example.nanoavatar.metrics.Counter;
+import com.example.nanoavatar.metrics.Metrics;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Склейка одинаковых одновременных потоковых запросов — то же, что {@link SingleFlightReplyClient},
+ * для режима STREAM_REPLIES.
+ *
+ * Первый запрос с данным ключом {@link ChatRequest#getKey()} идёт к нейросети в потоке вызывающего;
+ * фрагменты ответа копятся в общем вызове. Остальные, пришедшие до конца ответа, в своих потоках
+ * получают уже пришедшие фрагменты, затем новые по мере генерации, и в конце тот же ответ
+ * (помеченный {@link Completion#isShared()}) или ту же ошибку.
+ *
+ * Ожидающий ждёт не дольше timeoutMs, после чего получает IOException; сам вызов при этом
+ * продолжается — он принадлежит первому запросу. Лимит ({@link LimitingStreamingClient}) стоит ниже,
+ * так что ожидающие разрешений не занимают. Запросы без ключа проходят насквозь.
+ */
+public class SingleFlightStreamingClient implements StreamingReplyClient {
+
+    private static final Counter LEADERS = Metrics.counter("nanoavatar_llm_single_flight_total",
+            "Requests by single-flight role", "mode", "stream", "role", "leader");
+    private static final Counter FOLLOWERS = Metrics.counter("nanoavatar_llm_single_flight_total",
+            "Requests by single-flight role", "mode", "stream", "role", "follower");
+    private static final Counter TIMEOUTS = Metrics.counter("nanoavatar_llm_single_flight_timeouts_total",
+            "Shared LLM calls abandoned after the per-key timeout", "mode", "stream");
+
+    private final StreamingReplyClient delegate;
+    private final long timeoutMs;
+    private final Map<ReplyCache.Key, Flight> flights = new ConcurrentHashMap<>();
+
+    public SingleFlightStreamingClient(StreamingReplyClient delegate, long timeoutMs) {
+        this.delegate = delegate;
+        this.timeoutMs = timeoutMs;
+        Metrics.gauge("nanoavatar_llm_single_flight_stream_keys", "Distinct streamed prompts currently in flight",
+                flights::size);
+    }
+
+    @Override
+    public boolean canAccept(ChatRequest request) {
+        ReplyCache.Key key = request.getKey();
+        return (key != null && flights.containsKey(key)) || delegate.canAccept(request);
+    }
+
+    @Override
+    public Completion generateReplyStream(ChatRequest request, Consumer<String> onDelta) throws IOException {
+        ReplyCache.Key key = request.getKey();
+        if (key == null) {
+            return delegate.generateReplyStream(request, onDelta);
+        }
+        Flight created = new Flight();
+        Flight flight = flights.putIfAbsent(key, created);
+        if (flight != null) {
+            FOLLOWERS.inc();
+            return flight.follow(onDelta, timeoutMs);
+        }
+
+        LEADERS.inc();
+        try {
+            Completion completion = delegate.generateReplyStream(request, delta -> {
+                created.publish(delta);
+                onDelta.accept(delta);
+            });
+            flights.remove(key, created);
+            created.complete(completion, null);
+            return completion;
+        } catch (IOException | RuntimeException e) {
+            flights.remove(key, created);
+            created.complete(null, e);
+            throw e;
+        }
+    }
+
+    private static final class Flight {
+        // под this
+        private final List<String> deltas = new ArrayList<>();
+        private boolean done;
+        private Completion completion;
+        private Exception error;
+
+        synchronized void publish(String delta) {
+            deltas.add(delta);
+            notifyAll();
+        }
+
+        synchronized void complete(Completion completion, Exception error) {
+            this.completion = completion;
+            this.error = error;
+            this.done = true;
+            notifyAll();
+        }
+
+        /**
+         * Отдаёт в onDelta все фрагменты (уже пришедшие и новые) в потоке ожидающего,
+         * затем результат общего вызова. Завершённый вызов просто проигрывается целиком.
+         */
+        Completion follow(Consumer<String> onDelta, long timeoutMs) throws IOException {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+            int seen = 0;
+            while (true) {
+                List<String> batch;
+                boolean finished;
+                synchronized (this) {
+                    while (seen == deltas.size() && !done) {
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0) {
+                            TIMEOUTS.inc();
+                            throw new IOException("LLM request timed out after " + timeoutMs + " ms");
+                        }
+                        try {
+                            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new InterruptedIOException("Interrupted while waiting for a shared LLM reply");
+                        }
+                    }
+                    batch = new ArrayList<>(deltas.subList(seen, deltas.size()));
+                    seen = deltas.size();
+                    finished = done;
+                }
+                // фрагменты отдаём вне монитора: правка сообщения не должна тормозить общий вызов
+                for (String delta : batch) onDelta.accept(delta);
+                if (!finished) continue;
+
+                synchronized (this) {
+                    // после done новых фрагментов не бывает
+                    if (error instanceof IOException) throw (IOException) error;
+                    if (error instanceof RuntimeException) throw (RuntimeException) error;
+                    return completion.asShared();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package com.example.nanoavatar.ai;
+
+import java.io.IOException;
+import java.util.function.Consumer;
+
+/**
+ * Источник потоковых ответов нейросети: {@link GeminiClient} или {@link LlmRouter} поверх нескольких агентов,
+ * над ними — {@link LimitingStreamingClient} и {@link SingleFlightStreamingClient}.
+ */
+public interface StreamingReplyClient {
+
+    /**
+     * Блокирующий запрос в режиме "stream": каждый непустой фрагмент текста сразу уходит в onDelta.
+     *
+     * @return полный текст ответа и usage, если агент его прислал
+     */
+    Completion generateReplyStream(ChatRequest request, Consumer<String> onDelta) throws IOException;
+
+    /**
+     * Примет ли цепочка этот запрос прямо сейчас — как {@link ReplyClient#canAccept()}, но с учётом запроса:
+     * присоединиться к уже летящему одинаковому можно и без свободного разрешения.
+     */
+    default boolean canAccept(ChatRequest request) {
+        return true;
+    }
+}
@@ -0,0 +1,36 @@
+package com.example.nanoavatar.ai;
+
+/**
+ * Грубая локальная оценка числа токенов без токенизатора модели.
+ *
+ * Латиница и цифры — около 4 символов на токен, кириллица и прочее — около 2,5.
+ * Оценка с запасом: её хватает, чтобы держать размер запроса в бюджете.
+ */
+public final class TokenEstimator {
+
+    private TokenEstimator() {
+    }
+
+    public static int estimate(String text) {
+        if (text == null || text.isEmpty()) return 0;
+        int ascii = 0;
+        int other = 0;
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) < 0x80) ascii++; else other++;
+        }
+        return (ascii + 3) / 4 + (other * 2 + 4) / 5;
+    }
+
+    /** Начало text, укладывающееся примерно в maxTokens. */
+    public static String truncate(String text, int maxTokens) {
+        if (text == null || estimate(text) <= maxTokens) return text;
+        // на токен приходится не больше 4 символов — начинаем с этой длины и укорачиваем по факту
+        int end = Math.min(text.length(), maxTokens * 4);
+        while (end > 0 && estimate(text.substring(0, end)) > maxTokens) {
+            end -= Math.max(1, end / 20);
+        }
+        // не режем суррогатную пару (эмодзи) пополам
+        if (end > 0 && Character.isHighSurrogate(text.charAt(end - 1))) end--;
+        return text.substring(0, Math.max(0, end));
+    }
+}
@@ -0,0 +1,81 @@
+package com.example.nanoavatar.ai;
+
+import com.example.nanoavatar.metrics.Counter;
+import com.example.nanoavatar.metrics.Histogram;
+import com.example.nanoavatar.metrics.Metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Метрики расхода токенов и задержки по набору опций (строка SPEND-записи, например "role_coach,fmt_short").
+ *
+ * Видно, какие пресеты раздувают запрос и ответ: реальные prompt/completion токены из usage,
+ * локальная оценка промпта (для сверки {@link TokenEstimator}) и время ответа.
+ * Наборов опций комбинаторно много, поэтому метки заводятся для первых maxOptionSets,
+ * остальные копятся под options="other".
+ *
+ * Ответы, полученные чужим вызовом ({@link Completion#isShared()}), токенов не добавляют.
+ */
+public class UsageMeter {
+
+    private static final String OTHER = "other";
+
+    private static final Counter USAGE_MISSING = Metrics.counter("nanoavatar_llm_usage_missing_total",
+            "LLM replies without a usage block");
+
+    private final int maxOptionSets;
+    private final Map<String, Meters> byOptions = new ConcurrentHashMap<>();
+
+    public UsageMeter(int maxOptionSets) {
+        this.maxOptionSets = Math.max(1, maxOptionSets);
+    }
+
+    /**
+     * @param options         — набор опций запроса
+     * @param estimatedPrompt — локальная оценка промпта, с которой запрос ушёл
+     * @param startNanos      — начало запроса (System.nanoTime)
+     */
+    public void record(String options, Completion completion, int estimatedPrompt, long startNanos) {
+        Meters m = meters(options);
+        m.latency.recordSince(startNanos);
+        m.replies.inc();
+        if (completion.isShared()) return;
+        m.estimatedPromptTokens.add(estimatedPrompt);
+        if (!completion.hasUsage()) {
+            USAGE_MISSING.inc();
+            return;
+        }
+        if (completion.getPromptTokens() > 0) m.promptTokens.add(completion.getPromptTokens());
+        if (completion.getCompletionTokens() > 0) m.completionTokens.add(completion.getCompletionTokens());
+    }
+
+    private Meters meters(String options) {
+        Meters m = byOptions.get(options);
+        if (m != null) return m;
+        // предел проверяется без блокировки, поэтому может быть превышен на пару наборов — не страшно
+        String label = byOptions.size() < maxOptionSets ? options : OTHER;
+        return byOptions.computeIfAbsent(label, Meters::new);
+    }
+
+    private static final class Meters {
+        final Counter promptTokens;
+        final Counter completionTokens;
+        final Counter estimatedPromptTokens;
+        final Counter replies;
+        final Histogram latency;
+
+        Meters(String options) {
+            promptTokens = Metrics.counter("nanoavatar_llm_tokens_total", "LLM tokens by option set and kind",
+                    "options", options, "kind", "prompt");
+            completionTokens = Metrics.counter("nanoavatar_llm_tokens_total", "LLM tokens by option set and kind",
+                    "options", options, "kind", "completion");
+            estimatedPromptTokens = Metrics.counter("nanoavatar_llm_prompt_tokens_estimated_total",
+                    "Locally estimated prompt tokens by option set", "options", options);
+            replies = Metrics.counter("nanoavatar_llm_option_replies_total", "LLM replies by option set",
+                    "options", options);
+            latency = Metrics.histogram("nanoavatar_llm_option_reply_seconds", "LLM reply duration by option set",
+                    "options", options);
+        }
+    }
+}
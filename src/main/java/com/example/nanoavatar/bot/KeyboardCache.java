@@ -0,0 +1,262 @@
+package com.example.nanoavatar.bot;
+
+import com.example.nanoavatar.filters.FilterNode;
+import com.example.nanoavatar.filters.FilterRegistry;
+import com.example.nanoavatar.filters.OptionMask;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.InlineKeyboardButton;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Готовые inline-клавиатуры меню настроек.
+ *
+ * Корневое меню и служебные клавиатуры строятся один раз.
+ * Клавиатура категории зависит только от того, какие её опции включены, поэтому
+ * хранится по маске дочерних опций: до {@value #MAX_CACHED_CHILDREN} опций — максимум 128 вариантов
+ * на категорию. Клавиатура категории с большим числом опций собирается на каждый показ.
+ * Клавиатура опции — два варианта: включена / выключена.
+ *
+ * Разметка отдаётся общими экземплярами, менять её нельзя.
+ */
+class KeyboardCache {
+
+    // категории с большим числом опций собираются без кэша, чтобы не раздувать массив
+    private static final int MAX_CACHED_CHILDREN = 7;
+
+    private final FilterRegistry registry;
+
+    private final InlineKeyboardMarkup root;
+    private final InlineKeyboardMarkup backOnly;
+    private final InlineKeyboardMarkup balance;
+
+    private final Map<String, CategoryKeyboards> categories = new HashMap<>();
+    private final Map<String, InlineKeyboardMarkup[]> leaves = new HashMap<>();
+
+    KeyboardCache(FilterRegistry registry) {
+        this.registry = registry;
+        this.root = buildRoot();
+        this.backOnly = InlineKeyboardMarkup.builder()
+                .keyboard(List.of(List.of(backButton(FilterRegistry.ROOT_ID))))
+                .build();
+        this.balance = buildBalance();
+
+        for (FilterNode node : registry.getAllNodes()) {
+            if (node.getId().equals(FilterRegistry.ROOT_ID)) continue;
+            if (node.isLeaf()) {
+                leaves.put(node.getId(), new InlineKeyboardMarkup[]{
+                        buildLeaf(node, false),
+                        buildLeaf(node, true)
+                });
+            } else {
+                categories.put(node.getId(), new CategoryKeyboards(node));
+            }
+        }
+    }
+
+    InlineKeyboardMarkup root() {
+        return root;
+    }
+
+    /** Только кнопка «Назад» в главное меню. */
+    InlineKeyboardMarkup backOnly() {
+        return backOnly;
+    }
+
+    InlineKeyboardMarkup balance() {
+        return balance;
+    }
+
+    InlineKeyboardMarkup category(FilterNode category, OptionMask options) {
+        CategoryKeyboards keyboards = categories.get(category.getId());
+        if (keyboards == null) {
+            return buildCategory(category, options);
+        }
+        return keyboards.get(options);
+    }
+
+    InlineKeyboardMarkup leaf(FilterNode leaf, boolean active) {
+        InlineKeyboardMarkup[] variants = leaves.get(leaf.getId());
+        if (variants == null) {
+            return buildLeaf(leaf, active);
+        }
+        return variants[active ? 1 : 0];
+    }
+
+    /** Клавиатуры одной категории по маске её дочерних опций. */
+    private final class CategoryKeyboards {
+        final FilterNode category;
+        final int[] childLeafIndexes;
+        final AtomicReferenceArray<InlineKeyboardMarkup> byMask;
+
+        CategoryKeyboards(FilterNode category) {
+            this.category = category;
+            List<String> childIds = category.getChildrenIds();
+            this.childLeafIndexes = new int[childIds.size()];
+            for (int i = 0; i < childIds.size(); i++) {
+                childLeafIndexes[i] = registry.getNode(childIds.get(i)).getLeafIndex();
+            }
+            this.byMask = childLeafIndexes.length <= MAX_CACHED_CHILDREN
+                    ? new AtomicReferenceArray<>(1 << childLeafIndexes.length)
+                    : null;
+        }
+
+        InlineKeyboardMarkup get(OptionMask options) {
+            if (byMask == null) {
+                return buildCategory(category, options);
+            }
+            int local = 0;
+            for (int i = 0; i < childLeafIndexes.length; i++) {
+                if (options.contains(childLeafIndexes[i])) local |= 1 << i;
+            }
+            InlineKeyboardMarkup markup = byMask.get(local);
+            if (markup == null) {
+                // гонка безопасна: два потока построят одинаковую разметку
+                markup = buildCategory(category, options);
+                byMask.set(local, markup);
+            }
+            return markup;
+        }
+    }
+
+    // ===== ПОСТРОЕНИЕ =====
+
+    private InlineKeyboardMarkup buildRoot() {
+        List<List<InlineKeyboardButton>> rows = new ArrayList<>();
+
+        rows.add(List.of(
+                InlineKeyboardButton.builder().text("🧑‍💼 Работа").callbackData("PRESET:WORK").build(),
+                InlineKeyboardButton.builder().text("📚 Учёба").callbackData("PRESET:STUDY").build()
+        ));
+        rows.add(List.of(
+                InlineKeyboardButton.builder().text("🛡 Точность").callbackData("PRESET:ACCURACY").build(),
+                InlineKeyboardButton.builder().text("🎨 Креатив").callbackData("PRESET:CREATIVE").build()
+        ));
+
+        List<FilterNode> categories = new ArrayList<>();
+        for (FilterNode node : registry.getAllNodes()) {
+            if (FilterRegistry.ROOT_ID.equals(node.getParentId())) {
+                categories.add(node);
+            }
+        }
+
+        for (int i = 0; i < categories.size(); i += 2) {
+            List<InlineKeyboardButton> row = new ArrayList<>();
+            row.add(buttonForNode(categories.get(i)));
+            if (i + 1 < categories.size()) {
+                row.add(buttonForNode(categories.get(i + 1)));
+            }
+            rows.add(row);
+        }
+
+        rows.add(List.of(
+                InlineKeyboardButton.builder()
+                        .text("💳 Баланс / пополнить")
+                        .callbackData("BALANCE")
+                        .build()
+        ));
+
+        rows.add(List.of(
+                InlineKeyboardButton.builder()
+                        .text("🧹 Сбросить настройки")
+                        .callbackData("CLEAR_ALL")
+                        .build()
+        ));
+
+        return InlineKeyboardMarkup.builder().keyboard(rows).build();
+    }
+
+    private InlineKeyboardMarkup buildBalance() {
+        List<List<InlineKeyboardButton>> rows = new ArrayList<>();
+        rows.add(List.of(
+                InlineKeyboardButton.builder()
+                        .text("➕ Пополнить")
+                        .callbackData("TOPUP")
+                        .build()
+        ));
+        rows.add(List.of(backButton(FilterRegistry.ROOT_ID)));
+
+        return InlineKeyboardMarkup.builder()
+                .keyboard(rows)
+                .build();
+    }
+
+    // package-private для KeyboardBenchmark
+    InlineKeyboardMarkup buildCategory(FilterNode category, OptionMask options) {
+        List<List<InlineKeyboardButton>> rows = new ArrayList<>();
+
+        List<String> childIds = category.getChildrenIds();
+        List<FilterNode> children = new ArrayList<>();
+        for (String id : childIds) children.add(registry.getNode(id));
+
+        for (int i = 0; i < children.size(); i += 2) {
+            List<InlineKeyboardButton> row = new ArrayList<>();
+            row.add(buttonForLeafInCategory(children.get(i), options));
+            if (i + 1 < children.size()) {
+                row.add(buttonForLeafInCategory(children.get(i + 1), options));
+            }
+            rows.add(row);
+        }
+
+        rows.add(List.of(
+                InlineKeyboardButton.builder()
+                        .text("✅ Включить всё")
+                        .callbackData("BULK_ON:" + category.getId())
+                        .build(),
+                InlineKeyboardButton.builder()
+                        .text("❌ Выключить всё")
+                        .callbackData("BULK_OFF:" + category.getId())
+                        .build()
+        ));
+
+        rows.add(List.of(backButton(FilterRegistry.ROOT_ID)));
+
+        return InlineKeyboardMarkup.builder().keyboard(rows).build();
+    }
+
+    private InlineKeyboardMarkup buildLeaf(FilterNode leaf, boolean active) {
+        List<List<InlineKeyboardButton>> rows = new ArrayList<>();
+
+        rows.add(List.of(
+                InlineKeyboardButton.builder()
+                        .text(active ? "❌ Отключить настройку" : "✅ Включить настройку")
+                        .callbackData("SELECT:" + leaf.getId())
+                        .build()
+        ));
+        rows.add(List.of(
+                InlineKeyboardButton.builder()
+                        .text("📝 Пример запроса")
+                        .callbackData("EXAMPLE:" + leaf.getId())
+                        .build()
+        ));
+        rows.add(List.of(backButton(leaf.getParentId())));
+        return InlineKeyboardMarkup.builder().keyboard(rows).build();
+    }
+
+    private InlineKeyboardButton buttonForNode(FilterNode node) {
+        return InlineKeyboardButton.builder()
+                .text(node.getTitle())
+                .callbackData("NODE:" + node.getId())
+                .build();
+    }
+
+    private InlineKeyboardButton buttonForLeafInCategory(FilterNode leaf, OptionMask options) {
+        boolean active = options.contains(leaf.getLeafIndex());
+        String text = (active ? "✅ " : "") + leaf.getTitle();
+        return InlineKeyboardButton.builder()
+                .text(text)
+                .callbackData("NODE:" + leaf.getId())
+                .build();
+    }
+
+    private InlineKeyboardButton backButton(String targetId) {
+        return InlineKeyboardButton.builder()
+                .text("⬅️ Назад")
+                .callbackData("BACK:" + targetId)
+                .build();
+    }
+}
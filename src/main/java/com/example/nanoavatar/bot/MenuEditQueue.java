@@ -0,0 +1,142 @@
+package com.example.nanoavatar.bot;
+
+import org.telegram.telegrambots.meta.api.methods.updatingmessages.EditMessageText;
+import org.telegram.telegrambots.meta.bots.AbsSender;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiRequestException;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Асинхронные правки сообщений меню.
+ *
+ * Обработчик callback'а только кладёт сюда готовый EditMessageText и сразу отвечает Telegram.
+ * Для одного сообщения одновременно отправляется не больше одной правки; если, пока она летит,
+ * пришли новые, отправится только самая свежая — промежуточные состояния не рисуем.
+ */
+class MenuEditQueue {
+
+    private final AbsSender sender;
+    private final ExecutorService executor;
+    private final Map<MessageKey, Slot> slots = new ConcurrentHashMap<>();
+
+    private final AtomicLong sentEdits = new AtomicLong();
+    private final AtomicLong collapsedEdits = new AtomicLong();
+
+    MenuEditQueue(AbsSender sender, int threads) {
+        this.sender = sender;
+        AtomicInteger counter = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "menu-edit-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    void submit(EditMessageText edit) {
+        MessageKey key = new MessageKey(edit.getChatId(), edit.getMessageId());
+        while (true) {
+            Slot slot = slots.computeIfAbsent(key, Slot::new);
+            boolean schedule;
+            synchronized (slot) {
+                if (slot.retired) continue;
+                if (slot.latest != null) {
+                    // предыдущая правка ещё не ушла — она больше не нужна
+                    collapsedEdits.incrementAndGet();
+                }
+                slot.latest = edit;
+                schedule = !slot.running;
+                slot.running = true;
+            }
+            if (schedule) {
+                executor.execute(() -> drain(slot));
+            }
+            return;
+        }
+    }
+
+    private void drain(Slot slot) {
+        while (true) {
+            EditMessageText next;
+            synchronized (slot) {
+                next = slot.latest;
+                slot.latest = null;
+                if (next == null) {
+                    slot.running = false;
+                    slot.retired = true;
+                    slots.remove(slot.key, slot);
+                    return;
+                }
+            }
+            send(next);
+        }
+    }
+
+    private void send(EditMessageText edit) {
+        try {
+            sender.execute(edit);
+            sentEdits.incrementAndGet();
+        } catch (TelegramApiRequestException e) {
+            // повторный тап по той же кнопке — Telegram отвечает "message is not modified"
+            String response = e.getApiResponse();
+            if (response == null || !response.contains("message is not modified")) {
+                e.printStackTrace();
+            }
+        } catch (TelegramApiException e) {
+            e.printStackTrace();
+        }
+    }
+
+    long getSentEdits() {
+        return sentEdits.get();
+    }
+
+    /** Сколько правок отброшено, потому что поверх них пришли более свежие. */
+    long getCollapsedEdits() {
+        return collapsedEdits.get();
+    }
+
+    void shutdown() {
+        executor.shutdown();
+    }
+
+    private static final class Slot {
+        final MessageKey key;
+        EditMessageText latest;
+        boolean running;
+        boolean retired;
+
+        Slot(MessageKey key) {
+            this.key = key;
+        }
+    }
+
+    private static final class MessageKey {
+        final String chatId;
+        final Integer messageId;
+
+        MessageKey(String chatId, Integer messageId) {
+            this.chatId = chatId;
+            this.messageId = messageId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof MessageKey)) return false;
+            MessageKey other = (MessageKey) o;
+            return Objects.equals(chatId, other.chatId) && Objects.equals(messageId, other.messageId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(chatId, messageId);
+        }
+    }
+}
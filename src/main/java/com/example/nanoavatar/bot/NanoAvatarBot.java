@@ -1,14 +1,33 @@
 package com.example.nanoavatar.bot;
 
+import com.example.nanoavatar.ai.ChatRequest;
+import com.example.nanoavatar.ai.Completion;
 import com.example.nanoavatar.ai.GeminiClient;
+import com.example.nanoavatar.ai.LlmBusyException;
+import com.example.nanoavatar.ai.ReplyCache;
+import com.example.nanoavatar.ai.ReplyClient;
+import com.example.nanoavatar.ai.StreamingReplyClient;
+import com.example.nanoavatar.ai.UsageMeter;
 import com.example.nanoavatar.db.Database;
+import com.example.nanoavatar.metrics.Counter;
+import com.example.nanoavatar.metrics.Histogram;
+import com.example.nanoavatar.metrics.Metrics;
 import com.example.nanoavatar.filters.FilterNode;
 import com.example.nanoavatar.filters.FilterRegistry;
+import com.example.nanoavatar.filters.ModeSettings;
+import com.example.nanoavatar.filters.OptionMask;
+import com.example.nanoavatar.memory.Conversation;
+import com.example.nanoavatar.memory.ConversationStore;
 import com.example.nanoavatar.payment.PaymentService;
+import com.example.nanoavatar.user.CreditReservation;
 import com.example.nanoavatar.user.SessionState;
+import com.example.nanoavatar.user.SessionStore;
 import com.example.nanoavatar.user.UserService;
 import com.example.nanoavatar.user.UserSession;
+import org.telegram.telegrambots.bots.DefaultBotOptions;
 import org.telegram.telegrambots.bots.TelegramLongPollingBot;
+import org.telegram.telegrambots.meta.api.methods.AnswerCallbackQuery;
+import org.telegram.telegrambots.meta.api.methods.BotApiMethod;
 import org.telegram.telegrambots.meta.api.methods.ParseMode;
 import org.telegram.telegrambots.meta.api.methods.send.SendInvoice;
 import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
@@ -16,22 +35,67 @@ import org.telegram.telegrambots.meta.api.methods.updatingmessages.EditMessageTe
 import org.telegram.telegrambots.meta.api.objects.*;
 import org.telegram.telegrambots.meta.api.objects.payments.PreCheckoutQuery;
 import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup;
-import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.InlineKeyboardButton;
 import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
 
 import java.io.IOException;
+import java.io.Serializable;
+import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 
 public class NanoAvatarBot extends TelegramLongPollingBot {
 
+    private static final Counter MESSAGE_UPDATES = updateCounter("message");
+    private static final Counter CALLBACK_UPDATES = updateCounter("callback_query");
+    private static final Counter PRE_CHECKOUT_UPDATES = updateCounter("pre_checkout_query");
+    private static final Counter OTHER_UPDATES = updateCounter("other");
+    private static final Counter REPLY_CACHE_SERVED = Metrics.counter("nanoavatar_replies_total",
+            "Replies delivered by source", "source", "cache");
+    private static final Counter REPLY_LLM_SERVED = Metrics.counter("nanoavatar_replies_total",
+            "Replies delivered by source", "source", "llm");
+    private static final Counter BUSY_REJECTIONS = Metrics.counter("nanoavatar_prompts_busy_total",
+            "Prompts refused before debit because the LLM backend is saturated");
+    private static final Counter PROMPTS_OVERSIZED_TRIMMED = Metrics.counter("nanoavatar_prompts_oversized_total",
+            "Prompts over the token limit", "outcome", "trimmed");
+    private static final Counter PROMPTS_OVERSIZED_REJECTED = Metrics.counter("nanoavatar_prompts_oversized_total",
+            "Prompts over the token limit", "outcome", "rejected");
+    // сколько наборов опций получают свои метки в метриках токенов
+    private static final int USAGE_OPTION_SETS = 64;
+    private static final Counter TELEGRAM_ERRORS = Metrics.counter("nanoavatar_telegram_errors_total",
+            "Failed Bot API calls");
+
+    // гистограмма на каждый метод Bot API (sendMessage, editMessageText, ...)
+    private static final Map<String, Histogram> TELEGRAM_LATENCY = new ConcurrentHashMap<>();
+
     private final String botUsername;
     private final FilterRegistry registry;
+    private final KeyboardCache keyboards;
+    private final MenuEditQueue menuEdits;
     private final UserService userService;
     private final PaymentService paymentService;
-    private final GeminiClient geminiClient;
+    private final StreamingReplyClient streamClient; // потоковые ответы
+    private final ReplyClient replyClient;           // обычные ответы: цепочка поверх GeminiClient / LlmRouter
     private final int promptPriceCredits;
-
-    private final Map<Long, UserSession> sessions = new HashMap<>();
+    private final UpdateDispatcher dispatcher;
+    private final ReplyCache replyCache; // null — кэш выключен
+    private final ConversationStore conversations; // null — каждый вопрос без контекста
+    private final UsageMeter usageMeter = new UsageMeter(USAGE_OPTION_SETS);
+    private final int maxPromptTokens; // 0 — без ограничения
+
+    // потоковая выдача ответа
+    private final boolean streamReplies;
+    private final long streamEditIntervalMs;
+    private final ScheduledExecutorService typingScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "typing-heartbeat");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // ограниченный кэш сессий с записью в SQLite
+    private final SessionStore sessions;
 
     // ===== PRESETS =====
     private static class Preset {
@@ -99,19 +163,92 @@ public class NanoAvatarBot extends TelegramLongPollingBot {
         ));
     }
 
-    public NanoAvatarBot(String token,
+    public NanoAvatarBot(DefaultBotOptions options,
+                         String token,
                          String botUsername,
                          Database db,
+                         FilterRegistry registry,
+                         SessionStore sessions,
                          PaymentService paymentService,
-                         GeminiClient geminiClient,
-                         int promptPriceCredits) {
-        super(token);
+                         StreamingReplyClient streamClient,
+                         ReplyClient replyClient,
+                         ReplyCache replyCache,
+                         ConversationStore conversations,
+                         int maxPromptTokens,
+                         int promptPriceCredits,
+                         int workerThreads,
+                         int updateQueueDepth,
+                         boolean streamReplies,
+                         long streamEditIntervalMs) {
+        super(options, token);
         this.botUsername = botUsername;
-        this.registry = new FilterRegistry();
+        this.registry = registry;
+        this.sessions = sessions;
+        this.keyboards = new KeyboardCache(registry);
+        this.menuEdits = new MenuEditQueue(this, 4);
         this.userService = new UserService(db);
         this.paymentService = paymentService;
-        this.geminiClient = geminiClient;
+        this.streamClient = streamClient;
+        this.replyClient = replyClient;
+        this.replyCache = replyCache;
+        this.conversations = conversations;
+        this.maxPromptTokens = maxPromptTokens;
         this.promptPriceCredits = promptPriceCredits;
+        this.dispatcher = new UpdateDispatcher(workerThreads, updateQueueDepth, this::handleUpdate);
+        this.streamReplies = streamReplies;
+        this.streamEditIntervalMs = streamEditIntervalMs;
+        registerGauges();
+    }
+
+    private static Counter updateCounter(String type) {
+        return Metrics.counter("nanoavatar_updates_total", "Received updates by type", "type", type);
+    }
+
+    private static Histogram telegramHistogram(String method) {
+        return Metrics.histogram("nanoavatar_telegram_request_seconds", "Bot API call duration", "method", method);
+    }
+
+    private void registerGauges() {
+        Metrics.gauge("nanoavatar_update_queue_depth", "Updates waiting for a worker",
+                dispatcher::getQueuedUpdates);
+        Metrics.gauge("nanoavatar_active_chat_lanes", "Chats with updates in flight",
+                dispatcher::getActiveLanes);
+        Metrics.gauge("nanoavatar_busy_workers", "Update workers currently running",
+                dispatcher::getBusyWorkers);
+        Metrics.gauge("nanoavatar_sessions", "Sessions held in memory", sessions::size);
+        Metrics.gauge("nanoavatar_menu_edits_collapsed", "Menu edits skipped in favour of a newer one",
+                menuEdits::getCollapsedEdits);
+        if (replyCache != null) {
+            Metrics.gauge("nanoavatar_reply_cache_entries", "Entries in the reply cache", replyCache::size);
+            Metrics.gauge("nanoavatar_reply_cache_hit_ratio", "Reply cache hit ratio", replyCache::getHitRate);
+        }
+    }
+
+    /** Все синхронные вызовы Bot API (в том числе из StreamingReplyWriter и MenuEditQueue) идут сюда. */
+    @Override
+    public <T extends Serializable, Method extends BotApiMethod<T>> T execute(Method method)
+            throws TelegramApiException {
+        long start = System.nanoTime();
+        try {
+            return super.execute(method);
+        } catch (TelegramApiException e) {
+            TELEGRAM_ERRORS.inc();
+            throw e;
+        } finally {
+            TELEGRAM_LATENCY.computeIfAbsent(method.getMethod(), NanoAvatarBot::telegramHistogram)
+                    .recordSince(start);
+        }
+    }
+
+    @Override
+    public <T extends Serializable, Method extends BotApiMethod<T>> CompletableFuture<T> executeAsync(Method method)
+            throws TelegramApiException {
+        long start = System.nanoTime();
+        Histogram latency = TELEGRAM_LATENCY.computeIfAbsent(method.getMethod(), NanoAvatarBot::telegramHistogram);
+        return super.executeAsync(method).whenComplete((result, error) -> {
+            latency.recordSince(start);
+            if (error != null) TELEGRAM_ERRORS.inc();
+        });
     }
 
     @Override
@@ -120,19 +257,66 @@ public class NanoAvatarBot extends TelegramLongPollingBot {
     }
 
     private UserSession getSession(long chatId) {
-        return sessions.computeIfAbsent(chatId,
-                id -> new UserSession(FilterRegistry.ROOT_ID));
+        return sessions.get(chatId);
     }
 
+    public UpdateDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    /**
+     * Поток long polling только раскладывает апдейты по очередям чатов,
+     * сама обработка идёт в {@link UpdateDispatcher}.
+     * На callback, подсказка к которому не зависит от сессии, отвечаем сразу, до очереди чата:
+     * иначе «часики» на кнопке ждали бы, пока полоса допишет потоковый ответ нейросети.
+     */
     @Override
     public void onUpdateReceived(Update update) {
+        answerEarly(update);
+        dispatcher.dispatch(update);
+    }
+
+    /**
+     * Приём из webhook: апдейт ставится в очередь, только если место нашлось за timeoutMs.
+     * @return false — не принят, Telegram доставит его снова
+     */
+    public boolean offerUpdate(Update update, long timeoutMs) throws InterruptedException {
+        if (!dispatcher.offer(update, timeoutMs)) return false;
+        // после приёма: на повторную доставку callback ответили бы дважды
+        answerEarly(update);
+        return true;
+    }
+
+    private void answerEarly(Update update) {
+        if (update.hasCallbackQuery()) {
+            CallbackQuery query = update.getCallbackQuery();
+            if (!answersInLane(query.getData())) {
+                answerCallback(query.getId(), toastFor(query.getData()));
+            }
+        }
+    }
+
+    @Override
+    public void onClosing() {
+        dispatcher.shutdown();
+        typingScheduler.shutdownNow();
+        menuEdits.shutdown();
+        super.onClosing();
+    }
+
+    private void handleUpdate(Update update) {
         try {
             if (update.hasCallbackQuery()) {
+                CALLBACK_UPDATES.inc();
                 handleCallback(update.getCallbackQuery());
             } else if (update.hasPreCheckoutQuery()) {
+                PRE_CHECKOUT_UPDATES.inc();
                 handlePreCheckout(update.getPreCheckoutQuery());
             } else if (update.hasMessage()) {
+                MESSAGE_UPDATES.inc();
                 handleMessage(update.getMessage());
+            } else {
+                OTHER_UPDATES.inc();
             }
         } catch (Exception e) {
             e.printStackTrace();
@@ -158,6 +342,13 @@ public class NanoAvatarBot extends TelegramLongPollingBot {
         }
 
         UserSession session = getSession(chatId);
+        if (session == null) {
+            execute(SendMessage.builder()
+                    .chatId(chatId)
+                    .text(sessionErrorText())
+                    .build());
+            return;
+        }
 
         if (msg.hasText()) {
             String text = msg.getText().trim();
@@ -190,6 +381,15 @@ public class NanoAvatarBot extends TelegramLongPollingBot {
                 return;
             }
 
+            if ("/new".equals(text)) {
+                if (conversations != null) conversations.clear(chatId);
+                execute(SendMessage.builder()
+                        .chatId(chatId)
+                        .text("🧹 Начинаем новый разговор — прежний контекст я забыл.")
+                        .build());
+                return;
+            }
+
             if (session.getState() == SessionState.WAITING_FOR_TOPUP_AMOUNT) {
                 try {
                     int amount = Integer.parseInt(text.trim());
@@ -210,7 +410,7 @@ public class NanoAvatarBot extends TelegramLongPollingBot {
             if (text.startsWith("/")) {
                 execute(SendMessage.builder()
                         .chatId(chatId)
-                        .text("Я знаю команды: /start, /help, /balance, /topup 🙂")
+                        .text("Я знаю команды: /start, /help, /balance, /topup, /new 🙂")
                         .build());
                 return;
             }
@@ -237,7 +437,8 @@ public class NanoAvatarBot extends TelegramLongPollingBot {
                 "• 🧩 Разбирать ситуации и предлагать варианты действий\n" +
                 "• 🤝 Поддерживать, когда нужно выговориться\n\n" +
                 "Через /start можно настроить его личность, стиль, юмор, формат ответов и фишки.\n" +
-                "Потом просто пиши текст — и бот отвечает уже в выбранном стиле.";
+                "Потом просто пиши текст — и бот отвечает уже в выбранном стиле.\n" +
+                "Бот помнит ход разговора; /new — начать новый.";
 
         execute(SendMessage.builder()
                 .chatId(chatId)
@@ -264,13 +465,55 @@ public class NanoAvatarBot extends TelegramLongPollingBot {
 
     // ===== CALLBACKS =====
 
-    private void handleCallback(CallbackQuery query) throws Exception {
+    private void handleCallback(CallbackQuery query) {
         String data = query.getData();
         long chatId = query.getMessage().getChatId();
         int msgId = query.getMessage().getMessageId();
 
         UserSession session = getSession(chatId);
+        if (session == null) {
+            if (answersInLane(data)) answerCallback(query.getId(), sessionErrorText());
+            return;
+        }
 
+        // остальные callback уже отвечены в onUpdateReceived
+        String toast = null;
+        try {
+            toast = routeCallback(data, chatId, msgId, session);
+        } finally {
+            if (answersInLane(data)) answerCallback(query.getId(), toast);
+        }
+    }
+
+    /**
+     * Подсказка к переключению опции зависит от того, какой она стала, — на такой callback
+     * отвечаем в полосе чата после обработки. Всё до ответа — правки в памяти,
+     * сетевые вызовы уходят асинхронно.
+     */
+    private static boolean answersInLane(String data) {
+        return data != null && data.startsWith("SELECT:");
+    }
+
+    /** Подсказка, которую видно по одним данным кнопки, для ответа до очереди чата. */
+    private String toastFor(String data) {
+        if (data == null) return null;
+        if (data.startsWith("PRESET:")) {
+            return PRESETS.containsKey(data.substring("PRESET:".length()).trim()) ? "✅ Пресет применён" : null;
+        }
+        if (data.startsWith("BULK_ON:")) {
+            return registry.getNode(data.substring("BULK_ON:".length())) != null
+                    ? "✅ Все опции категории включены" : null;
+        }
+        if (data.startsWith("BULK_OFF:")) {
+            return registry.getNode(data.substring("BULK_OFF:".length())) != null
+                    ? "❌ Все опции категории выключены" : null;
+        }
+        if ("CLEAR_ALL".equals(data)) return "🧹 Настройки сброшены";
+        return null;
+    }
+
+    /** @return текст всплывающего уведомления для {@link #answersInLane} callback или null */
+    private String routeCallback(String data, long chatId, int msgId, UserSession session) {
         if (data.startsWith("NODE:")) {
             String nodeId = data.substring("NODE:".length());
             session.setCurrentNodeId(nodeId);
@@ -285,14 +528,15 @@ public class NanoAvatarBot extends TelegramLongPollingBot {
 
         } else if (data.startsWith("SELECT:")) {
             String id = data.substring("SELECT:".length());
-            toggleOption(session, id);
+            boolean enabled = toggleOption(session, id);
             FilterNode node = registry.getNode(id);
             showNode(chatId, msgId, node, session);
+            return enabled ? "✅ Опция включена" : "❌ Опция выключена";
 
         } else if (data.startsWith("EXAMPLE:")) {
             String id = data.substring("EXAMPLE:".length());
             FilterNode node = registry.getNode(id);
-            execute(SendMessage.builder()
+            executeQuietlyAsync(SendMessage.builder()
                     .chatId(chatId)
                     .text("📝 Пример запроса с настройкой \"" + node.getTitle() + "\":\n\n" +
                             "Например: \"Сделай план на день с учётом моих задач, " +
@@ -309,11 +553,9 @@ public class NanoAvatarBot extends TelegramLongPollingBot {
                     .chatId(chatId)
                     .messageId(msgId)
                     .text("💳 Введи сумму пополнения в рублях (минимум 100 ₽):")
-                    .replyMarkup(InlineKeyboardMarkup.builder()
-                            .keyboard(List.of(List.of(backButton(FilterRegistry.ROOT_ID))))
-                            .build())
+                    .replyMarkup(keyboards.backOnly())
                     .build();
-            execute(edit);
+            menuEdits.submit(edit);
 
         } else if (data.startsWith("PRESET:")) {
             String key = data.substring("PRESET:".length()).trim();
@@ -337,12 +579,7 @@ public class NanoAvatarBot extends TelegramLongPollingBot {
             String catId = data.substring("BULK_ON:".length());
             FilterNode cat = registry.getNode(catId);
             if (cat != null) {
-                for (String childId : cat.getChildrenIds()) {
-                    FilterNode child = registry.getNode(childId);
-                    if (child != null && child.isLeaf()) {
-                        session.getActiveOptionIds().add(childId);
-                    }
-                }
+                session.setOptions(session.getOptions().union(registry.categoryMask(catId)));
                 showNode(chatId, msgId, cat, session);
             }
 
@@ -350,17 +587,12 @@ public class NanoAvatarBot extends TelegramLongPollingBot {
             String catId = data.substring("BULK_OFF:".length());
             FilterNode cat = registry.getNode(catId);
             if (cat != null) {
-                for (String childId : cat.getChildrenIds()) {
-                    FilterNode child = registry.getNode(childId);
-                    if (child != null && child.isLeaf()) {
-                        session.getActiveOptionIds().remove(childId);
-                    }
-                }
+                session.setOptions(session.getOptions().minus(registry.categoryMask(catId)));
                 showNode(chatId, msgId, cat, session);
             }
 
         } else if ("CLEAR_ALL".equals(data)) {
-            session.getActiveOptionIds().clear();
+            session.setOptions(OptionMask.EMPTY);
             session.setCurrentNodeId(FilterRegistry.ROOT_ID);
             session.setState(SessionState.BROWSING);
 
@@ -368,32 +600,45 @@ public class NanoAvatarBot extends TelegramLongPollingBot {
                     "🧹 Настройки сброшены.\n\n" +
                             "⚙️ Главное меню настроек. Выбирай блок, который хочешь подкрутить 👇");
         }
+        return null;
     }
 
-    private void applyPreset(UserSession session, Preset preset) {
-        session.getActiveOptionIds().clear();
+    private void answerCallback(String callbackQueryId, String toast) {
+        executeQuietlyAsync(AnswerCallbackQuery.builder()
+                .callbackQueryId(callbackQueryId)
+                .text(toast)
+                .build());
+    }
 
-        for (String id : preset.optionIds) {
-            FilterNode node = registry.getNode(id);
-            if (node != null && node.isLeaf()) {
-                session.getActiveOptionIds().add(id);
-            }
+    /** Отправка без ожидания ответа; ошибки только логируем. */
+    private <T extends Serializable> void executeQuietlyAsync(BotApiMethod<T> method) {
+        try {
+            executeAsync(method).exceptionally(e -> {
+                e.printStackTrace();
+                return null;
+            });
+        } catch (TelegramApiException e) {
+            e.printStackTrace();
         }
     }
 
-    private void toggleOption(UserSession session, String id) {
-        Set<String> active = session.getActiveOptionIds();
-        if (active.contains(id)) {
-            active.remove(id);
-        } else {
-            active.add(id);
-        }
+    private void applyPreset(UserSession session, Preset preset) {
+        session.setOptions(registry.maskOf(preset.optionIds));
+    }
+
+    /** @return true, если опция после переключения включена */
+    private boolean toggleOption(UserSession session, String id) {
+        FilterNode node = registry.getNode(id);
+        if (node == null || node.getLeafIndex() < 0) return false;
+        OptionMask updated = session.getOptions().toggle(node.getLeafIndex());
+        session.setOptions(updated);
+        return updated.contains(node.getLeafIndex());
     }
 
     // ===== MENUS =====
 
     private void sendMainMenu(long chatId, UserSession session) throws TelegramApiException {
-        InlineKeyboardMarkup kb = buildKeyboardForRoot();
+        InlineKeyboardMarkup kb = keyboards.root();
 
         String text = "👋 Привет! Я *NanoBuddy* — настраиваемый текстовый ИИ-помощник.\n\n" +
                 "Как со мной работать:\n" +
@@ -413,17 +658,17 @@ public class NanoAvatarBot extends TelegramLongPollingBot {
         execute(msg);
     }
 
-    private void showRootMenu(long chatId, int messageId, String text) throws TelegramApiException {
+    private void showRootMenu(long chatId, int messageId, String text) {
         EditMessageText edit = EditMessageText.builder()
                 .chatId(chatId)
                 .messageId(messageId)
                 .text(text)
-                .replyMarkup(buildKeyboardForRoot())
+                .replyMarkup(keyboards.root())
                 .build();
-        execute(edit);
+        menuEdits.submit(edit);
     }
 
-    private void showNode(long chatId, int messageId, FilterNode node, UserSession session) throws TelegramApiException {
+    private void showNode(long chatId, int messageId, FilterNode node, UserSession session) {
         if (node == null) return;
 
         if (node.getId().equals(FilterRegistry.ROOT_ID)) {
@@ -433,7 +678,7 @@ public class NanoAvatarBot extends TelegramLongPollingBot {
         }
 
         if (node.isLeaf()) {
-            boolean active = session.getActiveOptionIds().contains(node.getId());
+            boolean active = session.getOptions().contains(node.getLeafIndex());
             String status = active
                     ? "🔘 Сейчас: *ВКЛЮЧЕНО*"
                     : "⚪ Сейчас: *ВЫКЛЮЧЕНО*";
@@ -448,9 +693,9 @@ public class NanoAvatarBot extends TelegramLongPollingBot {
                     .messageId(messageId)
                     .text(text)
                     .parseMode(ParseMode.MARKDOWN)
-                    .replyMarkup(buildKeyboardForLeaf(node, session))
+                    .replyMarkup(keyboards.leaf(node, active))
                     .build();
-            execute(edit);
+            menuEdits.submit(edit);
         } else {
             String text = node.getTitle() + "\n\n" +
                     "Выбирай конкретные опции ниже. Можно включать несколько — они суммируются.\n\n" +
@@ -460,13 +705,13 @@ public class NanoAvatarBot extends TelegramLongPollingBot {
                     .chatId(chatId)
                     .messageId(messageId)
                     .text(text)
-                    .replyMarkup(buildKeyboardForCategory(node, session))
+                    .replyMarkup(keyboards.category(node, session.getOptions()))
                     .build();
-            execute(edit);
+            menuEdits.submit(edit);
         }
     }
 
-    private void showBalanceScreen(long chatId, int messageId) throws TelegramApiException {
+    private void showBalanceScreen(long chatId, int messageId) {
         int bal = userService.getBalance(chatId);
 
         String text = "💳 *Баланс / пополнить*\n\n" +
@@ -474,165 +719,90 @@ public class NanoAvatarBot extends TelegramLongPollingBot {
                 "Один ответ бота стоит *" + promptPriceCredits + "* кредит.\n\n" +
                 "Нажми «Пополнить», чтобы выбрать сумму пополнения.";
 
-        List<List<InlineKeyboardButton>> rows = new ArrayList<>();
-        rows.add(List.of(
-                InlineKeyboardButton.builder()
-                        .text("➕ Пополнить")
-                        .callbackData("TOPUP")
-                        .build()
-        ));
-        rows.add(List.of(backButton(FilterRegistry.ROOT_ID)));
-
-        InlineKeyboardMarkup kb = InlineKeyboardMarkup.builder()
-                .keyboard(rows)
-                .build();
-
         EditMessageText edit = EditMessageText.builder()
                 .chatId(chatId)
                 .messageId(messageId)
                 .text(text)
                 .parseMode(ParseMode.MARKDOWN)
-                .replyMarkup(kb)
+                .replyMarkup(keyboards.balance())
                 .build();
 
-        execute(edit);
+        menuEdits.submit(edit);
     }
 
-    // ===== KEYBOARDS =====
-
-    private InlineKeyboardMarkup buildKeyboardForRoot() {
-        List<List<InlineKeyboardButton>> rows = new ArrayList<>();
-
-        rows.add(List.of(
-                InlineKeyboardButton.builder().text("🧑‍💼 Работа").callbackData("PRESET:WORK").build(),
-                InlineKeyboardButton.builder().text("📚 Учёба").callbackData("PRESET:STUDY").build()
-        ));
-        rows.add(List.of(
-                InlineKeyboardButton.builder().text("🛡 Точность").callbackData("PRESET:ACCURACY").build(),
-                InlineKeyboardButton.builder().text("🎨 Креатив").callbackData("PRESET:CREATIVE").build()
-        ));
+    // ===== AI-ЗАПРОСЫ =====
 
-        List<FilterNode> categories = new ArrayList<>();
-        for (FilterNode node : registry.getAllNodes()) {
-            if (FilterRegistry.ROOT_ID.equals(node.getParentId())) {
-                categories.add(node);
+    private void processUserQuery(long chatId, UserSession session, String userText) throws TelegramApiException {
+        // ✅ Собираем только promptPart (без вывода активных настроек пользователю).
+        // Сборка запомнена по маске опций — здесь это поиск в карте.
+        ModeSettings settings = registry.modeSettings(session.getOptions());
+        String modePrompt = settings.getModePrompt();
+
+        // ответ на реплику посреди разговора зависит от контекста — такие не кэшируем и не склеиваем
+        Conversation conversation = conversations != null ? conversations.get(chatId) : null;
+        boolean hasContext = conversation != null && !conversation.isEmpty();
+
+        // одинаковый запрос с теми же настройками — отдаём готовый ответ
+        // (и склеиваем с таким же, что уже летит к нейросети)
+        ReplyCache.Key requestKey = settings.isCacheable() && !hasContext
+                ? ReplyCache.keyOf(modePrompt, userText) : null;
+        ReplyCache.Key cacheKey = replyCache != null ? requestKey : null;
+        String cached = cacheKey != null ? replyCache.get(cacheKey) : null;
+
+        // запрос собираем до списания: слишком большой урезаем по истории или отклоняем, не заплатив за него
+        ChatRequest request = null;
+        int promptEstimate = 0;
+        if (cached == null) {
+            request = conversation != null
+                    ? conversations.newRequest(conversation, modePrompt, userText, requestKey)
+                    : new ChatRequest(modePrompt, userText, requestKey);
+            promptEstimate = GeminiClient.estimatePromptTokens(request);
+            if (maxPromptTokens > 0 && promptEstimate > maxPromptTokens) {
+                request = request.withoutOldestTurns(promptEstimate - maxPromptTokens);
+                promptEstimate = GeminiClient.estimatePromptTokens(request);
+                if (promptEstimate > maxPromptTokens) {
+                    PROMPTS_OVERSIZED_REJECTED.inc();
+                    execute(SendMessage.builder()
+                            .chatId(chatId)
+                            .text("✂️ Запрос получился слишком длинным (~" + promptEstimate + " токенов при лимите " +
+                                    maxPromptTokens + "). Сократи сообщение или выключи часть настроек.\n" +
+                                    "Кредиты не списаны.")
+                            .build());
+                    return;
+                }
+                PROMPTS_OVERSIZED_TRIMMED.inc();
             }
         }
 
-        for (int i = 0; i < categories.size(); i += 2) {
-            List<InlineKeyboardButton> row = new ArrayList<>();
-            row.add(buttonForNode(categories.get(i)));
-            if (i + 1 < categories.size()) {
-                row.add(buttonForNode(categories.get(i + 1)));
+        // нейросеть перегружена — отказываем сразу, ещё до списания
+        if (cached == null) {
+            boolean busy = streamReplies ? !streamClient.canAccept(request) : !replyClient.canAccept();
+            if (busy) {
+                BUSY_REJECTIONS.inc();
+                execute(SendMessage.builder()
+                        .chatId(chatId)
+                        .text("⏳ Нейросеть сейчас перегружена, попробуй ещё раз через минуту.\n" +
+                                "Кредиты не списаны.")
+                        .build());
+                return;
             }
-            rows.add(row);
         }
 
-        rows.add(List.of(
-                InlineKeyboardButton.builder()
-                        .text("💳 Баланс / пополнить")
-                        .callbackData("BALANCE")
-                        .build()
-        ));
-
-        rows.add(List.of(
-                InlineKeyboardButton.builder()
-                        .text("🧹 Сбросить настройки")
-                        .callbackData("CLEAR_ALL")
-                        .build()
-        ));
-
-        return InlineKeyboardMarkup.builder().keyboard(rows).build();
-    }
-
-    private InlineKeyboardMarkup buildKeyboardForCategory(FilterNode category, UserSession session) {
-        List<List<InlineKeyboardButton>> rows = new ArrayList<>();
-
-        List<String> childIds = category.getChildrenIds();
-        List<FilterNode> children = new ArrayList<>();
-        for (String id : childIds) children.add(registry.getNode(id));
-
-        for (int i = 0; i < children.size(); i += 2) {
-            List<InlineKeyboardButton> row = new ArrayList<>();
-            row.add(buttonForLeafInCategory(children.get(i), session));
-            if (i + 1 < children.size()) {
-                row.add(buttonForLeafInCategory(children.get(i + 1), session));
-            }
-            rows.add(row);
+        // списываем баланс заранее: один условный UPDATE, без отдельной проверки
+        CreditReservation reservation;
+        try {
+            reservation = userService.reserveCredits(chatId, promptPriceCredits, settings.getSpendPayload());
+        } catch (SQLException e) {
+            e.printStackTrace();
+            execute(SendMessage.builder()
+                    .chatId(chatId)
+                    .text("⚠️ Не получилось списать кредиты, попробуй ещё раз через минуту.\n" +
+                            "Кредиты не списаны.")
+                    .build());
+            return;
         }
-
-        rows.add(List.of(
-                InlineKeyboardButton.builder()
-                        .text("✅ Включить всё")
-                        .callbackData("BULK_ON:" + category.getId())
-                        .build(),
-                InlineKeyboardButton.builder()
-                        .text("❌ Выключить всё")
-                        .callbackData("BULK_OFF:" + category.getId())
-                        .build()
-        ));
-
-        rows.add(List.of(backButton(FilterRegistry.ROOT_ID)));
-
-        return InlineKeyboardMarkup.builder().keyboard(rows).build();
-    }
-
-    private InlineKeyboardMarkup buildKeyboardForLeaf(FilterNode leaf, UserSession session) {
-        boolean active = session.getActiveOptionIds().contains(leaf.getId());
-        List<List<InlineKeyboardButton>> rows = new ArrayList<>();
-
-        rows.add(List.of(
-                InlineKeyboardButton.builder()
-                        .text(active ? "❌ Отключить настройку" : "✅ Включить настройку")
-                        .callbackData("SELECT:" + leaf.getId())
-                        .build()
-        ));
-        rows.add(List.of(
-                InlineKeyboardButton.builder()
-                        .text("📝 Пример запроса")
-                        .callbackData("EXAMPLE:" + leaf.getId())
-                        .build()
-        ));
-        rows.add(List.of(backButton(leaf.getParentId())));
-        return InlineKeyboardMarkup.builder().keyboard(rows).build();
-    }
-
-    private InlineKeyboardMarkup buildBackOnlyKeyboard() {
-        return InlineKeyboardMarkup.builder()
-                .keyboard(List.of(
-                        List.of(backButton(FilterRegistry.ROOT_ID))
-                ))
-                .build();
-    }
-
-    private InlineKeyboardButton buttonForNode(FilterNode node) {
-        return InlineKeyboardButton.builder()
-                .text(node.getTitle())
-                .callbackData("NODE:" + node.getId())
-                .build();
-    }
-
-    private InlineKeyboardButton buttonForLeafInCategory(FilterNode leaf, UserSession session) {
-        boolean active = session.getActiveOptionIds().contains(leaf.getId());
-        String text = (active ? "✅ " : "") + leaf.getTitle();
-        return InlineKeyboardButton.builder()
-                .text(text)
-                .callbackData("NODE:" + leaf.getId())
-                .build();
-    }
-
-    private InlineKeyboardButton backButton(String targetId) {
-        return InlineKeyboardButton.builder()
-                .text("⬅️ Назад")
-                .callbackData("BACK:" + targetId)
-                .build();
-    }
-
-    // ===== AI-ЗАПРОСЫ =====
-
-    private void processUserQuery(long chatId, UserSession session, String userText) throws TelegramApiException {
-        int balance = userService.getBalance(chatId);
-        if (balance < promptPriceCredits) {
+        if (reservation == null) {
+            int balance = userService.getBalance(chatId);
             execute(SendMessage.builder()
                     .chatId(chatId)
                     .text("😔 Недостаточно кредитов. Твой баланс: " + balance +
@@ -641,48 +811,127 @@ public class NanoAvatarBot extends TelegramLongPollingBot {
             return;
         }
 
-        // ✅ Собираем только promptPart (без вывода активных настроек пользователю)
-        Set<String> activeIds = session.getActiveOptionIds();
-        StringBuilder settingsPrompt = new StringBuilder();
-
-        for (String id : activeIds) {
-            FilterNode node = registry.getNode(id);
-            if (node == null || !node.isLeaf()) continue;
-
-            if (node.getPromptPart() != null && !node.getPromptPart().isBlank()) {
-                settingsPrompt.append("- ").append(node.getPromptPart()).append("\n");
-            }
+        if (cached != null) {
+            execute(SendMessage.builder()
+                    .chatId(chatId)
+                    .text(cached)
+                    .replyMarkup(keyboards.backOnly())
+                    .build());
+            // из кэша — нейросеть не вызывалась, токенов не потрачено
+            userService.commitCredits(reservation, 0, 0);
+            REPLY_CACHE_SERVED.inc();
+            remember(conversation, userText, cached);
+            return;
         }
 
-        String modePrompt = settingsPrompt.length() > 0 ? settingsPrompt.toString() : "";
-
-        // списываем баланс заранее
-        userService.changeBalance(chatId, -promptPriceCredits, "SPEND",
-                activeIds.isEmpty() ? "default" : String.join(",", activeIds));
+        String options = settings.getSpendPayload();
+        if (streamReplies) {
+            streamReply(chatId, reservation, cacheKey, request, conversation, options, promptEstimate);
+            return;
+        }
 
-        try {
-            String reply = geminiClient.generateReply(modePrompt, userText);
+        // ждём нейросеть без занятого рабочего потока: ответ отправится из потока OkHttp
+        long start = System.nanoTime();
+        int estimate = promptEstimate;
+        replyClient.generateReplyAsync(request).whenComplete((completion, error) -> {
+            if (error != null) {
+                // откат кредита
+                boolean busy = error instanceof LlmBusyException;
+                userService.refundCredits(reservation, busy ? "llm_busy" : "gemini_error");
+                executeQuietlyAsync(SendMessage.builder()
+                        .chatId(chatId)
+                        .text(busy ? busyErrorText() : geminiErrorText(error))
+                        .build());
+                return;
+            }
+            usageMeter.record(options, completion, estimate, start);
+            String reply = completion.getContent();
+            if (cacheKey != null) replyCache.put(cacheKey, reply);
 
             // ✅ Убрали строку "🧠 Активные настройки: ..."
             SendMessage resp = SendMessage.builder()
                     .chatId(chatId)
                     .text(reply)
-                    .replyMarkup(buildBackOnlyKeyboard())
+                    .replyMarkup(keyboards.backOnly())
                     .build();
-
-            execute(resp);
-        } catch (IOException | IllegalStateException ex) {
-            // откат кредита
-            userService.changeBalance(chatId, promptPriceCredits, "REFUND", "gemini_error");
             try {
-                execute(SendMessage.builder()
-                        .chatId(chatId)
-                        .text("⚙️ Не удалось получить ответ от нейросети: " + ex.getMessage() + "\n" +
-                                "Я вернул кредит на твой баланс.")
-                        .build());
-            } catch (TelegramApiException e2) {
-                e2.printStackTrace();
+                executeAsync(resp).whenComplete((sent, sendError) -> {
+                    if (sendError != null) {
+                        sendError.printStackTrace();
+                        return;
+                    }
+                    commitWithUsage(reservation, completion);
+                    REPLY_LLM_SERVED.inc();
+                    remember(conversation, userText, reply);
+                });
+            } catch (TelegramApiException e) {
+                e.printStackTrace();
             }
+        });
+    }
+
+    /**
+     * Потоковый ответ: заглушка сразу, затем правки по мере генерации.
+     * Кредит уже списан — при ошибке возвращаем его так же, как в обычном режиме.
+     */
+    private void streamReply(long chatId, CreditReservation reservation,
+                             ReplyCache.Key cacheKey, ChatRequest request, Conversation conversation,
+                             String options, int promptEstimate) throws TelegramApiException {
+        StreamingReplyWriter writer = new StreamingReplyWriter(
+                this, chatId, typingScheduler, streamEditIntervalMs, keyboards.backOnly());
+        try {
+            writer.start();
+        } catch (TelegramApiException e) {
+            userService.refundCredits(reservation, "telegram_error");
+            throw e;
         }
+
+        long start = System.nanoTime();
+        Completion completion;
+        try {
+            completion = streamClient.generateReplyStream(request, writer::onDelta);
+        } catch (IOException | RuntimeException ex) {
+            // любая ошибка до ответа — кредит возвращаем, иначе он так и останется зарезервированным
+            if (!(ex instanceof IOException)) ex.printStackTrace();
+            boolean busy = ex instanceof LlmBusyException;
+            userService.refundCredits(reservation, busy ? "llm_busy" : "gemini_error");
+            writer.fail(busy ? busyErrorText() : geminiErrorText(ex));
+            return;
+        }
+        usageMeter.record(options, completion, promptEstimate, start);
+        String reply = completion.getContent();
+        if (cacheKey != null) replyCache.put(cacheKey, reply);
+        commitWithUsage(reservation, completion);
+        REPLY_LLM_SERVED.inc();
+        writer.finish(reply);
+        remember(conversation, request.getUserPrompt(), reply);
+    }
+
+    /** Подтверждает списание и пишет расход токенов; ответ чужого вызова ничего не стоил. */
+    private void commitWithUsage(CreditReservation reservation, Completion completion) {
+        if (completion.isShared()) {
+            userService.commitCredits(reservation, 0, 0);
+        } else {
+            userService.commitCredits(reservation, completion.getPromptTokens(), completion.getCompletionTokens());
+        }
+    }
+
+    /** Показанный пользователю ответ — в память разговора (если она включена). */
+    private void remember(Conversation conversation, String userText, String reply) {
+        if (conversation != null) conversations.record(conversation, userText, reply);
+    }
+
+    private static String sessionErrorText() {
+        return "⚠️ Не получилось загрузить твои настройки, попробуй ещё раз через минуту.";
+    }
+
+    private static String busyErrorText() {
+        return "⏳ Нейросеть сейчас перегружена, попробуй ещё раз через минуту.\n" +
+                "Я вернул кредит на твой баланс.";
+    }
+
+    private static String geminiErrorText(Throwable ex) {
+        return "⚙️ Не удалось получить ответ от нейросети: " + ex.getMessage() + "\n" +
+                "Я вернул кредит на твой баланс.";
     }
-}
\ No newline at end of file
+}
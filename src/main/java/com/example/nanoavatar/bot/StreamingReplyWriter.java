@@ -0,0 +1,187 @@
+package com.example.nanoavatar.bot;
+
+import org.telegram.telegrambots.meta.api.methods.ActionType;
+import org.telegram.telegrambots.meta.api.methods.send.SendChatAction;
+import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
+import org.telegram.telegrambots.meta.api.methods.updatingmessages.EditMessageText;
+import org.telegram.telegrambots.meta.api.objects.Message;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup;
+import org.telegram.telegrambots.meta.bots.AbsSender;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Показывает ответ нейросети по мере генерации.
+ *
+ * Сначала отправляет сообщение-заглушку и шлёт "печатает…", пока не пришёл первый токен.
+ * Дальше редактирует заглушку не чаще, чем раз в editIntervalMillis.
+ * Если текст перерастает лимит Telegram (4096 символов), текущее сообщение фиксируется,
+ * а продолжение уходит в новое.
+ */
+class StreamingReplyWriter {
+
+    static final int TELEGRAM_TEXT_LIMIT = 4096;
+
+    private static final String PLACEHOLDER = "⏳ Думаю над ответом…";
+    private static final long TYPING_INTERVAL_MS = 4_000;
+
+    private final AbsSender sender;
+    private final long chatId;
+    private final ScheduledExecutorService scheduler;
+    private final long editIntervalMillis;
+    private final InlineKeyboardMarkup finalMarkup;
+
+    // текст текущего (последнего) сообщения
+    private final StringBuilder current = new StringBuilder();
+    private Integer messageId;
+    private String lastRendered = "";
+    private long lastEditAt;
+    private boolean firstTokenSeen;
+    private ScheduledFuture<?> typingHeartbeat;
+
+    StreamingReplyWriter(AbsSender sender,
+                         long chatId,
+                         ScheduledExecutorService scheduler,
+                         long editIntervalMillis,
+                         InlineKeyboardMarkup finalMarkup) {
+        this.sender = sender;
+        this.chatId = chatId;
+        this.scheduler = scheduler;
+        this.editIntervalMillis = editIntervalMillis;
+        this.finalMarkup = finalMarkup;
+    }
+
+    /** Заглушка + "печатает…" до первого токена. */
+    void start() throws TelegramApiException {
+        sendTyping();
+        Message placeholder = sender.execute(SendMessage.builder()
+                .chatId(chatId)
+                .text(PLACEHOLDER)
+                .build());
+        messageId = placeholder.getMessageId();
+        lastRendered = PLACEHOLDER;
+
+        typingHeartbeat = scheduler.scheduleAtFixedRate(this::sendTyping,
+                TYPING_INTERVAL_MS, TYPING_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /** Очередной фрагмент текста из стрима. */
+    synchronized void onDelta(String delta) {
+        current.append(delta);
+
+        if (!firstTokenSeen) {
+            firstTokenSeen = true;
+            stopTyping();
+        }
+
+        try {
+            rollOverIfNeeded();
+
+            long now = System.currentTimeMillis();
+            // первый токен показываем сразу, дальше — не чаще editIntervalMillis
+            if (lastEditAt == 0 || now - lastEditAt >= editIntervalMillis) {
+                render(current.toString(), null);
+                lastEditAt = now;
+            }
+        } catch (TelegramApiException e) {
+            // не рвём стрим из-за одной неудачной правки — следующая догонит
+            e.printStackTrace();
+        }
+    }
+
+    /** Финальная правка с полным текстом и клавиатурой. */
+    synchronized void finish(String fullText) throws TelegramApiException {
+        stopTyping();
+
+        // если стрим что-то потерял, доверяем полному тексту последнего сообщения
+        if (current.length() == 0 && fullText != null) {
+            current.append(fullText);
+        }
+        rollOverIfNeeded();
+
+        String text = current.toString().trim();
+        render(text.isEmpty() ? "…" : text, finalMarkup);
+    }
+
+    /** Ошибка: заменяем заглушку (или хвост ответа) текстом ошибки. */
+    synchronized void fail(String errorText) {
+        stopTyping();
+        try {
+            if (messageId == null) {
+                sender.execute(SendMessage.builder().chatId(chatId).text(errorText).build());
+            } else if (current.length() == 0) {
+                render(errorText, null);
+            } else {
+                sender.execute(SendMessage.builder().chatId(chatId).text(errorText).build());
+            }
+        } catch (TelegramApiException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void rollOverIfNeeded() throws TelegramApiException {
+        while (current.length() > TELEGRAM_TEXT_LIMIT) {
+            int cut = splitPoint(current);
+            String head = current.substring(0, cut);
+            String tail = current.substring(cut).stripLeading();
+
+            render(head, null);
+
+            Message next = sender.execute(SendMessage.builder()
+                    .chatId(chatId)
+                    .text(tail.isEmpty() ? "…" : tail.substring(0, Math.min(tail.length(), TELEGRAM_TEXT_LIMIT)))
+                    .build());
+            messageId = next.getMessageId();
+            lastRendered = next.getText();
+
+            current.setLength(0);
+            current.append(tail);
+        }
+    }
+
+    /** Стараемся резать по абзацу или пробелу, а не посреди слова. */
+    private static int splitPoint(CharSequence text) {
+        int limit = TELEGRAM_TEXT_LIMIT;
+        for (int i = limit; i > limit / 2; i--) {
+            if (text.charAt(i - 1) == '\n') return i;
+        }
+        for (int i = limit; i > limit / 2; i--) {
+            if (Character.isWhitespace(text.charAt(i - 1))) return i;
+        }
+        return limit;
+    }
+
+    private void render(String text, InlineKeyboardMarkup markup) throws TelegramApiException {
+        if (text.equals(lastRendered) && markup == null) {
+            return; // Telegram отвечает ошибкой на "message is not modified"
+        }
+        sender.execute(EditMessageText.builder()
+                .chatId(chatId)
+                .messageId(messageId)
+                .text(text)
+                .replyMarkup(markup)
+                .build());
+        lastRendered = text;
+    }
+
+    private void sendTyping() {
+        try {
+            sender.execute(SendChatAction.builder()
+                    .chatId(chatId)
+                    .action(ActionType.TYPING.toString())
+                    .build());
+        } catch (TelegramApiException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void stopTyping() {
+        if (typingHeartbeat != null) {
+            typingHeartbeat.cancel(false);
+            typingHeartbeat = null;
+        }
+    }
+}
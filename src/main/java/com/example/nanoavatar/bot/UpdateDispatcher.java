@@ -0,0 +1,275 @@
+package com.example.nanoavatar.bot;
+
+import com.example.nanoavatar.metrics.Counter;
+import com.example.nanoavatar.metrics.Histogram;
+import com.example.nanoavatar.metrics.Metrics;
+import org.telegram.telegrambots.meta.api.objects.Update;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Раздаёт апдейты Telegram по рабочим потокам.
+ *
+ * Для каждого chatId заводится своя «полоса» (lane): апдейты одного чата
+ * обрабатываются строго по очереди, разные чаты — параллельно.
+ *
+ * Ожидающих обработки апдейтов не больше queueDepth на все чаты. Когда места нет, приём ждёт:
+ * {@link #dispatch} (long polling) — сколько нужно, так что новые апдейты не забираются,
+ * {@link #offer} (webhook) — не дольше таймаута и возвращает false, чтобы Telegram повторил доставку.
+ * Выполнять полосу в принимающем потоке нельзя: один долгий ответ нейросети остановил бы приём для всех.
+ *
+ * В полосе одного чата ждут не больше {@value #MAX_LANE_DEPTH} апдейтов: сверх этого чат флудит,
+ * и его новые апдейты отбрасываются (nanoavatar_updates_shed_total{reason="lane_full"}), не занимая
+ * общую очередь. Платёжные апдейты (pre_checkout_query и successful_payment) не отбрасываются и
+ * не ждут места — их мало, а потерять оплаченное пополнение нельзя.
+ */
+public class UpdateDispatcher {
+
+    /** Предел апдейтов одного чата в очереди. */
+    public static final int MAX_LANE_DEPTH = 50;
+
+    private static final Histogram QUEUE_WAIT = Metrics.histogram("nanoavatar_update_queue_wait_seconds",
+            "Time an update waits in its chat lane before handling");
+    private static final Histogram HANDLE_TIME = Metrics.histogram("nanoavatar_update_handle_seconds",
+            "Update handling time");
+    private static final Counter SHED_LANE_FULL = Metrics.counter("nanoavatar_updates_shed_total",
+            "Updates dropped because their chat lane was full", "reason", "lane_full");
+    private static final Counter REJECTED = Metrics.counter("nanoavatar_updates_rejected_total",
+            "Updates refused because the dispatcher queue stayed full (redelivered by Telegram)");
+
+    private final ThreadPoolExecutor executor;
+    private final Consumer<Update> handler;
+    private final Map<Long, Lane> lanes = new ConcurrentHashMap<>();
+    // места в общей очереди; платёжные апдейты их не занимают
+    private final Semaphore slots;
+
+    // gauges
+    private final AtomicInteger queuedUpdates = new AtomicInteger();
+    private final AtomicLong processedUpdates = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    public UpdateDispatcher(int workerThreads, int queueDepth, Consumer<Update> handler) {
+        this.handler = handler;
+        this.slots = new Semaphore(Math.max(1, queueDepth));
+        // очередь пула ограничена местами: запущенных полос не больше, чем ожидающих апдейтов
+        this.executor = new ThreadPoolExecutor(
+                workerThreads, workerThreads,
+                60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(),
+                new WorkerThreadFactory());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /** Ставит апдейт в очередь, при необходимости дожидаясь места (long polling). */
+    public void dispatch(Update update) {
+        try {
+            enqueue(update, -1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            // поток приёма останавливают — апдейт всё же не теряем
+            enqueueWithoutSlot(update);
+        }
+    }
+
+    /**
+     * Ставит апдейт в очередь, ожидая места не дольше timeoutMs.
+     *
+     * @return false — очередь так и осталась полной, апдейт не принят
+     */
+    public boolean offer(Update update, long timeoutMs) throws InterruptedException {
+        return enqueue(update, Math.max(0, timeoutMs));
+    }
+
+    private boolean enqueue(Update update, long timeoutMs) throws InterruptedException {
+        if (isPayment(update)) {
+            enqueueWithoutSlot(update);
+            return true;
+        }
+        if (timeoutMs < 0) {
+            slots.acquire();
+        } else if (!slots.tryAcquire(timeoutMs, TimeUnit.MILLISECONDS)) {
+            REJECTED.inc();
+            return false;
+        }
+        if (!add(new Pending(update, System.nanoTime(), true))) {
+            slots.release();
+            SHED_LANE_FULL.inc();
+        }
+        return true;
+    }
+
+    private void enqueueWithoutSlot(Update update) {
+        add(new Pending(update, System.nanoTime(), false));
+    }
+
+    /** @return false — полоса чата переполнена, апдейт не добавлен */
+    private boolean add(Pending pending) {
+        long chatId = chatIdOf(pending.update);
+        while (true) {
+            Lane lane = lanes.computeIfAbsent(chatId, Lane::new);
+            boolean schedule;
+            synchronized (lane) {
+                if (lane.retired) {
+                    // полосу только что убрали из карты — берём свежую
+                    continue;
+                }
+                if (pending.holdsSlot && lane.queue.size() >= MAX_LANE_DEPTH) {
+                    return false;
+                }
+                lane.queue.add(pending);
+                schedule = !lane.scheduled;
+                lane.scheduled = true;
+            }
+            queuedUpdates.incrementAndGet();
+            if (schedule) {
+                try {
+                    executor.execute(() -> drain(lane));
+                } catch (RejectedExecutionException e) {
+                    // пул уже остановлен — дорабатываем полосу здесь, чтобы ничего не потерять
+                    drain(lane);
+                }
+            }
+            return true;
+        }
+    }
+
+    /** Платёж нельзя ни отбросить, ни задержать: Telegram ждёт ответ на pre_checkout_query 10 секунд. */
+    static boolean isPayment(Update update) {
+        return update.hasPreCheckoutQuery()
+                || (update.hasMessage() && update.getMessage().hasSuccessfulPayment());
+    }
+
+    private void drain(Lane lane) {
+        while (true) {
+            Pending next;
+            synchronized (lane) {
+                next = lane.queue.poll();
+                if (next == null) {
+                    lane.scheduled = false;
+                    // пустую полосу убираем, чтобы карта не росла бесконечно
+                    lane.retired = true;
+                    lanes.remove(lane.chatId, lane);
+                    return;
+                }
+            }
+            queuedUpdates.decrementAndGet();
+            if (next.holdsSlot) slots.release();
+            long startedAt = System.nanoTime();
+            recordWait(startedAt - next.enqueuedAt);
+
+            try {
+                handler.accept(next.update);
+            } catch (Exception e) {
+                e.printStackTrace();
+            } finally {
+                HANDLE_TIME.recordSince(startedAt);
+            }
+        }
+    }
+
+    private void recordWait(long waitNanos) {
+        QUEUE_WAIT.record(waitNanos);
+        processedUpdates.incrementAndGet();
+        totalWaitNanos.addAndGet(waitNanos);
+        maxWaitNanos.accumulateAndGet(waitNanos, Math::max);
+    }
+
+    /**
+     * chatId, по которому упорядочиваем апдейты.
+     * PreCheckoutQuery не содержит чата — для личных чатов id пользователя совпадает с chatId.
+     */
+    static long chatIdOf(Update update) {
+        if (update.hasMessage()) {
+            return update.getMessage().getChatId();
+        }
+        if (update.hasCallbackQuery() && update.getCallbackQuery().getMessage() != null) {
+            return update.getCallbackQuery().getMessage().getChatId();
+        }
+        if (update.hasPreCheckoutQuery()) {
+            return update.getPreCheckoutQuery().getFrom().getId();
+        }
+        return 0L;
+    }
+
+    // ===== GAUGES =====
+
+    /** Сколько апдейтов ждут обработки прямо сейчас. */
+    public int getQueuedUpdates() {
+        return queuedUpdates.get();
+    }
+
+    /** Сколько чатов сейчас имеют необработанные апдейты. */
+    public int getActiveLanes() {
+        return lanes.size();
+    }
+
+    public int getBusyWorkers() {
+        return executor.getActiveCount();
+    }
+
+    public long getProcessedUpdates() {
+        return processedUpdates.get();
+    }
+
+    /** Среднее время ожидания апдейта в очереди с момента старта, мс. */
+    public double getAverageWaitMillis() {
+        long count = processedUpdates.get();
+        return count == 0 ? 0.0 : totalWaitNanos.get() / 1_000_000.0 / count;
+    }
+
+    /** Максимальное время ожидания с момента последнего вызова, мс (счётчик сбрасывается). */
+    public double getAndResetMaxWaitMillis() {
+        return maxWaitNanos.getAndSet(0) / 1_000_000.0;
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    private static final class Lane {
+        final long chatId;
+        final ArrayDeque<Pending> queue = new ArrayDeque<>();
+        boolean scheduled;
+        boolean retired;
+
+        Lane(long chatId) {
+            this.chatId = chatId;
+        }
+    }
+
+    private static final class Pending {
+        final Update update;
+        final long enqueuedAt;
+        // занимает место в общей очереди (не платёж)
+        final boolean holdsSlot;
+
+        Pending(Update update, long enqueuedAt, boolean holdsSlot) {
+            this.update = update;
+            this.enqueuedAt = enqueuedAt;
+            this.holdsSlot = holdsSlot;
+        }
+    }
+
+    private static final class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "update-worker-" + counter.incrementAndGet());
+            t.setDaemon(false);
+            return t;
+        }
+    }
+}
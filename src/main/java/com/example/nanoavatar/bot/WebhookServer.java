@@ -0,0 +1,146 @@
+package com.example.nanoavatar.bot;
+
+import com.example.nanoavatar.metrics.Counter;
+import com.example.nanoavatar.metrics.Metrics;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.telegram.telegrambots.meta.api.objects.Update;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Приём апдейтов через webhook вместо long polling.
+ *
+ * HTTP-поток проверяет секрет, разбирает JSON и сам ставит апдейт в {@link UpdateDispatcher},
+ * ожидая места не дольше acceptTimeoutMs. Только после этого отвечаем 200; если очередь
+ * диспетчера так и осталась полной — 503, и Telegram повторит доставку позже.
+ * Сервер без TLS — HTTPS терминируется на прокси перед ним.
+ *
+ * Инстанс бота должен быть один: сессии, память разговоров, известные пользователи и кэш ответов
+ * живут в памяти процесса и сбрасываются в базу с задержкой, а ежедневный бонус и рассылки
+ * запускаются в каждом инстансе. Несколько инстансов за прокси читали бы устаревшее
+ * состояние чата и затирали бы записи друг друга.
+ */
+public class WebhookServer {
+
+    /** Заголовок, в котором Telegram присылает secret_token из setWebhook. */
+    static final String SECRET_HEADER = "X-Telegram-Bot-Api-Secret-Token";
+
+    // апдейт Telegram — единицы килобайт; тело больше этого не разбираем
+    private static final int MAX_BODY_BYTES = 1 << 20;
+
+    private static final Counter ACCEPTED = requests("accepted");
+    private static final Counter REJECTED_FULL = requests("queue_full");
+    private static final Counter REJECTED_SECRET = requests("bad_secret");
+    private static final Counter REJECTED_BAD_REQUEST = requests("bad_request");
+    private static final Counter REJECTED_TOO_LARGE = requests("too_large");
+
+    /** Куда отдать апдейт; false — места не нашлось за timeoutMs. */
+    @FunctionalInterface
+    public interface Sink {
+        boolean offer(Update update, long timeoutMs) throws InterruptedException;
+    }
+
+    private final HttpServer server;
+    private final ExecutorService httpExecutor;
+    private final byte[] secret;
+    private final long acceptTimeoutMs;
+    private final Sink sink;
+    private final ObjectMapper mapper = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    public WebhookServer(int port, String path, String secret, long acceptTimeoutMs, int httpThreads,
+                         Sink sink) throws IOException {
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+        this.acceptTimeoutMs = acceptTimeoutMs;
+        this.sink = sink;
+
+        this.server = HttpServer.create(new InetSocketAddress(port), 0);
+        AtomicInteger counter = new AtomicInteger();
+        this.httpExecutor = Executors.newFixedThreadPool(Math.max(1, httpThreads), r -> {
+            Thread t = new Thread(r, "webhook-http-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.server.setExecutor(httpExecutor);
+        this.server.createContext(path, this::handle);
+    }
+
+    private static Counter requests(String result) {
+        return Metrics.counter("nanoavatar_webhook_requests_total", "Webhook deliveries by result",
+                "result", result);
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    /** Перестаёт принимать запросы; апдейт, которому не ответили 200, Telegram пришлёт снова. */
+    public void stop() {
+        server.stop(1);
+        httpExecutor.shutdown();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                REJECTED_BAD_REQUEST.inc();
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            String token = exchange.getRequestHeaders().getFirst(SECRET_HEADER);
+            if (token == null
+                    || !MessageDigest.isEqual(secret, token.getBytes(StandardCharsets.UTF_8))) {
+                REJECTED_SECRET.inc();
+                exchange.sendResponseHeaders(401, -1);
+                return;
+            }
+
+            Update update;
+            try (InputStream in = exchange.getRequestBody()) {
+                byte[] body = in.readNBytes(MAX_BODY_BYTES + 1);
+                if (body.length > MAX_BODY_BYTES) {
+                    // на 413 Telegram повторял бы доставку бесконечно — подтверждаем и отбрасываем
+                    REJECTED_TOO_LARGE.inc();
+                    System.err.println("Dropped webhook update larger than " + MAX_BODY_BYTES + " bytes");
+                    exchange.sendResponseHeaders(200, -1);
+                    return;
+                }
+                update = mapper.readValue(body, Update.class);
+            } catch (IOException e) {
+                // Telegram повторяет доставку на любой не-2xx, а разобрать этот апдейт не выйдет и потом —
+                // подтверждаем и отбрасываем, чтобы он не мешал следующим
+                REJECTED_BAD_REQUEST.inc();
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+
+            boolean accepted;
+            try {
+                accepted = sink.offer(update, acceptTimeoutMs);
+            } catch (InterruptedException e) {
+                // сервер останавливают
+                Thread.currentThread().interrupt();
+                accepted = false;
+            }
+            if (!accepted) {
+                REJECTED_FULL.inc();
+                exchange.sendResponseHeaders(503, -1);
+                return;
+            }
+            ACCEPTED.inc();
+            exchange.sendResponseHeaders(200, -1);
+        } finally {
+            exchange.close();
+        }
+    }
+}
@@ -0,0 +1,318 @@
+package com.example.nanoavatar.broadcast;
+
+import com.example.nanoavatar.db.Database;
+import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
+import org.telegram.telegrambots.meta.bots.AbsSender;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiRequestException;
+
+import java.sql.*;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Массовые рассылки (ежедневный бонус, объявления админа).
+ *
+ * - все отправки идут через общий {@link TokenBucket} (лимит Telegram ~30 msg/s);
+ * - отправляют несколько потоков параллельно, 429 с retry_after ставит на паузу весь бакет;
+ * - получатели равномерно распределяются по окну доставки, чтобы не будить всех в одну секунду;
+ * - прогресс сохраняется в SQLite (broadcast_recipients), после рестарта рассылка продолжается.
+ *
+ * Статусы пишутся пачками, поэтому после падения процесса последние несколько
+ * получателей могут получить сообщение повторно — это осознанный компромисс.
+ */
+public class BroadcastService {
+
+    private static final int MAX_ATTEMPTS = 5;
+    private static final int CHECKPOINT_BATCH = 100;
+
+    private final Database db;
+    private final AbsSender sender;
+    private final TokenBucket bucket;
+    private final int senderThreads;
+
+    // рассылки выполняются по одной, сами сообщения — в senderPool
+    private final ExecutorService coordinator = Executors.newSingleThreadExecutor(
+            daemonThreads("broadcast-coordinator"));
+    private final ExecutorService senderPool;
+
+    public BroadcastService(Database db, AbsSender sender, double ratePerSecond, int senderThreads) {
+        this.db = db;
+        this.sender = sender;
+        this.senderThreads = Math.max(1, senderThreads);
+        this.bucket = new TokenBucket(ratePerSecond, Math.max(1, (int) ratePerSecond));
+        this.senderPool = Executors.newFixedThreadPool(this.senderThreads, daemonThreads("broadcast-sender"));
+    }
+
+    /**
+     * Создаёт рассылку (запись + все получатели одной транзакцией) и ставит её в очередь.
+     *
+     * @param kind   — тип рассылки, например DAILY_BONUS или ANNOUNCEMENT
+     * @param window — за какое время растянуть доставку (Duration.ZERO — как можно быстрее)
+     * @return id рассылки или -1, если получателей нет или запись не удалась
+     */
+    public long startBroadcast(String kind, String text, List<Long> chatIds, Duration window) {
+        if (chatIds.isEmpty()) return -1;
+
+        long broadcastId;
+        try (Connection conn = db.getConnection()) {
+            conn.setAutoCommit(false);
+            broadcastId = insertBroadcast(conn, kind, text, chatIds, window);
+            conn.commit();
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return -1;
+        }
+
+        launch(broadcastId);
+        return broadcastId;
+    }
+
+    /**
+     * Записывает рассылку и получателей в транзакции вызывающего — например, вместе с начислением,
+     * о котором она сообщает: упадёт процесс до commit — не будет ни того, ни другого,
+     * после commit — рассылку подхватит {@link #resumePending}.
+     * После commit вызывающий запускает её через {@link #launch}.
+     *
+     * @return id рассылки
+     */
+    public long insertBroadcast(Connection conn, String kind, String text, List<Long> chatIds,
+                                Duration window) throws SQLException {
+        long broadcastId;
+        try (PreparedStatement ps = conn.prepareStatement(
+                "INSERT INTO broadcasts(kind, text, status, started_at_ms, window_ms) " +
+                        "VALUES(?, ?, 'RUNNING', ?, ?) RETURNING id")) {
+            ps.setString(1, kind);
+            ps.setString(2, text);
+            ps.setLong(3, System.currentTimeMillis());
+            ps.setLong(4, window.toMillis());
+            try (ResultSet rs = ps.executeQuery()) {
+                rs.next();
+                broadcastId = rs.getLong(1);
+            }
+        }
+
+        try (PreparedStatement ps = conn.prepareStatement(
+                "INSERT OR IGNORE INTO broadcast_recipients(broadcast_id, chat_id) VALUES(?, ?)")) {
+            for (Long chatId : chatIds) {
+                ps.setLong(1, broadcastId);
+                ps.setLong(2, chatId);
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+        return broadcastId;
+    }
+
+    /** Ставит записанную рассылку в очередь на отправку. */
+    public void launch(long broadcastId) {
+        coordinator.execute(() -> run(broadcastId));
+    }
+
+    /** Продолжает рассылки, прерванные рестартом. Вызывать один раз при старте. */
+    public void resumePending() {
+        List<Long> ids = new ArrayList<>();
+        try (Connection conn = db.getConnection();
+             PreparedStatement ps = conn.prepareStatement(
+                     "SELECT id FROM broadcasts WHERE status = 'RUNNING' ORDER BY id")) {
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) ids.add(rs.getLong(1));
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return;
+        }
+        for (Long id : ids) {
+            coordinator.execute(() -> run(id));
+        }
+    }
+
+    // ===== ВЫПОЛНЕНИЕ =====
+
+    private void run(long broadcastId) {
+        try {
+            Broadcast broadcast = loadBroadcast(broadcastId);
+            if (broadcast == null) return;
+
+            List<Long> pending = loadPendingRecipients(broadcastId);
+
+            // оставшееся окно делим поровну между оставшимися получателями
+            long now = System.currentTimeMillis();
+            long remainingWindowMs = Math.max(0, broadcast.startedAtMs + broadcast.windowMs - now);
+            long spacingNanos = pending.isEmpty()
+                    ? 0
+                    : TimeUnit.MILLISECONDS.toNanos(remainingWindowMs) / pending.size();
+
+            ConcurrentLinkedQueue<Outcome> outcomes = new ConcurrentLinkedQueue<>();
+            Semaphore inFlight = new Semaphore(senderThreads * 2);
+            CountDownLatch done = new CountDownLatch(pending.size());
+            long startNanos = System.nanoTime();
+
+            for (int i = 0; i < pending.size(); i++) {
+                long slot = startNanos + spacingNanos * i;
+                long wait = slot - System.nanoTime();
+                if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+
+                long chatId = pending.get(i);
+                inFlight.acquire();
+                senderPool.execute(() -> {
+                    try {
+                        outcomes.add(new Outcome(chatId, deliver(chatId, broadcast.text)));
+                    } finally {
+                        inFlight.release();
+                        done.countDown();
+                    }
+                });
+
+                if (outcomes.size() >= CHECKPOINT_BATCH) {
+                    checkpoint(broadcastId, outcomes);
+                }
+            }
+
+            done.await();
+            checkpoint(broadcastId, outcomes);
+            markFinished(broadcastId);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /** @return SENT или FAILED */
+    private String deliver(long chatId, String text) {
+        SendMessage msg = SendMessage.builder()
+                .chatId(chatId)
+                .text(text)
+                .build();
+
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+            try {
+                bucket.acquire();
+                sender.execute(msg);
+                return "SENT";
+            } catch (TelegramApiRequestException e) {
+                Integer code = e.getErrorCode();
+                if (code != null && code == 429) {
+                    int retryAfter = e.getParameters() != null && e.getParameters().getRetryAfter() != null
+                            ? e.getParameters().getRetryAfter()
+                            : 1;
+                    bucket.pauseFor(retryAfter);
+                    continue;
+                }
+                if (code != null && (code == 400 || code == 403)) {
+                    // бот заблокирован / чат удалён — повторять бессмысленно
+                    return "FAILED";
+                }
+                backoff(attempt);
+            } catch (TelegramApiException e) {
+                backoff(attempt);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return "FAILED";
+            }
+        }
+        return "FAILED";
+    }
+
+    private static void backoff(int attempt) {
+        try {
+            Thread.sleep(500L * attempt);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // ===== ЧЕКПОИНТЫ =====
+
+    private void checkpoint(long broadcastId, ConcurrentLinkedQueue<Outcome> outcomes) {
+        if (outcomes.isEmpty()) return;
+
+        try (Connection conn = db.getConnection();
+             PreparedStatement ps = conn.prepareStatement(
+                     "UPDATE broadcast_recipients SET status = ? WHERE broadcast_id = ? AND chat_id = ?")) {
+            conn.setAutoCommit(false);
+            Outcome outcome;
+            while ((outcome = outcomes.poll()) != null) {
+                ps.setString(1, outcome.status);
+                ps.setLong(2, broadcastId);
+                ps.setLong(3, outcome.chatId);
+                ps.addBatch();
+            }
+            ps.executeBatch();
+            conn.commit();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void markFinished(long broadcastId) throws SQLException {
+        try (Connection conn = db.getConnection();
+             PreparedStatement ps = conn.prepareStatement(
+                     "UPDATE broadcasts SET status = 'DONE', finished_at_ms = ? WHERE id = ?")) {
+            ps.setLong(1, System.currentTimeMillis());
+            ps.setLong(2, broadcastId);
+            ps.executeUpdate();
+        }
+    }
+
+    private Broadcast loadBroadcast(long broadcastId) throws SQLException {
+        try (Connection conn = db.getConnection();
+             PreparedStatement ps = conn.prepareStatement(
+                     "SELECT text, started_at_ms, window_ms FROM broadcasts WHERE id = ?")) {
+            ps.setLong(1, broadcastId);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (!rs.next()) return null;
+                return new Broadcast(rs.getString(1), rs.getLong(2), rs.getLong(3));
+            }
+        }
+    }
+
+    private List<Long> loadPendingRecipients(long broadcastId) throws SQLException {
+        List<Long> list = new ArrayList<>();
+        try (Connection conn = db.getConnection();
+             PreparedStatement ps = conn.prepareStatement(
+                     "SELECT chat_id FROM broadcast_recipients " +
+                             "WHERE broadcast_id = ? AND status = 'PENDING' ORDER BY rowid")) {
+            ps.setLong(1, broadcastId);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) list.add(rs.getLong(1));
+            }
+        }
+        return list;
+    }
+
+    private static ThreadFactory daemonThreads(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, prefix + "-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    private static final class Broadcast {
+        final String text;
+        final long startedAtMs;
+        final long windowMs;
+
+        Broadcast(String text, long startedAtMs, long windowMs) {
+            this.text = text;
+            this.startedAtMs = startedAtMs;
+            this.windowMs = windowMs;
+        }
+    }
+
+    private static final class Outcome {
+        final long chatId;
+        final String status;
+
+        Outcome(long chatId, String status) {
+            this.chatId = chatId;
+            this.status = status;
+        }
+    }
+}
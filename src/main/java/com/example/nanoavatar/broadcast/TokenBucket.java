@@ -0,0 +1,54 @@
+package com.example.nanoavatar.broadcast;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Глобальный token bucket для исходящих сообщений рассылки.
+ *
+ * Токены пополняются со скоростью ratePerSecond, копятся не больше burst.
+ * acquire() блокирует поток, пока не появится токен.
+ * pauseFor() останавливает выдачу всем потокам — так соблюдаем retry_after от Telegram.
+ */
+public class TokenBucket {
+
+    private final long nanosPerToken;
+    private final long burstNanos;
+
+    // момент, когда бакет "опустеет" с учётом уже выданных токенов
+    private long nextFreeNanos;
+
+    public TokenBucket(double ratePerSecond, int burst) {
+        if (ratePerSecond <= 0) {
+            throw new IllegalArgumentException("ratePerSecond must be positive");
+        }
+        this.nanosPerToken = (long) (TimeUnit.SECONDS.toNanos(1) / ratePerSecond);
+        this.burstNanos = nanosPerToken * Math.max(1, burst);
+        this.nextFreeNanos = System.nanoTime();
+    }
+
+    public void acquire() throws InterruptedException {
+        long waitNanos = reserve();
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    /** Никаких токенов ближайшие seconds секунд (ответ 429 с retry_after). */
+    public synchronized void pauseFor(long seconds) {
+        long resumeAt = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        if (resumeAt > nextFreeNanos) {
+            nextFreeNanos = resumeAt;
+        }
+    }
+
+    private synchronized long reserve() {
+        long now = System.nanoTime();
+        // накопленный запас не больше burst
+        if (nextFreeNanos < now - burstNanos + nanosPerToken) {
+            nextFreeNanos = now - burstNanos + nanosPerToken;
+        }
+        long slot = nextFreeNanos;
+        nextFreeNanos += nanosPerToken;
+        return slot - now;
+    }
+}
@@ -1,46 +1,332 @@
 package com.example.nanoavatar.db;
 
+import com.example.nanoavatar.metrics.Histogram;
+import com.example.nanoavatar.metrics.Metrics;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.sql.*;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Доступ к SQLite.
+ *
+ * Соединения берутся из небольшого пула: открытие файла и PRAGMA выполняются один раз
+ * на соединение, а не на каждый запрос. Каждое соединение настроено на WAL,
+ * synchronous=NORMAL и busy_timeout, и держит свой кэш подготовленных запросов.
+ *
+ * Вызывающий код работает как раньше: try-with-resources вокруг getConnection()
+ * и prepareStatement(sql) — close() возвращает соединение в пул, а запрос в кэш.
+ * При poolSize = 0 пул выключен и каждое соединение открывается через DriverManager.
+ *
+ * Вложенных getConnection() в коде нет: поток держит не больше одного соединения за раз.
+ * Поэтому пулу хватает числа рабочих потоков плюс фоновые задачи ({@link #poolSizeFor});
+ * меньший пул не взаимоблокируется, но под нагрузкой потоки ждут соединение до 30 с.
+ */
 public class Database {
+
+    public static final int DEFAULT_POOL_SIZE = 4;
+    // сброс сессий и разговоров, ежедневный бонус, рассылки
+    private static final int BACKGROUND_CONNECTIONS = 4;
+    public static final int DEFAULT_BUSY_TIMEOUT_MS = 5000;
+    public static final int DEFAULT_STATEMENT_CACHE_SIZE = 32;
+
+    private static final Histogram ACQUIRE_WAIT = Metrics.histogram("nanoavatar_db_pool_acquire_seconds",
+            "Time spent waiting for a pooled DB connection");
+
+    // сколько ждём свободное соединение, прежде чем сдаться
+    private static final long ACQUIRE_TIMEOUT_MS = 30_000;
+
     private final String url;
+    private final int poolSize;
+    private final int busyTimeoutMs;
+    private final int statementCacheSize;
+
+    private final BlockingQueue<PooledConnection> idle;
+    private final AtomicInteger opened = new AtomicInteger();
 
     public Database(String dbPath) {
+        this(dbPath, DEFAULT_POOL_SIZE, DEFAULT_BUSY_TIMEOUT_MS, DEFAULT_STATEMENT_CACHE_SIZE);
+    }
+
+    public Database(String dbPath, int poolSize, int busyTimeoutMs, int statementCacheSize) {
         this.url = "jdbc:sqlite:" + dbPath;
+        this.poolSize = Math.max(0, poolSize);
+        this.busyTimeoutMs = busyTimeoutMs;
+        this.statementCacheSize = Math.max(0, statementCacheSize);
+        this.idle = new ArrayBlockingQueue<>(Math.max(1, this.poolSize));
         init();
+        Metrics.gauge("nanoavatar_db_pool_open", "Open pooled DB connections", opened::get);
+        Metrics.gauge("nanoavatar_db_pool_idle", "Idle pooled DB connections", idle::size);
+    }
+
+    /** Размер пула, при котором рабочие потоки обработки апдейтов не ждут соединение друг за другом. */
+    public static int poolSizeFor(int workerThreads) {
+        return Math.max(DEFAULT_POOL_SIZE, workerThreads + BACKGROUND_CONNECTIONS);
     }
 
     public Connection getConnection() throws SQLException {
-        return DriverManager.getConnection(url);
+        if (poolSize == 0) {
+            return DriverManager.getConnection(url);
+        }
+
+        PooledConnection pooled = idle.poll();
+        if (pooled == null) {
+            pooled = openIfBelowLimit();
+        }
+        if (pooled == null) {
+            long start = System.nanoTime();
+            try {
+                pooled = idle.poll(ACQUIRE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while waiting for a DB connection", e);
+            } finally {
+                ACQUIRE_WAIT.recordSince(start);
+            }
+            if (pooled == null) {
+                throw new SQLException("No free DB connection in " + ACQUIRE_TIMEOUT_MS + " ms");
+            }
+        }
+        return pooled.lease();
     }
 
-    private void init() {
+    /** Для /health: база отвечает на простой запрос. */
+    public boolean isHealthy() {
         try (Connection conn = getConnection();
              Statement st = conn.createStatement()) {
+            st.execute("SELECT 1");
+            return true;
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /** Закрывает все простаивающие соединения пула. */
+    public void close() {
+        PooledConnection pooled;
+        while ((pooled = idle.poll()) != null) {
+            pooled.closePhysical();
+        }
+    }
+
+    private PooledConnection openIfBelowLimit() throws SQLException {
+        while (true) {
+            int current = opened.get();
+            if (current >= poolSize) return null;
+            if (opened.compareAndSet(current, current + 1)) break;
+        }
+        try {
+            return new PooledConnection(openTuned());
+        } catch (SQLException | RuntimeException e) {
+            opened.decrementAndGet();
+            throw e;
+        }
+    }
+
+    private Connection openTuned() throws SQLException {
+        Connection conn = DriverManager.getConnection(url);
+        try (Statement st = conn.createStatement()) {
+            st.execute("PRAGMA journal_mode = WAL");
+            st.execute("PRAGMA synchronous = NORMAL");
+            st.execute("PRAGMA busy_timeout = " + busyTimeoutMs);
+        } catch (SQLException e) {
+            conn.close();
+            throw e;
+        }
+        return conn;
+    }
+
+    private void release(PooledConnection pooled) {
+        try {
+            Connection physical = pooled.physical;
+            if (!physical.getAutoCommit()) {
+                // незавершённую транзакцию (например, после исключения) откатываем
+                physical.rollback();
+                physical.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+            pooled.closePhysical();
+            opened.decrementAndGet();
+            return;
+        }
+        if (!idle.offer(pooled)) {
+            pooled.closePhysical();
+            opened.decrementAndGet();
+        }
+    }
+
+    /**
+     * Физическое соединение пула + его кэш подготовленных запросов.
+     * Наружу отдаётся через прокси, у которого close() означает "вернуть в пул".
+     */
+    private final class PooledConnection {
+        final Connection physical;
+        final Map<String, CachedStatement> statements;
+
+        PooledConnection(Connection physical) {
+            this.physical = physical;
+            this.statements = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CachedStatement> eldest) {
+                    if (size() > statementCacheSize) {
+                        // занятый запрос закроется, когда его вернут
+                        eldest.getValue().evict();
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+
+        Connection lease() {
+            return (Connection) Proxy.newProxyInstance(
+                    Database.class.getClassLoader(),
+                    new Class<?>[]{Connection.class},
+                    new ConnectionHandler(this));
+        }
+
+        PreparedStatement prepare(String sql) throws SQLException {
+            if (statementCacheSize == 0) {
+                return physical.prepareStatement(sql);
+            }
+            CachedStatement cached = statements.get(sql);
+            if (cached == null) {
+                cached = new CachedStatement(physical.prepareStatement(sql));
+                statements.put(sql, cached);
+            } else if (cached.inUse) {
+                // тот же SQL уже открыт выше по стеку — отдаём отдельный, некэшируемый запрос
+                return physical.prepareStatement(sql);
+            }
+            return cached.lease();
+        }
+
+        void closePhysical() {
+            for (Iterator<CachedStatement> it = statements.values().iterator(); it.hasNext(); ) {
+                it.next().closeQuietly();
+                it.remove();
+            }
+            try {
+                physical.close();
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private final class ConnectionHandler implements InvocationHandler {
+        private final PooledConnection pooled;
+        private boolean closed;
+
+        ConnectionHandler(PooledConnection pooled) {
+            this.pooled = pooled;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if ("close".equals(name)) {
+                if (!closed) {
+                    closed = true;
+                    release(pooled);
+                }
+                return null;
+            }
+            if ("isClosed".equals(name)) {
+                return closed;
+            }
+            if (closed) {
+                throw new SQLException("Connection is already returned to the pool");
+            }
+            if ("prepareStatement".equals(name) && args != null && args.length == 1) {
+                return pooled.prepare((String) args[0]);
+            }
+            return invokeOn(pooled.physical, method, args);
+        }
+    }
 
-            st.execute("""
-                CREATE TABLE IF NOT EXISTS users (
-                    id INTEGER PRIMARY KEY AUTOINCREMENT,
-                    chat_id INTEGER UNIQUE NOT NULL,
-                    username TEXT,
-                    balance INTEGER NOT NULL DEFAULT 15,
-                    last_bonus_date TEXT
-                );
-            """);
-
-            st.execute("""
-                CREATE TABLE IF NOT EXISTS transactions (
-                    id INTEGER PRIMARY KEY AUTOINCREMENT,
-                    user_id INTEGER NOT NULL,
-                    type TEXT NOT NULL,
-                    amount INTEGER NOT NULL,
-                    payload TEXT,
-                    created_at TEXT DEFAULT CURRENT_TIMESTAMP,
-                    FOREIGN KEY(user_id) REFERENCES users(id)
-                );
-            """);
+    /** Подготовленный запрос из кэша: close() только очищает параметры. */
+    private static final class CachedStatement implements InvocationHandler {
+        private final PreparedStatement physical;
+        private final PreparedStatement proxy;
+        boolean inUse;
+        // вытеснен из кэша, пока был занят
+        private boolean evicted;
+
+        CachedStatement(PreparedStatement physical) {
+            this.physical = physical;
+            this.proxy = (PreparedStatement) Proxy.newProxyInstance(
+                    Database.class.getClassLoader(),
+                    new Class<?>[]{PreparedStatement.class},
+                    this);
+        }
+
+        PreparedStatement lease() {
+            inUse = true;
+            return proxy;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if ("close".equals(name)) {
+                if (inUse) {
+                    inUse = false;
+                    if (evicted) {
+                        physical.close();
+                    } else {
+                        physical.clearParameters();
+                    }
+                }
+                return null;
+            }
+            if ("isClosed".equals(name)) {
+                return !inUse;
+            }
+            return invokeOn(physical, method, args);
+        }
+
+        void evict() {
+            if (inUse) {
+                evicted = true;
+            } else {
+                closeQuietly();
+            }
+        }
+
+        void closeQuietly() {
+            try {
+                physical.close();
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static Object invokeOn(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    // схема доводится до последней версии миграциями из resources/db/migration
+    private void init() {
+        try (Connection conn = getConnection()) {
+            new MigrationRunner().migrate(conn);
         } catch (SQLException e) {
             throw new RuntimeException("DB init failed", e);
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,152 @@
+package com.example.nanoavatar.db;
+
+import com.example.nanoavatar.metrics.Metrics;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Версионные миграции схемы.
+ *
+ * Скрипты лежат в classpath в db/migration и называются V&lt;номер&gt;__&lt;описание&gt;.sql;
+ * номера идут подряд с 1. Применённые версии записываются в schema_version, при старте
+ * выполняются только новые — каждая в своей транзакции вместе с записью о ней, так что
+ * упавшая миграция не оставляет схему наполовину изменённой и повторится при следующем запуске.
+ *
+ * База, созданная до миграций, схемы версии не имеет: V1 написан через IF NOT EXISTS
+ * и на ней ничего не меняет. SQLite не умеет ADD COLUMN IF NOT EXISTS, поэтому
+ * ALTER TABLE ... ADD COLUMN для уже существующей колонки пропускается.
+ */
+class MigrationRunner {
+
+    private static final String LOCATION = "db/migration/";
+
+    // новый скрипт добавляется сюда и в resources/db/migration
+    static final List<String> SCRIPTS = List.of(
+            "V1__baseline.sql",
+            "V2__transaction_tokens.sql",
+            "V3__hot_path_indexes.sql"
+    );
+
+    private final List<String> scripts;
+
+    MigrationRunner() {
+        this(SCRIPTS);
+    }
+
+    MigrationRunner(List<String> scripts) {
+        this.scripts = scripts;
+        for (int i = 0; i < scripts.size(); i++) {
+            if (version(scripts.get(i)) != i + 1) {
+                throw new IllegalArgumentException("Migration " + scripts.get(i) + " is out of order");
+            }
+        }
+    }
+
+    /** Доводит схему до последней версии. @return итоговая версия */
+    int migrate(Connection conn) throws SQLException {
+        try (Statement st = conn.createStatement()) {
+            st.execute("""
+                CREATE TABLE IF NOT EXISTS schema_version (
+                    version INTEGER PRIMARY KEY,
+                    name TEXT NOT NULL,
+                    applied_at_ms INTEGER NOT NULL
+                );
+            """);
+        }
+
+        int current = currentVersion(conn);
+        for (int v = current + 1; v <= scripts.size(); v++) {
+            apply(conn, v, scripts.get(v - 1));
+            current = v;
+        }
+        int schemaVersion = current;
+        Metrics.gauge("nanoavatar_db_schema_version", "Applied DB schema version", () -> schemaVersion);
+        return current;
+    }
+
+    private static int currentVersion(Connection conn) throws SQLException {
+        try (Statement st = conn.createStatement();
+             ResultSet rs = st.executeQuery("SELECT COALESCE(MAX(version), 0) FROM schema_version")) {
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+    }
+
+    private static void apply(Connection conn, int version, String name) throws SQLException {
+        List<String> statements = split(load(name));
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try {
+            try (Statement st = conn.createStatement()) {
+                for (String sql : statements) {
+                    execute(st, sql);
+                }
+            }
+            try (PreparedStatement ps = conn.prepareStatement(
+                    "INSERT INTO schema_version(version, name, applied_at_ms) VALUES(?, ?, ?)")) {
+                ps.setInt(1, version);
+                ps.setString(2, name);
+                ps.setLong(3, System.currentTimeMillis());
+                ps.executeUpdate();
+            }
+            conn.commit();
+        } catch (SQLException e) {
+            conn.rollback();
+            throw new SQLException("Migration " + name + " failed", e);
+        } finally {
+            conn.setAutoCommit(autoCommit);
+        }
+    }
+
+    private static void execute(Statement st, String sql) throws SQLException {
+        try {
+            st.execute(sql);
+        } catch (SQLException e) {
+            // колонку уже добавила версия до миграций
+            String msg = e.getMessage();
+            boolean addColumn = sql.toUpperCase().matches("(?s)ALTER\\s+TABLE\\s+.*\\s+ADD\\s+COLUMN\\s+.*");
+            if (!addColumn || msg == null || !msg.contains("duplicate column name")) throw e;
+        }
+    }
+
+    private static String load(String name) throws SQLException {
+        try (InputStream in = MigrationRunner.class.getClassLoader().getResourceAsStream(LOCATION + name)) {
+            if (in == null) throw new SQLException("Migration script not found: " + LOCATION + name);
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new SQLException("Cannot read migration " + name, e);
+        }
+    }
+
+    /**
+     * Делит скрипт на запросы по ';' в конце строки; строки-комментарии "--" отбрасываются.
+     * Триггеров и ';' внутри строковых литералов в скриптах нет — на большее разбор не рассчитан.
+     */
+    static List<String> split(String script) {
+        List<String> statements = new ArrayList<>();
+        StringBuilder current = new StringBuilder();
+        for (String line : script.split("\r?\n")) {
+            String trimmed = line.trim();
+            if (trimmed.isEmpty() || trimmed.startsWith("--")) continue;
+            current.append(line).append('\n');
+            if (trimmed.endsWith(";")) {
+                statements.add(current.toString().trim());
+                current.setLength(0);
+            }
+        }
+        if (!current.toString().isBlank()) statements.add(current.toString().trim());
+        return statements;
+    }
+
+    private static int version(String name) {
+        int sep = name.indexOf("__");
+        if (!name.startsWith("V") || sep < 2) {
+            throw new IllegalArgumentException("Bad migration name: " + name);
+        }
+        return Integer.parseInt(name.substring(1, sep));
+    }
+}
@@ -14,6 +14,10 @@ public class FilterNode {
     private final String promptPart;  // доп. инструкции для системного промпта
     private final String parentId;
     private final List<String> childrenIds = new ArrayList<>();
+    // можно ли отдавать ответ с этой опцией из кэша (игры, юмор и т.п. — нельзя)
+    private boolean cacheable = true;
+    // плотный номер опции (бит в OptionMask); у корня и категорий -1
+    private int leafIndex = -1;
 
     public FilterNode(String id, String title, String description, String promptPart, String parentId) {
         this.id = id;
@@ -32,6 +36,12 @@ public class FilterNode {
 
     public boolean isLeaf() { return childrenIds.isEmpty(); }
 
+    public boolean isCacheable() { return cacheable; }
+    void setCacheable(boolean cacheable) { this.cacheable = cacheable; }
+
+    public int getLeafIndex() { return leafIndex; }
+    void setLeafIndex(int leafIndex) { this.leafIndex = leafIndex; }
+
     public void addChild(String childId) {
         childrenIds.add(childId);
     }
@@ -1,8 +1,11 @@
 package com.example.nanoavatar.filters;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Регистр всех настроек бота.
@@ -14,10 +17,39 @@ public class FilterRegistry {
 
     public static final String ROOT_ID = "root";
 
+    // сколько разных наборов опций запоминаем; пресеты дают несколько самых частых
+    private static final int MODE_SETTINGS_CACHE_LIMIT = 10_000;
+
     private final Map<String, FilterNode> nodes = new LinkedHashMap<>();
 
+    // опции по плотному индексу (бит в OptionMask)
+    private final List<FilterNode> leaves = new ArrayList<>();
+    // маска всех опций категории — для "включить/выключить всё"
+    private final Map<String, OptionMask> categoryMasks = new LinkedHashMap<>();
+    private final Map<OptionMask, ModeSettings> modeSettingsCache = new ConcurrentHashMap<>();
+
     public FilterRegistry() {
         buildTree();
+        indexLeaves();
+
+        // творческие опции должны давать разные ответы — их не кэшируем
+        markNotCacheable("cat_games", "cat_weird", "emo_fun", "role_storyteller", "text_titles");
+    }
+
+    private void indexLeaves() {
+        for (FilterNode node : nodes.values()) {
+            if (node.getId().equals(ROOT_ID) || !node.isLeaf()) continue;
+            node.setLeafIndex(leaves.size());
+            leaves.add(node);
+        }
+        for (FilterNode node : nodes.values()) {
+            if (node.getId().equals(ROOT_ID) || node.isLeaf()) continue;
+            OptionMask mask = OptionMask.EMPTY;
+            for (String childId : node.getChildrenIds()) {
+                mask = mask.with(nodes.get(childId).getLeafIndex());
+            }
+            categoryMasks.put(node.getId(), mask);
+        }
     }
 
     private void buildTree() {
@@ -390,6 +422,18 @@ public class FilterRegistry {
                 "cat_daily");
     }
 
+    /** Категория снимает кэширование со всех своих опций. */
+    private void markNotCacheable(String... ids) {
+        for (String id : ids) {
+            FilterNode node = nodes.get(id);
+            if (node == null) continue;
+            node.setCacheable(false);
+            for (String childId : node.getChildrenIds()) {
+                nodes.get(childId).setCacheable(false);
+            }
+        }
+    }
+
     private void addCategory(String id, String title) {
         addNode(new FilterNode(id, title, "", "", ROOT_ID));
     }
@@ -420,4 +464,78 @@ public class FilterRegistry {
     public Collection<FilterNode> getAllNodes() {
         return nodes.values();
     }
+
+    // ===== ОПЦИИ КАК БИТЫ =====
+
+    public int getLeafCount() {
+        return leaves.size();
+    }
+
+    public FilterNode getLeaf(int leafIndex) {
+        return leaves.get(leafIndex);
+    }
+
+    /** Маска из id опций; неизвестные id и категории пропускаются. */
+    public OptionMask maskOf(Collection<String> optionIds) {
+        OptionMask mask = OptionMask.EMPTY;
+        for (String id : optionIds) {
+            FilterNode node = nodes.get(id);
+            if (node != null && node.getLeafIndex() >= 0) {
+                mask = mask.with(node.getLeafIndex());
+            }
+        }
+        return mask;
+    }
+
+    /** Все опции категории (пустая маска для неизвестного id). */
+    public OptionMask categoryMask(String categoryId) {
+        return categoryMasks.getOrDefault(categoryId, OptionMask.EMPTY);
+    }
+
+    /** id включённых опций в порядке регистрации. */
+    public List<String> idsOf(OptionMask mask) {
+        List<String> ids = new ArrayList<>();
+        for (int i = mask.nextSetBit(0); i >= 0 && i < leaves.size(); i = mask.nextSetBit(i + 1)) {
+            ids.add(leaves.get(i).getId());
+        }
+        return ids;
+    }
+
+    /**
+     * modePrompt, payload для журнала и кэшируемость для набора опций.
+     * Результат запоминается по маске — повторная сборка сводится к поиску в карте.
+     */
+    public ModeSettings modeSettings(OptionMask mask) {
+        ModeSettings cached = modeSettingsCache.get(mask);
+        if (cached != null) return cached;
+
+        ModeSettings built = buildModeSettings(mask);
+        if (modeSettingsCache.size() < MODE_SETTINGS_CACHE_LIMIT) {
+            modeSettingsCache.putIfAbsent(mask, built);
+        }
+        return built;
+    }
+
+    // без кэша; package-private для ModeSettingsBenchmark
+    ModeSettings buildModeSettings(OptionMask mask) {
+        StringBuilder prompt = new StringBuilder();
+        StringBuilder payload = new StringBuilder();
+        boolean cacheable = true;
+
+        for (int i = mask.nextSetBit(0); i >= 0 && i < leaves.size(); i = mask.nextSetBit(i + 1)) {
+            FilterNode node = leaves.get(i);
+            if (!node.isCacheable()) cacheable = false;
+
+            if (payload.length() > 0) payload.append(',');
+            payload.append(node.getId());
+
+            if (node.getPromptPart() != null && !node.getPromptPart().isBlank()) {
+                prompt.append("- ").append(node.getPromptPart()).append("\n");
+            }
+        }
+
+        return new ModeSettings(prompt.toString(),
+                payload.length() > 0 ? payload.toString() : "default",
+                cacheable);
+    }
 }
\ No newline at end of file
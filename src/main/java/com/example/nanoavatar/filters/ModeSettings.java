@@ -0,0 +1,21 @@
+package com.example.nanoavatar.filters;
+
+/**
+ * Всё, что нужно для запроса к нейросети по набору опций:
+ * собранный modePrompt, строка для SPEND-записи в журнале и признак кэшируемости.
+ */
+public class ModeSettings {
+    private final String modePrompt;
+    private final String spendPayload;
+    private final boolean cacheable;
+
+    ModeSettings(String modePrompt, String spendPayload, boolean cacheable) {
+        this.modePrompt = modePrompt;
+        this.spendPayload = spendPayload;
+        this.cacheable = cacheable;
+    }
+
+    public String getModePrompt() { return modePrompt; }
+    public String getSpendPayload() { return spendPayload; }
+    public boolean isCacheable() { return cacheable; }
+}
@@ -0,0 +1,100 @@
+package com.example.nanoavatar.filters;
+
+import java.util.Arrays;
+
+/**
+ * Неизменяемый набор включённых опций в виде битовой маски.
+ * Бит i соответствует опции с {@link FilterNode#getLeafIndex()} == i.
+ *
+ * Неизменяемость позволяет использовать маску как ключ мемоизации
+ * (см. {@link FilterRegistry#modeSettings(OptionMask)}) и спокойно читать её из других потоков.
+ */
+public final class OptionMask {
+
+    public static final OptionMask EMPTY = new OptionMask(new long[0]);
+
+    private final long[] words;
+
+    private OptionMask(long[] words) {
+        this.words = words;
+    }
+
+    public static OptionMask fromLongArray(long[] words) {
+        return new OptionMask(trim(words.clone()));
+    }
+
+    public long[] toLongArray() {
+        return words.clone();
+    }
+
+    public boolean contains(int index) {
+        if (index < 0) return false;
+        int w = index >>> 6;
+        return w < words.length && (words[w] & (1L << index)) != 0;
+    }
+
+    public OptionMask with(int index) {
+        if (index < 0 || contains(index)) return this;
+        long[] copy = Arrays.copyOf(words, Math.max(words.length, (index >>> 6) + 1));
+        copy[index >>> 6] |= 1L << index;
+        return new OptionMask(copy);
+    }
+
+    public OptionMask without(int index) {
+        if (!contains(index)) return this;
+        long[] copy = words.clone();
+        copy[index >>> 6] &= ~(1L << index);
+        return new OptionMask(trim(copy));
+    }
+
+    public OptionMask toggle(int index) {
+        return contains(index) ? without(index) : with(index);
+    }
+
+    public OptionMask union(OptionMask other) {
+        long[] copy = Arrays.copyOf(words, Math.max(words.length, other.words.length));
+        for (int i = 0; i < other.words.length; i++) copy[i] |= other.words[i];
+        return new OptionMask(copy);
+    }
+
+    public OptionMask minus(OptionMask other) {
+        long[] copy = words.clone();
+        for (int i = 0; i < Math.min(copy.length, other.words.length); i++) copy[i] &= ~other.words[i];
+        return new OptionMask(trim(copy));
+    }
+
+    public boolean isEmpty() {
+        return words.length == 0;
+    }
+
+    /** Индекс следующего установленного бита начиная с from, или -1. */
+    public int nextSetBit(int from) {
+        int w = from >>> 6;
+        if (w >= words.length) return -1;
+        long word = words[w] & (-1L << from);
+        while (true) {
+            if (word != 0) return (w << 6) + Long.numberOfTrailingZeros(word);
+            if (++w == words.length) return -1;
+            word = words[w];
+        }
+    }
+
+    // старшие нулевые слова отбрасываем, чтобы equals не зависел от истории правок
+    private static long[] trim(long[] words) {
+        int len = words.length;
+        while (len > 0 && words[len - 1] == 0) len--;
+        return len == words.length ? words : Arrays.copyOf(words, len);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof OptionMask)) return false;
+        return Arrays.equals(words, ((OptionMask) o).words);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(words);
+    }
+}
@@ -0,0 +1,198 @@
+package com.example.nanoavatar.memory;
+
+import com.example.nanoavatar.ai.ChatRequest;
+import com.example.nanoavatar.ai.ChatTurn;
+import com.example.nanoavatar.ai.ReplyCache;
+import com.example.nanoavatar.ai.TokenEstimator;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Память одного чата: краткое содержание старой части разговора и последние реплики.
+ *
+ * Реплики лежат в очереди от старых к новым. Когда они перестают помещаться в бюджет истории,
+ * старые отдаются на сжатие в краткое содержание ({@link #takeOverflow}); пока оно идёт, в запрос
+ * попадает только то, что помещается в бюджет. Если сжатие не успевает, сверх {@value #MAX_BUDGETS}
+ * бюджетов старые реплики просто отбрасываются — память на чат ограничена в любом случае.
+ */
+public class Conversation {
+
+    private static final int MAX_BUDGETS = 3;
+
+    // под this
+    private String summary = "";
+    private final ArrayDeque<Entry> turns = new ArrayDeque<>();
+    private int turnTokens;
+    private long nextSeq;
+    // меняется при очистке: запоздавшее сжатие старого разговора не применяется
+    private int generation;
+    private boolean summarizing;
+    private boolean dirty;
+
+    private volatile long lastAccessMs = System.currentTimeMillis();
+
+    Conversation() {
+    }
+
+    Conversation(String summary, List<ChatTurn> turns) {
+        this.summary = summary != null ? summary : "";
+        for (ChatTurn turn : turns) add(turn);
+    }
+
+    /**
+     * Запрос с контекстом: краткое содержание и самые новые реплики, которые помещаются в historyTokens.
+     * Ключ склейки сохраняется, только если контекста нет.
+     */
+    public synchronized ChatRequest newRequest(String modePrompt, String userText, ReplyCache.Key key,
+                                               int historyTokens) {
+        if (isEmpty()) {
+            return new ChatRequest(modePrompt, userText, key);
+        }
+        ArrayList<ChatTurn> recent = new ArrayList<>();
+        int used = 0;
+        for (Iterator<Entry> it = turns.descendingIterator(); it.hasNext(); ) {
+            Entry e = it.next();
+            if (used + e.tokens > historyTokens) break;
+            used += e.tokens;
+            recent.add(e.turn);
+        }
+        // пользователь и ассистент должны чередоваться — начинаем с реплики пользователя
+        if (!recent.isEmpty() && recent.get(recent.size() - 1).getRole() != ChatTurn.Role.USER) {
+            recent.remove(recent.size() - 1);
+        }
+        Collections.reverse(recent);
+        return new ChatRequest(modePrompt, summary.isEmpty() ? null : summary, recent, userText, null);
+    }
+
+    public synchronized boolean isEmpty() {
+        return summary.isEmpty() && turns.isEmpty();
+    }
+
+    /** Запоминает обмен репликами; слишком длинная реплика обрезается до maxTurnTokens. */
+    synchronized void append(String userText, String reply, int maxTurnTokens, int historyTokens) {
+        add(new ChatTurn(ChatTurn.Role.USER, TokenEstimator.truncate(userText, maxTurnTokens)));
+        add(new ChatTurn(ChatTurn.Role.ASSISTANT, TokenEstimator.truncate(reply, maxTurnTokens)));
+        // реплики всегда идут парами — и отбрасываем их парами
+        while (turnTokens > historyTokens * MAX_BUDGETS && turns.size() > 2) {
+            turnTokens -= turns.removeFirst().tokens;
+            turnTokens -= turns.removeFirst().tokens;
+        }
+        dirty = true;
+    }
+
+    /**
+     * Когда реплики перестают помещаться в бюджет, старые — до половины бюджета — вместе
+     * с текущим кратким содержанием отдаются на сжатие: так оно идёт раз в несколько обменов,
+     * а не на каждом. null, если сжимать нечего или сжатие уже идёт.
+     */
+    synchronized Fold takeOverflow(int historyTokens) {
+        if (summarizing || turnTokens <= historyTokens) return null;
+        List<ChatTurn> folded = new ArrayList<>();
+        int remaining = turnTokens;
+        long lastSeq = -1;
+        for (Entry e : turns) {
+            // сжимаем парами, чтобы в истории осталось чередование user / assistant
+            if (remaining <= historyTokens / 2 && e.turn.getRole() == ChatTurn.Role.USER) break;
+            folded.add(e.turn);
+            remaining -= e.tokens;
+            lastSeq = e.seq;
+        }
+        summarizing = true;
+        return new Fold(summary, folded, lastSeq, generation);
+    }
+
+    /** Сжатие удалось: сжатые реплики заменяются новым кратким содержанием. */
+    synchronized void applySummary(Fold fold, String newSummary) {
+        summarizing = false;
+        if (fold.generation != generation) return;
+        while (!turns.isEmpty() && turns.peekFirst().seq <= fold.lastSeq) {
+            turnTokens -= turns.removeFirst().tokens;
+        }
+        summary = newSummary != null ? newSummary.trim() : "";
+        dirty = true;
+    }
+
+    synchronized void summaryFailed() {
+        summarizing = false;
+    }
+
+    /** Новый разговор: забываем всё. */
+    public synchronized void clear() {
+        summary = "";
+        turns.clear();
+        turnTokens = 0;
+        generation++;
+        dirty = true;
+    }
+
+    synchronized String getSummary() {
+        return summary;
+    }
+
+    synchronized List<ChatTurn> getTurns() {
+        List<ChatTurn> result = new ArrayList<>(turns.size());
+        for (Entry e : turns) result.add(e.turn);
+        return result;
+    }
+
+    synchronized boolean isSummarizing() {
+        return summarizing;
+    }
+
+    synchronized boolean isDirty() {
+        return dirty;
+    }
+
+    synchronized void markDirty() {
+        dirty = true;
+    }
+
+    synchronized void clearDirty() {
+        dirty = false;
+    }
+
+    void touch() {
+        lastAccessMs = System.currentTimeMillis();
+    }
+
+    long getLastAccessMs() {
+        return lastAccessMs;
+    }
+
+    private void add(ChatTurn turn) {
+        Entry e = new Entry(nextSeq++, turn, TokenEstimator.estimate(turn.getText()));
+        turns.addLast(e);
+        turnTokens += e.tokens;
+    }
+
+    private static final class Entry {
+        final long seq;
+        final ChatTurn turn;
+        final int tokens;
+
+        Entry(long seq, ChatTurn turn, int tokens) {
+            this.seq = seq;
+            this.turn = turn;
+            this.tokens = tokens;
+        }
+    }
+
+    /** Что отдано на сжатие: прежнее краткое содержание и старые реплики до lastSeq включительно. */
+    static final class Fold {
+        final String summary;
+        final List<ChatTurn> turns;
+        final long lastSeq;
+        final int generation;
+
+        Fold(String summary, List<ChatTurn> turns, long lastSeq, int generation) {
+            this.summary = summary;
+            this.turns = turns;
+            this.lastSeq = lastSeq;
+            this.generation = generation;
+        }
+    }
+}
@@ -0,0 +1,351 @@
+package com.example.nanoavatar.memory;
+
+import com.example.nanoavatar.ai.ChatRequest;
+import com.example.nanoavatar.ai.ChatTurn;
+import com.example.nanoavatar.ai.ReplyCache;
+import com.example.nanoavatar.ai.ReplyClient;
+import com.example.nanoavatar.ai.TokenEstimator;
+import com.example.nanoavatar.db.Database;
+import com.example.nanoavatar.metrics.Counter;
+import com.example.nanoavatar.metrics.Histogram;
+import com.example.nanoavatar.metrics.Metrics;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.sql.*;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Память разговоров: ограниченный кэш в памяти + таблица conversations в SQLite.
+ *
+ * В запрос к нейросети идут краткое содержание разговора и последние реплики в пределах
+ * historyTokens, поэтому размер запроса ограничен, сколько бы ни длился разговор. Реплики,
+ * вытесненные из бюджета, в фоне сжимаются нейросетью в новое краткое содержание
+ * (не длиннее summaryTokens). Сжатие идёт через ту же цепочку {@link ReplyClient}, что и ответы,
+ * но только когда она свободна: при перегрузке ответы пользователям важнее.
+ *
+ * Хранение устроено как в SessionStore: LRU в памяти, изменённые разговоры пишутся пачкой
+ * раз в несколько секунд, выгруженные лениво подгружаются при следующем сообщении.
+ */
+public class ConversationStore {
+
+    public static final int DEFAULT_MAX_CONVERSATIONS = 2_000;
+
+    private static final long FLUSH_INTERVAL_SEC = 5;
+
+    private static final Histogram FLUSH_TIME = Metrics.histogram("nanoavatar_conversation_flush_seconds",
+            "Batched conversation write duration");
+    private static final Counter SUMMARIES_OK = Metrics.counter("nanoavatar_conversation_summaries_total",
+            "Background conversation summarizations", "result", "success");
+    private static final Counter SUMMARIES_FAILED = Metrics.counter("nanoavatar_conversation_summaries_total",
+            "Background conversation summarizations", "result", "failure");
+    private static final Counter SUMMARIES_DEFERRED = Metrics.counter("nanoavatar_conversation_summaries_total",
+            "Background conversation summarizations", "result", "deferred");
+    private static final Counter LOAD_FAILURES = Metrics.counter("nanoavatar_conversation_load_failures_total",
+            "Conversations served without context because the DB read failed");
+
+    private final Database db;
+    private final ReplyClient summarizer;
+    private final int historyTokens;
+    private final int summaryTokens;
+    private final int maxConversations;
+    private final long idleTimeoutMs;
+    private final Gson gson = new Gson();
+
+    // LRU-порядок; при переполнении старейший разговор уходит в evicted
+    private final LinkedHashMap<Long, Conversation> active;
+    // выгруженные, но ещё не записанные (или ещё сжимаемые) разговоры
+    private final Map<Long, Conversation> evicted = new HashMap<>();
+
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "conversation-flusher");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * @param historyTokens — бюджет последних реплик в одном запросе
+     * @param summaryTokens — предел краткого содержания
+     */
+    public ConversationStore(Database db, ReplyClient summarizer, int historyTokens, int summaryTokens,
+                             int maxConversations, Duration idleTimeout) {
+        this.db = db;
+        this.summarizer = summarizer;
+        this.historyTokens = Math.max(1, historyTokens);
+        this.summaryTokens = Math.max(1, summaryTokens);
+        this.maxConversations = Math.max(1, maxConversations);
+        this.idleTimeoutMs = idleTimeout.toMillis();
+        this.active = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Conversation> eldest) {
+                if (size() > ConversationStore.this.maxConversations) {
+                    retire(eldest.getKey(), eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+        Metrics.gauge("nanoavatar_conversations_cached", "Conversations held in memory", this::size);
+        flusher.scheduleWithFixedDelay(this::flushQuietly,
+                FLUSH_INTERVAL_SEC, FLUSH_INTERVAL_SEC, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Разговор чата: из памяти, из очереди на запись или из базы; если нигде нет — пустой.
+     * null — базу прочитать не удалось: такой запрос идёт без контекста и не запоминается,
+     * а загрузка повторится со следующим сообщением. Кэшировать пустой разговор вместо
+     * непрочитанного нельзя — первая же запись затёрла бы сохранённый.
+     */
+    public Conversation get(long chatId) {
+        Conversation conversation;
+        synchronized (this) {
+            conversation = active.get(chatId);
+            if (conversation == null) {
+                conversation = evicted.remove(chatId);
+                if (conversation != null) active.put(chatId, conversation);
+            }
+        }
+        if (conversation == null) {
+            Conversation loaded = load(chatId);
+            if (loaded == null) return null;
+            synchronized (this) {
+                conversation = active.get(chatId);
+                if (conversation == null) {
+                    conversation = loaded;
+                    active.put(chatId, conversation);
+                }
+            }
+        }
+        conversation.touch();
+        return conversation;
+    }
+
+    /** Новый разговор: забываем контекст чата, в том числе сохранённый, даже если его не удалось прочитать. */
+    public void clear(long chatId) {
+        Conversation conversation = get(chatId);
+        if (conversation == null) {
+            synchronized (this) {
+                conversation = active.computeIfAbsent(chatId, id -> new Conversation());
+            }
+        }
+        conversation.clear();
+    }
+
+    /** Запрос к нейросети с контекстом разговора (см. {@link Conversation#newRequest}). */
+    public ChatRequest newRequest(Conversation conversation, String modePrompt, String userText,
+                                  ReplyCache.Key key) {
+        return conversation.newRequest(modePrompt, userText, key, historyTokens);
+    }
+
+    /** Запоминает показанный пользователю ответ и при необходимости запускает сжатие. */
+    public void record(Conversation conversation, String userText, String reply) {
+        // один обмен всегда помещается в бюджет целиком
+        conversation.append(userText, reply, historyTokens / 2, historyTokens);
+        summarize(conversation);
+    }
+
+    public synchronized int size() {
+        return active.size();
+    }
+
+    /** Записывает все изменения и останавливает фоновую запись. */
+    public void close() {
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flushQuietly();
+    }
+
+    private void summarize(Conversation conversation) {
+        Conversation.Fold fold = conversation.takeOverflow(historyTokens);
+        if (fold == null) return;
+        if (!summarizer.canAccept()) {
+            // попробуем на следующей реплике; до тех пор лишнее просто не попадает в запрос
+            SUMMARIES_DEFERRED.inc();
+            conversation.summaryFailed();
+            return;
+        }
+
+        ChatRequest request = new ChatRequest(summaryPrompt(), transcript(fold), null);
+        summarizer.generateReplyAsync(request).whenComplete((completion, error) -> {
+            if (error != null) {
+                SUMMARIES_FAILED.inc();
+                conversation.summaryFailed();
+                return;
+            }
+            SUMMARIES_OK.inc();
+            conversation.applySummary(fold, TokenEstimator.truncate(completion.getContent(), summaryTokens));
+        });
+    }
+
+    private String summaryPrompt() {
+        // слов примерно вдвое меньше, чем токенов русского текста
+        return "Сейчас ты не отвечаешь пользователю, а ведёшь краткое содержание его разговора с ассистентом.\n" +
+                "Объедини прежнее краткое содержание и новые реплики в одно краткое содержание " +
+                "не длиннее " + Math.max(20, summaryTokens / 2) + " слов.\n" +
+                "Сохрани факты о пользователе, его цели, договорённости и открытые вопросы; " +
+                "детали, которые уже не важны, опусти.\n" +
+                "Пиши от третьего лица, без вступлений и пояснений — только само краткое содержание.";
+    }
+
+    private static String transcript(Conversation.Fold fold) {
+        StringBuilder sb = new StringBuilder();
+        if (!fold.summary.isEmpty()) {
+            sb.append("Прежнее краткое содержание:\n").append(fold.summary).append("\n\n");
+        }
+        sb.append("Новые реплики:\n");
+        for (ChatTurn turn : fold.turns) {
+            sb.append(turn.getRole() == ChatTurn.Role.USER ? "Пользователь: " : "Ассистент: ")
+                    .append(turn.getText()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    // вызывается под this
+    private void retire(long chatId, Conversation conversation) {
+        if (conversation.isDirty() || conversation.isSummarizing()) {
+            evicted.put(chatId, conversation);
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    void flush() throws SQLException {
+        Map<Long, Conversation> toWrite = new HashMap<>();
+        synchronized (this) {
+            long idleBefore = System.currentTimeMillis() - idleTimeoutMs;
+            for (Iterator<Map.Entry<Long, Conversation>> it = active.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<Long, Conversation> e = it.next();
+                Conversation conversation = e.getValue();
+                if (conversation.isDirty()) {
+                    toWrite.put(e.getKey(), conversation);
+                }
+                if (conversation.getLastAccessMs() < idleBefore) {
+                    it.remove();
+                    retire(e.getKey(), conversation);
+                }
+            }
+            for (Map.Entry<Long, Conversation> e : evicted.entrySet()) {
+                if (e.getValue().isDirty()) toWrite.put(e.getKey(), e.getValue());
+            }
+        }
+
+        if (!toWrite.isEmpty()) {
+            long start = System.nanoTime();
+            try {
+                write(toWrite);
+            } finally {
+                FLUSH_TIME.recordSince(start);
+            }
+        }
+
+        // записанные выгруженные разговоры больше не нужны, если их не изменили и не сжимают
+        synchronized (this) {
+            evicted.values().removeIf(c -> !c.isDirty() && !c.isSummarizing());
+        }
+    }
+
+    private void write(Map<Long, Conversation> conversations) throws SQLException {
+        long now = System.currentTimeMillis();
+        try (Connection conn = db.getConnection()) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement ps = conn.prepareStatement(
+                    "INSERT INTO conversations(chat_id, summary, turns, updated_at_ms) VALUES(?, ?, ?, ?) " +
+                            "ON CONFLICT(chat_id) DO UPDATE SET summary = excluded.summary, " +
+                            "turns = excluded.turns, updated_at_ms = excluded.updated_at_ms")) {
+                for (Map.Entry<Long, Conversation> e : conversations.entrySet()) {
+                    Conversation conversation = e.getValue();
+                    String summary;
+                    List<ChatTurn> turns;
+                    synchronized (conversation) {
+                        conversation.clearDirty();
+                        summary = conversation.getSummary();
+                        turns = conversation.getTurns();
+                    }
+                    ps.setLong(1, e.getKey());
+                    ps.setString(2, summary);
+                    ps.setString(3, gson.toJson(toStored(turns)));
+                    ps.setLong(4, now);
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+            }
+            conn.commit();
+        } catch (SQLException e) {
+            // не записалось — попробуем в следующий раз
+            for (Conversation conversation : conversations.values()) conversation.markDirty();
+            throw e;
+        }
+    }
+
+    /** @return сохранённый разговор, пустой, если его нет, или null при ошибке базы */
+    private Conversation load(long chatId) {
+        try (Connection conn = db.getConnection();
+             PreparedStatement ps = conn.prepareStatement(
+                     "SELECT summary, turns FROM conversations WHERE chat_id = ?")) {
+            ps.setLong(1, chatId);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (rs.next()) {
+                    return new Conversation(rs.getString("summary"), fromStored(rs.getString("turns")));
+                }
+            }
+        } catch (SQLException e) {
+            LOAD_FAILURES.inc();
+            e.printStackTrace();
+            return null;
+        }
+        return new Conversation();
+    }
+
+    private static StoredTurn[] toStored(List<ChatTurn> turns) {
+        StoredTurn[] stored = new StoredTurn[turns.size()];
+        for (int i = 0; i < stored.length; i++) {
+            ChatTurn turn = turns.get(i);
+            stored[i] = new StoredTurn(turn.getRole() == ChatTurn.Role.USER ? "u" : "a", turn.getText());
+        }
+        return stored;
+    }
+
+    private List<ChatTurn> fromStored(String json) {
+        if (json == null || json.isEmpty()) return List.of();
+        StoredTurn[] stored;
+        try {
+            stored = gson.fromJson(json, StoredTurn[].class);
+        } catch (JsonParseException e) {
+            // испорченную историю не тащим в запросы — разговор начнётся заново
+            e.printStackTrace();
+            return List.of();
+        }
+        if (stored == null) return List.of();
+        List<ChatTurn> turns = new ArrayList<>(stored.length);
+        for (StoredTurn s : stored) {
+            if (s == null || s.t == null) continue;
+            turns.add(new ChatTurn("u".equals(s.r) ? ChatTurn.Role.USER : ChatTurn.Role.ASSISTANT, s.t));
+        }
+        return turns;
+    }
+
+    /** Реплика в JSON-колонке turns: r — роль (u / a), t — текст. */
+    private static final class StoredTurn {
+        String r;
+        String t;
+
+        StoredTurn(String r, String t) {
+            this.r = r;
+            this.t = t;
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package com.example.nanoavatar.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/** Монотонный счётчик. inc()/add() не выделяют память. */
+public final class Counter {
+
+    private final LongAdder value = new LongAdder();
+
+    Counter() {
+    }
+
+    public void inc() {
+        value.increment();
+    }
+
+    public void add(long delta) {
+        value.add(delta);
+    }
+
+    public long get() {
+        return value.sum();
+    }
+}
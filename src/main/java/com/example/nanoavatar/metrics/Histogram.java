@@ -0,0 +1,86 @@
+package com.example.nanoavatar.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Гистограмма длительностей в духе HdrHistogram: лог-линейные корзины по наносекундам.
+ *
+ * Каждая степень двойки делится на 16 равных корзин, так что относительная ошибка
+ * квантиля не больше ~6% на всём диапазоне от наносекунд до десятков минут.
+ * record() — одно вычисление индекса и атомарный инкремент, без выделения памяти.
+ */
+public final class Histogram {
+
+    private static final int SUB_BITS = 4;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    // 2^40 нс ≈ 18 минут; всё, что дольше, попадает в последнюю корзину
+    private static final int MAX_SHIFT = 40 - SUB_BITS;
+    private static final int BUCKETS = (MAX_SHIFT + 2) * SUB_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sumNanos = new LongAdder();
+
+    Histogram() {
+    }
+
+    public void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        counts.incrementAndGet(indexOf(nanos));
+        count.increment();
+        sumNanos.add(nanos);
+    }
+
+    /** Удобная форма: {@code long start = System.nanoTime(); ... h.recordSince(start);} */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getSumNanos() {
+        return sumNanos.sum();
+    }
+
+    /** Квантиль q (0..1) в наносекундах по текущему снимку корзин. */
+    public long quantileNanos(double q) {
+        return quantileOf(snapshot(), q);
+    }
+
+    long[] snapshot() {
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) snapshot[i] = counts.get(i);
+        return snapshot;
+    }
+
+    static long quantileOf(long[] snapshot, double q) {
+        long total = 0;
+        for (long c : snapshot) total += c;
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(q * total));
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) return midpointOf(i);
+        }
+        return midpointOf(snapshot.length - 1);
+    }
+
+    static int indexOf(long value) {
+        if (value < SUB_COUNT) return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        if (shift > MAX_SHIFT) return BUCKETS - 1;
+        int sub = (int) (value >>> shift) & (SUB_COUNT - 1);
+        return (shift + 1) * SUB_COUNT + sub;
+    }
+
+    static long midpointOf(int index) {
+        if (index < SUB_COUNT) return index;
+        int shift = index / SUB_COUNT - 1;
+        long lower = (long) (SUB_COUNT + index % SUB_COUNT) << shift;
+        return lower + ((1L << shift) >>> 1);
+    }
+}
@@ -0,0 +1,151 @@
+package com.example.nanoavatar.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Общий реестр метрик процесса.
+ *
+ * Метрики заводятся один раз (обычно в static-поле или в конструкторе) и дальше
+ * только обновляются — на горячем пути нет ни поиска по имени, ни выделения памяти.
+ * Повторная регистрация с тем же именем и метками возвращает уже существующую метрику.
+ *
+ * Метки передаются парами: {@code Metrics.counter("x_total", "...", "type", "SPEND")}.
+ * Отдаётся в текстовом формате Prometheus через {@link MetricsServer}.
+ */
+public final class Metrics {
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    // порядок регистрации сохраняем, чтобы вывод был стабильным
+    private static final Map<String, Family> families = new LinkedHashMap<>();
+
+    private Metrics() {
+    }
+
+    public static Counter counter(String name, String help, String... labels) {
+        return (Counter) register(name, help, Type.COUNTER, labels, new Counter());
+    }
+
+    /** Гистограмма длительностей; наружу отдаётся как summary в секундах. */
+    public static Histogram histogram(String name, String help, String... labels) {
+        return (Histogram) register(name, help, Type.SUMMARY, labels, new Histogram());
+    }
+
+    /** Значение читается в момент сбора; supplier должен быть дешёвым и потокобезопасным. */
+    public static void gauge(String name, String help, DoubleSupplier supplier, String... labels) {
+        register(name, help, Type.GAUGE, labels, supplier);
+    }
+
+    private static synchronized Object register(String name, String help, Type type,
+                                                String[] labels, Object metric) {
+        Family family = families.get(name);
+        if (family == null) {
+            family = new Family(name, help, type);
+            families.put(name, family);
+        } else if (family.type != type) {
+            throw new IllegalArgumentException("Metric " + name + " is already registered as " + family.type);
+        }
+        String labelText = formatLabels(labels);
+        if (type == Type.GAUGE) {
+            // gauge перерегистрируется: новый supplier заменяет старый
+            family.children.put(labelText, metric);
+            return metric;
+        }
+        return family.children.computeIfAbsent(labelText, k -> metric);
+    }
+
+    /** Все метрики в текстовом формате Prometheus 0.0.4. */
+    public static synchronized String scrape() {
+        StringBuilder out = new StringBuilder(4096);
+        for (Family family : families.values()) {
+            out.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(family.name).append(' ').append(family.type.text).append('\n');
+            for (Map.Entry<String, Object> child : family.children.entrySet()) {
+                writeChild(out, family, child.getKey(), child.getValue());
+            }
+        }
+        return out.toString();
+    }
+
+    private static void writeChild(StringBuilder out, Family family, String labels, Object metric) {
+        switch (family.type) {
+            case COUNTER:
+                sample(out, family.name, labels, ((Counter) metric).get());
+                break;
+            case GAUGE:
+                double value;
+                try {
+                    value = ((DoubleSupplier) metric).getAsDouble();
+                } catch (RuntimeException e) {
+                    // сломанный gauge не должен ронять весь scrape
+                    e.printStackTrace();
+                    return;
+                }
+                sample(out, family.name, labels, value);
+                break;
+            case SUMMARY:
+                Histogram h = (Histogram) metric;
+                long[] snapshot = h.snapshot();
+                for (double q : QUANTILES) {
+                    String withQuantile = labels.isEmpty()
+                            ? "{quantile=\"" + q + "\"}"
+                            : labels.substring(0, labels.length() - 1) + ",quantile=\"" + q + "\"}";
+                    sample(out, family.name, withQuantile, Histogram.quantileOf(snapshot, q) / 1e9);
+                }
+                sample(out, family.name + "_sum", labels, h.getSumNanos() / 1e9);
+                sample(out, family.name + "_count", labels, h.getCount());
+                break;
+        }
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, double value) {
+        out.append(name).append(labels).append(' ');
+        if (value == Math.rint(value) && !Double.isInfinite(value)) {
+            out.append((long) value);
+        } else {
+            out.append(value);
+        }
+        out.append('\n');
+    }
+
+    private static String formatLabels(String[] labels) {
+        if (labels.length == 0) return "";
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels must be name/value pairs");
+        }
+        StringBuilder sb = new StringBuilder("{");
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) sb.append(',');
+            sb.append(labels[i]).append("=\"");
+            String v = labels[i + 1] == null ? "" : labels[i + 1];
+            sb.append(v.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n"));
+            sb.append('"');
+        }
+        return sb.append('}').toString();
+    }
+
+    private enum Type {
+        COUNTER("counter"), GAUGE("gauge"), SUMMARY("summary");
+
+        final String text;
+
+        Type(String text) {
+            this.text = text;
+        }
+    }
+
+    private static final class Family {
+        final String name;
+        final String help;
+        final Type type;
+        final Map<String, Object> children = new LinkedHashMap<>();
+
+        Family(String name, String help, Type type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.example.nanoavatar.metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Встроенный HTTP-сервер для мониторинга:
+ *   GET /metrics — все метрики {@link Metrics} в формате Prometheus;
+ *   GET /health  — 200, если сервис готов принимать запросы, иначе 503.
+ */
+public class MetricsServer {
+
+    private final HttpServer server;
+
+    public MetricsServer(int port, BooleanSupplier readiness) throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress(port), 0);
+        this.server.setExecutor(Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "metrics-http");
+            t.setDaemon(true);
+            return t;
+        }));
+
+        server.createContext("/metrics", exchange ->
+                respond(exchange, 200, "text/plain; version=0.0.4; charset=utf-8", Metrics.scrape()));
+
+        server.createContext("/health", exchange -> {
+            boolean ready;
+            try {
+                ready = readiness.getAsBoolean();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                ready = false;
+            }
+            respond(exchange, ready ? 200 : 503, "text/plain; charset=utf-8", ready ? "OK\n" : "NOT READY\n");
+        });
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+
+    private static void respond(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+}
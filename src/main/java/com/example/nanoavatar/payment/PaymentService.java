@@ -1,5 +1,7 @@
 package com.example.nanoavatar.payment;
 
+import com.example.nanoavatar.metrics.Counter;
+import com.example.nanoavatar.metrics.Metrics;
 import com.example.nanoavatar.user.UserService;
 import org.telegram.telegrambots.meta.api.methods.AnswerPreCheckoutQuery;
 import org.telegram.telegrambots.meta.api.methods.send.SendInvoice;
@@ -10,6 +12,15 @@ import java.util.List;
 
 public class PaymentService {
 
+    private static final Counter INVOICES = Metrics.counter("nanoavatar_invoices_total",
+            "Top-up invoices created");
+    private static final Counter PAYMENTS = Metrics.counter("nanoavatar_payments_total",
+            "Successful top-up payments");
+    private static final Counter PAID_RUB = Metrics.counter("nanoavatar_payments_rub_total",
+            "Rubles received in successful payments");
+    private static final Counter CREDITS_SOLD = Metrics.counter("nanoavatar_credits_sold_total",
+            "Credits credited for payments");
+
     private final String providerToken;
     private final int minTopupRub;
     private final int creditsPerRub;
@@ -27,6 +38,7 @@ public class PaymentService {
             amountRub = minTopupRub;
         }
         int amountKopecks = amountRub * 100;
+        INVOICES.inc();
 
         return SendInvoice.builder()
                 .chatId(chatId)
@@ -57,5 +69,8 @@ public class PaymentService {
         int credits = amountRub * creditsPerRub;
 
         userService.changeBalance(chatId, credits, "TOPUP", payload);
+        PAYMENTS.inc();
+        PAID_RUB.add(amountRub);
+        CREDITS_SOLD.add(credits);
     }
 }
\ No newline at end of file
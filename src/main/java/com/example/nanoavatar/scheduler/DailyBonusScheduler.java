@@ -1,8 +1,10 @@
 package com.example.nanoavatar.scheduler;
 
+import com.example.nanoavatar.broadcast.BroadcastService;
+import com.example.nanoavatar.metrics.Counter;
+import com.example.nanoavatar.metrics.Histogram;
+import com.example.nanoavatar.metrics.Metrics;
 import com.example.nanoavatar.user.UserService;
-import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
-import org.telegram.telegrambots.meta.bots.AbsSender;
 
 import java.time.*;
 import java.util.List;
@@ -12,20 +14,32 @@ import java.util.concurrent.TimeUnit;
 
 public class DailyBonusScheduler {
 
+    private static final Counter RUNS_OK = Metrics.counter("nanoavatar_daily_bonus_runs_total",
+            "Daily bonus runs by result", "result", "ok");
+    private static final Counter RUNS_FAILED = Metrics.counter("nanoavatar_daily_bonus_runs_total",
+            "Daily bonus runs by result", "result", "error");
+    private static final Counter GRANTED = Metrics.counter("nanoavatar_daily_bonus_granted_total",
+            "Users who received the daily bonus");
+    private static final Histogram RUN_TIME = Metrics.histogram("nanoavatar_daily_bonus_run_seconds",
+            "Accrual and broadcast scheduling time");
+
     private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
     private final UserService userService;
-    private final AbsSender sender;
+    private final BroadcastService broadcasts;
     private final int bonusCredits;
     private final ZoneId moscowZone;
+    private final Duration deliveryWindow;
 
     public DailyBonusScheduler(UserService userService,
-                               AbsSender sender,
+                               BroadcastService broadcasts,
                                int bonusCredits,
-                               String moscowZoneId) {
+                               String moscowZoneId,
+                               Duration deliveryWindow) {
         this.userService = userService;
-        this.sender = sender;
+        this.broadcasts = broadcasts;
         this.bonusCredits = bonusCredits;
         this.moscowZone = ZoneId.of(moscowZoneId);
+        this.deliveryWindow = deliveryWindow;
     }
 
     public void start() {
@@ -46,30 +60,29 @@ public class DailyBonusScheduler {
     }
 
     private void sendDailyBonus() {
-        List<Long> chatIds = userService.getAllChatIds();
-        LocalDate today = LocalDate.now(moscowZone);
-
-        for (Long chatId : chatIds) {
-            try {
-                var lastBonus = userService.getLastBonusDate(chatId);
-                if (lastBonus != null && !lastBonus.isBefore(today)) {
-                    continue;
-                }
-                userService.changeBalance(chatId, bonusCredits, "DAILY_BONUS", "daily_bonus");
-                userService.updateLastBonusDate(chatId, today);
-
-                SendMessage msg = SendMessage.builder()
-                        .chatId(chatId)
-                        .text("🎁 Ежедневный бонус NanoBuddy!\n\n" +
-                                "Я закинул на твой баланс +" + bonusCredits +
-                                " кредит — этого хватает на один ответ.\n\n" +
-                                "Напиши /start, выбери режим или просто задай вопрос ✨")
-                        .build();
+        long start = System.nanoTime();
+        try {
+            LocalDate today = LocalDate.now(moscowZone);
 
-                sender.execute(msg);
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
+            // рассылка записывается в той же транзакции, что и начисление: бонус без уведомления не останется.
+            // уведомления растягиваем по окну, чтобы пользователи не пришли к нейросети все разом
+            long[] broadcastId = {-1};
+            List<Long> chatIds = userService.grantDailyBonus(bonusCredits, today, (conn, granted) ->
+                    broadcastId[0] = broadcasts.insertBroadcast(conn, "DAILY_BONUS",
+                            "🎁 Ежедневный бонус NanoBuddy!\n\n" +
+                                    "Я закинул на твой баланс +" + bonusCredits +
+                                    " кредит — этого хватает на один ответ.\n\n" +
+                                    "Напиши /start, выбери режим или просто задай вопрос ✨",
+                            granted, deliveryWindow));
+            if (broadcastId[0] >= 0) broadcasts.launch(broadcastId[0]);
+            GRANTED.add(chatIds.size());
+            RUNS_OK.inc();
+        } catch (Exception e) {
+            // исключение в scheduleAtFixedRate отменило бы все следующие запуски
+            RUNS_FAILED.inc();
+            e.printStackTrace();
+        } finally {
+            RUN_TIME.recordSince(start);
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,45 @@
+package com.example.nanoavatar.user;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Кредиты, уже списанные под один ответ нейросети.
+ *
+ * Списание происходит сразу в {@link UserService#reserveCredits}, дальше резерв
+ * либо подтверждается ({@link UserService#commitCredits}), либо возвращается
+ * ({@link UserService#refundCredits}) — ровно один раз.
+ */
+public class CreditReservation {
+    private final long chatId;
+    private final int userId;
+    private final int amount;
+    private final int balanceAfter;
+    private final String payload;
+    private final long spendId;
+
+    private final AtomicBoolean settled = new AtomicBoolean();
+
+    CreditReservation(long chatId, int userId, int amount, int balanceAfter, String payload, long spendId) {
+        this.chatId = chatId;
+        this.userId = userId;
+        this.amount = amount;
+        this.balanceAfter = balanceAfter;
+        this.payload = payload;
+        this.spendId = spendId;
+    }
+
+    public long getChatId() { return chatId; }
+    public int getUserId() { return userId; }
+    public int getAmount() { return amount; }
+    public int getBalanceAfter() { return balanceAfter; }
+    public String getPayload() { return payload; }
+    /** id SPEND-записи в журнале. */
+    public long getSpendId() { return spendId; }
+
+    public boolean isSettled() { return settled.get(); }
+
+    /** true только для первого вызова — защищает от двойного возврата. */
+    boolean settle() {
+        return settled.compareAndSet(false, true);
+    }
+}
@@ -0,0 +1,243 @@
+package com.example.nanoavatar.user;
+
+import com.example.nanoavatar.db.Database;
+import com.example.nanoavatar.filters.FilterRegistry;
+import com.example.nanoavatar.metrics.Counter;
+import com.example.nanoavatar.metrics.Histogram;
+import com.example.nanoavatar.metrics.Metrics;
+
+import java.sql.*;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Сессии пользователей: ограниченный кэш в памяти + таблица sessions в SQLite.
+ *
+ * - в памяти держим не больше maxSessions сессий (LRU), простаивающие дольше idleTimeout выгружаются;
+ * - изменённые сессии пишутся в базу пачкой раз в flushInterval, выгруженные — при ближайшей записи;
+ * - при следующем сообщении сессия лениво подгружается из базы.
+ *
+ * Опции хранятся списком id через запятую, а не битовой маской: индексы опций
+ * зависят от порядка в {@link FilterRegistry} и могут сдвинуться между релизами.
+ */
+public class SessionStore {
+
+    public static final int DEFAULT_MAX_SESSIONS = 10_000;
+    public static final long DEFAULT_IDLE_MINUTES = 30;
+
+    private static final long FLUSH_INTERVAL_SEC = 5;
+
+    private static final Histogram FLUSH_TIME = Metrics.histogram("nanoavatar_session_flush_seconds",
+            "Batched session write duration");
+    private static final Counter LOAD_FAILURES = Metrics.counter("nanoavatar_session_load_failures_total",
+            "Session reads that failed; the update was not handled and the session was not cached");
+
+    private final Database db;
+    private final FilterRegistry registry;
+    private final int maxSessions;
+    private final long idleTimeoutMs;
+
+    // LRU-порядок; при переполнении старейшая сессия уходит в evicted
+    private final LinkedHashMap<Long, UserSession> active;
+    // выгруженные, но ещё не записанные сессии: при возврате пользователя берём их, а не базу
+    private final Map<Long, UserSession> evicted = new HashMap<>();
+
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "session-flusher");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public SessionStore(Database db, FilterRegistry registry, int maxSessions, Duration idleTimeout) {
+        this.db = db;
+        this.registry = registry;
+        this.maxSessions = Math.max(1, maxSessions);
+        this.idleTimeoutMs = idleTimeout.toMillis();
+        this.active = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, UserSession> eldest) {
+                if (size() > SessionStore.this.maxSessions) {
+                    retire(eldest.getKey(), eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+        flusher.scheduleWithFixedDelay(this::flushQuietly,
+                FLUSH_INTERVAL_SEC, FLUSH_INTERVAL_SEC, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Сессия чата: из памяти, из очереди на запись или из базы; если нигде нет — новая.
+     * Апдейты одного чата обрабатываются последовательно, поэтому загрузка из базы идёт без блокировки.
+     *
+     * @return null, если базу прочитать не удалось: пустую сессию не кэшируем, иначе первая же
+     *         запись затёрла бы сохранённую; следующий апдейт попробует загрузить снова
+     */
+    public UserSession get(long chatId) {
+        UserSession session;
+        synchronized (this) {
+            session = active.get(chatId);
+            if (session == null) {
+                session = evicted.remove(chatId);
+                if (session != null) active.put(chatId, session);
+            }
+        }
+        if (session == null) {
+            UserSession loaded = load(chatId);
+            if (loaded == null) return null;
+            synchronized (this) {
+                session = active.get(chatId);
+                if (session == null) {
+                    session = loaded;
+                    active.put(chatId, session);
+                }
+            }
+        }
+        session.touch();
+        return session;
+    }
+
+    public synchronized int size() {
+        return active.size();
+    }
+
+    /** Записывает все изменения и останавливает фоновую запись. */
+    public void close() {
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flushQuietly();
+    }
+
+    // вызывается под this
+    private void retire(long chatId, UserSession session) {
+        if (session.isDirty()) {
+            evicted.put(chatId, session);
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    void flush() throws SQLException {
+        Map<Long, UserSession> toWrite = new HashMap<>();
+        synchronized (this) {
+            long idleBefore = System.currentTimeMillis() - idleTimeoutMs;
+            for (Iterator<Map.Entry<Long, UserSession>> it = active.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<Long, UserSession> e = it.next();
+                UserSession session = e.getValue();
+                if (session.isDirty()) {
+                    toWrite.put(e.getKey(), session);
+                }
+                if (session.getLastAccessMs() < idleBefore) {
+                    it.remove();
+                    retire(e.getKey(), session);
+                }
+            }
+            toWrite.putAll(evicted);
+        }
+        if (toWrite.isEmpty()) return;
+
+        long start = System.nanoTime();
+        try {
+            write(toWrite);
+        } finally {
+            FLUSH_TIME.recordSince(start);
+        }
+
+        // записанные выгруженные сессии больше не нужны, если их не успели изменить снова
+        synchronized (this) {
+            for (Map.Entry<Long, UserSession> e : toWrite.entrySet()) {
+                if (!e.getValue().isDirty()) evicted.remove(e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    private void write(Map<Long, UserSession> sessions) throws SQLException {
+        long now = System.currentTimeMillis();
+        try (Connection conn = db.getConnection()) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement ps = conn.prepareStatement(
+                    "INSERT INTO sessions(chat_id, current_node_id, options, state, pending_topup_amount, updated_at_ms) " +
+                            "VALUES(?, ?, ?, ?, ?, ?) " +
+                            "ON CONFLICT(chat_id) DO UPDATE SET current_node_id = excluded.current_node_id, " +
+                            "options = excluded.options, state = excluded.state, " +
+                            "pending_topup_amount = excluded.pending_topup_amount, " +
+                            "updated_at_ms = excluded.updated_at_ms")) {
+                for (Map.Entry<Long, UserSession> e : sessions.entrySet()) {
+                    UserSession session = e.getValue();
+                    session.clearDirty();
+                    ps.setLong(1, e.getKey());
+                    ps.setString(2, session.getCurrentNodeId());
+                    ps.setString(3, String.join(",", registry.idsOf(session.getOptions())));
+                    ps.setString(4, session.getState().name());
+                    if (session.getPendingTopupAmount() != null) {
+                        ps.setInt(5, session.getPendingTopupAmount());
+                    } else {
+                        ps.setNull(5, Types.INTEGER);
+                    }
+                    ps.setLong(6, now);
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+            }
+            conn.commit();
+        } catch (SQLException e) {
+            // не записалось — попробуем в следующий раз
+            for (UserSession session : sessions.values()) session.markDirty();
+            throw e;
+        }
+    }
+
+    private UserSession load(long chatId) {
+        UserSession session = new UserSession(FilterRegistry.ROOT_ID);
+        try (Connection conn = db.getConnection();
+             PreparedStatement ps = conn.prepareStatement(
+                     "SELECT current_node_id, options, state, pending_topup_amount FROM sessions WHERE chat_id = ?")) {
+            ps.setLong(1, chatId);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (rs.next()) {
+                    String nodeId = rs.getString("current_node_id");
+                    if (nodeId != null && registry.getNode(nodeId) != null) {
+                        session.setCurrentNodeId(nodeId);
+                    }
+                    String options = rs.getString("options");
+                    if (options != null && !options.isEmpty()) {
+                        // неизвестные (удалённые) опции maskOf просто пропустит
+                        session.setOptions(registry.maskOf(Arrays.asList(options.split(","))));
+                    }
+                    session.setState(parseState(rs.getString("state")));
+                    int amount = rs.getInt("pending_topup_amount");
+                    session.setPendingTopupAmount(rs.wasNull() ? null : amount);
+                }
+            }
+        } catch (SQLException e) {
+            LOAD_FAILURES.inc();
+            e.printStackTrace();
+            return null;
+        }
+        session.clearDirty();
+        return session;
+    }
+
+    private static SessionState parseState(String value) {
+        if (value == null) return SessionState.BROWSING;
+        try {
+            return SessionState.valueOf(value);
+        } catch (IllegalArgumentException e) {
+            return SessionState.BROWSING;
+        }
+    }
+}
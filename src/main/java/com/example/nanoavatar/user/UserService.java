@@ -1,56 +1,132 @@
 package com.example.nanoavatar.user;
 
 import com.example.nanoavatar.db.Database;
+import com.example.nanoavatar.metrics.Counter;
+import com.example.nanoavatar.metrics.Histogram;
+import com.example.nanoavatar.metrics.Metrics;
 
 import java.sql.*;
 import java.time.LocalDate;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 public class UserService {
 
+    // время операций с базой целиком: ожидание соединения + все запросы + commit
+    private static final Histogram ENSURE_USER_TIME = dbTimer("ensure_user");
+    private static final Histogram GET_BALANCE_TIME = dbTimer("get_balance");
+    private static final Histogram CHANGE_BALANCE_TIME = dbTimer("change_balance");
+    private static final Histogram RESERVE_TIME = dbTimer("reserve_credits");
+    private static final Histogram REFUND_TIME = dbTimer("refund_credits");
+    private static final Histogram USAGE_TIME = dbTimer("record_usage");
+    private static final Histogram DAILY_BONUS_TIME = dbTimer("grant_daily_bonus");
+
+    private static final Counter NEW_USERS = Metrics.counter("nanoavatar_users_created_total",
+            "Users registered on first message");
+    private static final Counter RESERVED = Metrics.counter("nanoavatar_credit_reservations_total",
+            "Credit reservations by result", "result", "ok");
+    private static final Counter INSUFFICIENT = Metrics.counter("nanoavatar_credit_reservations_total",
+            "Credit reservations by result", "result", "insufficient");
+    private static final Counter REFUNDS = Metrics.counter("nanoavatar_refunds_total",
+            "Reservations returned to the user");
+    private static final Counter DB_ERRORS = Metrics.counter("nanoavatar_db_errors_total",
+            "SQL errors in UserService");
+
+    private static final Counter KNOWN_USER_HITS = Metrics.counter("nanoavatar_known_users_total",
+            "ensureUser calls by known-user cache result", "result", "hit");
+    private static final Counter KNOWN_USER_MISSES = Metrics.counter("nanoavatar_known_users_total",
+            "ensureUser calls by known-user cache result", "result", "miss");
+
+    /** Сколько чатов помнить по умолчанию: ~100 байт на запись. */
+    public static final int DEFAULT_KNOWN_USERS = 100_000;
+
+    // username пользователя без username
+    private static final String NO_USERNAME = "";
+
     private final Database db;
 
+    // chatId -> последний записанный в базу username (LRU); под своим монитором
+    private final Map<Long, String> knownUsers;
+
     // ✅ Стартовый баланс
     private static final int INITIAL_BALANCE = 15;
 
     public UserService(Database db) {
+        this(db, DEFAULT_KNOWN_USERS);
+    }
+
+    public UserService(Database db, int maxKnownUsers) {
         this.db = db;
+        int capacity = Math.max(1, maxKnownUsers);
+        this.knownUsers = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, String> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    private static Histogram dbTimer(String op) {
+        return Metrics.histogram("nanoavatar_db_operation_seconds", "UserService DB operation duration", "op", op);
     }
 
+    /**
+     * Регистрирует пользователя при первом сообщении и обновляет его username.
+     *
+     * Вызывается на каждое сообщение, поэтому сначала смотрим в память: если чат уже видели
+     * с тем же username, в базу не ходим. Иначе — вставка, а если пользователь уже есть,
+     * обновление username, только если он изменился. Пустой username не затирает сохранённый.
+     *
+     * @return true, если пользователь создан
+     */
     public boolean ensureUser(long chatId, String username) {
+        String known;
+        synchronized (knownUsers) {
+            known = knownUsers.get(chatId);
+        }
+        if (known != null && (username == null || username.equals(known))) {
+            KNOWN_USER_HITS.inc();
+            return false;
+        }
+        KNOWN_USER_MISSES.inc();
+
+        long start = System.nanoTime();
+        // ✅ Было 10, стало 15
         try (Connection conn = db.getConnection()) {
+            boolean created;
+            // строку вернёт только вставка; при конфликте ничего не пишется и строк нет
             try (PreparedStatement ps = conn.prepareStatement(
-                    "SELECT id FROM users WHERE chat_id = ?")) {
+                    "INSERT INTO users(chat_id, username, balance) VALUES(?, ?, ?) " +
+                            "ON CONFLICT(chat_id) DO NOTHING RETURNING id")) {
                 ps.setLong(1, chatId);
+                ps.setString(2, username);
+                ps.setInt(3, INITIAL_BALANCE);
                 try (ResultSet rs = ps.executeQuery()) {
-                    if (rs.next()) {
-                        if (username != null) {
-                            try (PreparedStatement up = conn.prepareStatement(
-                                    "UPDATE users SET username = ? WHERE chat_id = ?")) {
-                                up.setString(1, username);
-                                up.setLong(2, chatId);
-                                up.executeUpdate();
-                            }
-                        }
-                        return false;
-                    }
+                    created = rs.next();
                 }
             }
-
-            // ✅ Было 10, стало 15
-            try (PreparedStatement insert = conn.prepareStatement(
-                    "INSERT INTO users(chat_id, username, balance) VALUES(?, ?, ?)")) {
-                insert.setLong(1, chatId);
-                insert.setString(2, username);
-                insert.setInt(3, INITIAL_BALANCE);
-                insert.executeUpdate();
+            if (!created && username != null) {
+                try (PreparedStatement ps = conn.prepareStatement(
+                        "UPDATE users SET username = ? WHERE chat_id = ? AND username IS NOT ?")) {
+                    ps.setString(1, username);
+                    ps.setLong(2, chatId);
+                    ps.setString(3, username);
+                    ps.executeUpdate();
+                }
             }
-
-            return true;
+            synchronized (knownUsers) {
+                knownUsers.put(chatId, username != null ? username : (known != null ? known : NO_USERNAME));
+            }
+            if (created) NEW_USERS.inc();
+            return created;
         } catch (SQLException e) {
+            DB_ERRORS.inc();
             e.printStackTrace();
             return false;
+        } finally {
+            ENSURE_USER_TIME.recordSince(start);
         }
     }
 
@@ -67,6 +143,7 @@ public class UserService {
     }
 
     public int getBalance(long chatId) {
+        long start = System.nanoTime();
         try (Connection conn = db.getConnection();
              PreparedStatement ps = conn.prepareStatement(
                      "SELECT balance FROM users WHERE chat_id = ?")) {
@@ -75,35 +152,161 @@ public class UserService {
                 if (rs.next()) return rs.getInt("balance");
             }
         } catch (SQLException e) {
+            DB_ERRORS.inc();
             e.printStackTrace();
+        } finally {
+            GET_BALANCE_TIME.recordSince(start);
         }
         return 0;
     }
 
     public void changeBalance(long chatId, int amount, String type, String payload) {
+        long start = System.nanoTime();
         try (Connection conn = db.getConnection()) {
             conn.setAutoCommit(false);
-            int userId = getUserId(chatId);
 
+            // id пользователя получаем тем же UPDATE, без отдельного SELECT
+            int userId;
             try (PreparedStatement ps1 = conn.prepareStatement(
-                    "UPDATE users SET balance = balance + ? WHERE id = ?")) {
+                    "UPDATE users SET balance = balance + ? WHERE chat_id = ? RETURNING id")) {
                 ps1.setInt(1, amount);
-                ps1.setInt(2, userId);
-                ps1.executeUpdate();
+                ps1.setLong(2, chatId);
+                try (ResultSet rs = ps1.executeQuery()) {
+                    if (!rs.next()) {
+                        throw new SQLException("User not found for chatId=" + chatId);
+                    }
+                    userId = rs.getInt(1);
+                }
             }
 
-            try (PreparedStatement ps2 = conn.prepareStatement(
-                    "INSERT INTO transactions(user_id, type, amount, payload) VALUES(?, ?, ?, ?)")) {
-                ps2.setInt(1, userId);
-                ps2.setString(2, type);
-                ps2.setInt(3, amount);
-                ps2.setString(4, payload);
-                ps2.executeUpdate();
+            insertTransaction(conn, userId, type, amount, payload);
+            conn.commit();
+        } catch (SQLException e) {
+            DB_ERRORS.inc();
+            e.printStackTrace();
+        } finally {
+            CHANGE_BALANCE_TIME.recordSince(start);
+        }
+    }
+
+    // ===== РЕЗЕРВ КРЕДИТОВ ПОД ОТВЕТ =====
+
+    /**
+     * Списывает price кредитов одним условным UPDATE (balance >= price) и пишет SPEND
+     * в той же транзакции. Два параллельных запроса не уведут баланс в минус.
+     *
+     * @return резерв или null, если кредитов не хватает
+     * @throws SQLException ошибка базы — не путать с нехваткой кредитов, ничего не списано
+     */
+    public CreditReservation reserveCredits(long chatId, int price, String payload) throws SQLException {
+        long start = System.nanoTime();
+        try (Connection conn = db.getConnection()) {
+            conn.setAutoCommit(false);
+
+            int userId;
+            int balanceAfter;
+            try (PreparedStatement ps = conn.prepareStatement(
+                    "UPDATE users SET balance = balance - ? " +
+                            "WHERE chat_id = ? AND balance >= ? RETURNING id, balance")) {
+                ps.setInt(1, price);
+                ps.setLong(2, chatId);
+                ps.setInt(3, price);
+                try (ResultSet rs = ps.executeQuery()) {
+                    if (!rs.next()) {
+                        conn.rollback();
+                        INSUFFICIENT.inc();
+                        return null;
+                    }
+                    userId = rs.getInt(1);
+                    balanceAfter = rs.getInt(2);
+                }
             }
 
+            long spendId = insertTransaction(conn, userId, "SPEND", -price, payload);
             conn.commit();
+            RESERVED.inc();
+            return new CreditReservation(chatId, userId, price, balanceAfter, payload, spendId);
         } catch (SQLException e) {
+            DB_ERRORS.inc();
+            throw e;
+        } finally {
+            RESERVE_TIME.recordSince(start);
+        }
+    }
+
+    /** Ответ доставлен — резерв остаётся списанным. */
+    public void commitCredits(CreditReservation reservation) {
+        reservation.settle();
+    }
+
+    /**
+     * То же, но с расходом токенов на этот ответ — он записывается в SPEND-запись журнала.
+     * Отрицательное значение — расход неизвестен (агент не прислал usage), колонки остаются NULL.
+     */
+    public void commitCredits(CreditReservation reservation, int promptTokens, int completionTokens) {
+        if (!reservation.settle()) return;
+        if (promptTokens < 0 && completionTokens < 0) return;
+
+        long start = System.nanoTime();
+        try (Connection conn = db.getConnection();
+             PreparedStatement ps = conn.prepareStatement(
+                     "UPDATE transactions SET prompt_tokens = ?, completion_tokens = ? WHERE id = ?")) {
+            setTokens(ps, 1, promptTokens);
+            setTokens(ps, 2, completionTokens);
+            ps.setLong(3, reservation.getSpendId());
+            ps.executeUpdate();
+        } catch (SQLException e) {
+            DB_ERRORS.inc();
             e.printStackTrace();
+        } finally {
+            USAGE_TIME.recordSince(start);
+        }
+    }
+
+    private static void setTokens(PreparedStatement ps, int index, int tokens) throws SQLException {
+        if (tokens >= 0) {
+            ps.setInt(index, tokens);
+        } else {
+            ps.setNull(index, Types.INTEGER);
+        }
+    }
+
+    /** Возвращает зарезервированные кредиты (один раз, повторные вызовы игнорируются). */
+    public void refundCredits(CreditReservation reservation, String reason) {
+        if (!reservation.settle()) return;
+
+        long start = System.nanoTime();
+        try (Connection conn = db.getConnection()) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement ps = conn.prepareStatement(
+                    "UPDATE users SET balance = balance + ? WHERE id = ?")) {
+                ps.setInt(1, reservation.getAmount());
+                ps.setInt(2, reservation.getUserId());
+                ps.executeUpdate();
+            }
+            insertTransaction(conn, reservation.getUserId(), "REFUND", reservation.getAmount(), reason);
+            conn.commit();
+            REFUNDS.inc();
+        } catch (SQLException e) {
+            DB_ERRORS.inc();
+            e.printStackTrace();
+        } finally {
+            REFUND_TIME.recordSince(start);
+        }
+    }
+
+    /** @return id новой записи */
+    private long insertTransaction(Connection conn, int userId, String type,
+                                   int amount, String payload) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement(
+                "INSERT INTO transactions(user_id, type, amount, payload) VALUES(?, ?, ?, ?) RETURNING id")) {
+            ps.setInt(1, userId);
+            ps.setString(2, type);
+            ps.setInt(3, amount);
+            ps.setString(4, payload);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? rs.getLong(1) : -1;
+            }
         }
     }
 
@@ -136,6 +339,63 @@ public class UserService {
         return null;
     }
 
+    /**
+     * Начисляет ежедневный бонус всем, кто ещё не получил его сегодня, одной транзакцией:
+     * INSERT ... SELECT пишет строки DAILY_BONUS, UPDATE ... RETURNING обновляет баланс
+     * и дату и отдаёт chat_id для уведомлений.
+     *
+     * @param beforeCommit — вызывается в той же транзакции со списком получивших бонус
+     *                     (если он не пуст), например чтобы записать рассылку-уведомление
+     * @return chat_id пользователей, которым начислен бонус
+     * @throws SQLException транзакция откатилась — никому ничего не начислено
+     */
+    public List<Long> grantDailyBonus(int amount, LocalDate today, InTransaction beforeCommit) throws SQLException {
+        long start = System.nanoTime();
+        List<Long> granted = new ArrayList<>();
+        String day = today.toString();
+
+        try (Connection conn = db.getConnection()) {
+            conn.setAutoCommit(false);
+
+            // last_bonus_date хранится как ISO-дата, строки сравниваются как даты
+            try (PreparedStatement ledger = conn.prepareStatement(
+                    "INSERT INTO transactions(user_id, type, amount, payload) " +
+                            "SELECT id, 'DAILY_BONUS', ?, 'daily_bonus' FROM users " +
+                            "WHERE last_bonus_date IS NULL OR last_bonus_date < ?")) {
+                ledger.setInt(1, amount);
+                ledger.setString(2, day);
+                ledger.executeUpdate();
+            }
+
+            try (PreparedStatement accrue = conn.prepareStatement(
+                    "UPDATE users SET balance = balance + ?, last_bonus_date = ? " +
+                            "WHERE last_bonus_date IS NULL OR last_bonus_date < ? " +
+                            "RETURNING chat_id")) {
+                accrue.setInt(1, amount);
+                accrue.setString(2, day);
+                accrue.setString(3, day);
+                try (ResultSet rs = accrue.executeQuery()) {
+                    while (rs.next()) granted.add(rs.getLong(1));
+                }
+            }
+
+            if (!granted.isEmpty()) beforeCommit.accept(conn, granted);
+            conn.commit();
+        } catch (SQLException e) {
+            DB_ERRORS.inc();
+            throw e;
+        } finally {
+            DAILY_BONUS_TIME.recordSince(start);
+        }
+        return granted;
+    }
+
+    /** Дополнительная запись в транзакции {@link #grantDailyBonus}. */
+    @FunctionalInterface
+    public interface InTransaction {
+        void accept(Connection conn, List<Long> chatIds) throws SQLException;
+    }
+
     public List<Long> getAllChatIds() {
         List<Long> list = new ArrayList<>();
         try (Connection conn = db.getConnection();
@@ -1,38 +1,49 @@
 package com.example.nanoavatar.user;
 
-import java.util.HashSet;
-import java.util.Set;
+import com.example.nanoavatar.filters.OptionMask;
 
 /**
  * Хранение состояния диалога в памяти.
  *
  * currentNodeId       — где находимся в меню настроек
- * activeOptionIds     — множество включённых опций (галочки)
+ * options             — включённые опции (галочки) битовой маской по индексам FilterRegistry
  * state               — вспомогательное состояние (пока нужно только для пополнения)
  * pendingTopupAmount  — сумма пополнения, которую пользователь ввёл
+ *
+ * Любой сеттер помечает сессию "грязной" — {@link SessionStore} сохранит её в SQLite.
  */
 public class UserSession {
     private String currentNodeId;
     private SessionState state = SessionState.BROWSING;
     private Integer pendingTopupAmount;
 
-    // мультивыбор опций
-    private final Set<String> activeOptionIds = new HashSet<>();
+    // мультивыбор опций; маска неизменяемая, правка = замена ссылки
+    private volatile OptionMask options = OptionMask.EMPTY;
+
+    private volatile boolean dirty;
+    private volatile long lastAccessMs = System.currentTimeMillis();
 
     public UserSession(String currentNodeId) {
         this.currentNodeId = currentNodeId;
     }
 
     public String getCurrentNodeId() { return currentNodeId; }
-    public void setCurrentNodeId(String currentNodeId) { this.currentNodeId = currentNodeId; }
+    public void setCurrentNodeId(String currentNodeId) { this.currentNodeId = currentNodeId; dirty = true; }
 
     public SessionState getState() { return state; }
-    public void setState(SessionState state) { this.state = state; }
+    public void setState(SessionState state) { this.state = state; dirty = true; }
 
     public Integer getPendingTopupAmount() { return pendingTopupAmount; }
-    public void setPendingTopupAmount(Integer pendingTopupAmount) { this.pendingTopupAmount = pendingTopupAmount; }
+    public void setPendingTopupAmount(Integer pendingTopupAmount) { this.pendingTopupAmount = pendingTopupAmount; dirty = true; }
 
-    public Set<String> getActiveOptionIds() {
-        return activeOptionIds;
-    }
-}
\ No newline at end of file
+    public OptionMask getOptions() { return options; }
+    public void setOptions(OptionMask options) { this.options = options; dirty = true; }
+
+    boolean isDirty() { return dirty; }
+    // снимать флаг нужно до чтения полей: правка после этого снова пометит сессию
+    void clearDirty() { dirty = false; }
+    void markDirty() { dirty = true; }
+
+    long getLastAccessMs() { return lastAccessMs; }
+    void touch() { lastAccessMs = System.currentTimeMillis(); }
+}
@@ -0,0 +1,53 @@
+-- Схема до появления миграций. IF NOT EXISTS: на существующей базе ничего не меняет.
+
+CREATE TABLE IF NOT EXISTS users (
+    id INTEGER PRIMARY KEY AUTOINCREMENT,
+    chat_id INTEGER UNIQUE NOT NULL,
+    username TEXT,
+    balance INTEGER NOT NULL DEFAULT 15,
+    last_bonus_date TEXT
+);
+
+CREATE TABLE IF NOT EXISTS transactions (
+    id INTEGER PRIMARY KEY AUTOINCREMENT,
+    user_id INTEGER NOT NULL,
+    type TEXT NOT NULL,
+    amount INTEGER NOT NULL,
+    payload TEXT,
+    created_at TEXT DEFAULT CURRENT_TIMESTAMP,
+    FOREIGN KEY(user_id) REFERENCES users(id)
+);
+
+CREATE TABLE IF NOT EXISTS broadcasts (
+    id INTEGER PRIMARY KEY AUTOINCREMENT,
+    kind TEXT NOT NULL,
+    text TEXT NOT NULL,
+    status TEXT NOT NULL DEFAULT 'RUNNING',
+    started_at_ms INTEGER NOT NULL,
+    window_ms INTEGER NOT NULL DEFAULT 0,
+    finished_at_ms INTEGER
+);
+
+CREATE TABLE IF NOT EXISTS broadcast_recipients (
+    broadcast_id INTEGER NOT NULL,
+    chat_id INTEGER NOT NULL,
+    status TEXT NOT NULL DEFAULT 'PENDING',
+    PRIMARY KEY(broadcast_id, chat_id),
+    FOREIGN KEY(broadcast_id) REFERENCES broadcasts(id)
+);
+
+CREATE TABLE IF NOT EXISTS sessions (
+    chat_id INTEGER PRIMARY KEY,
+    current_node_id TEXT,
+    options TEXT NOT NULL DEFAULT '',
+    state TEXT NOT NULL DEFAULT 'BROWSING',
+    pending_topup_amount INTEGER,
+    updated_at_ms INTEGER NOT NULL
+);
+
+CREATE TABLE IF NOT EXISTS conversations (
+    chat_id INTEGER PRIMARY KEY,
+    summary TEXT NOT NULL DEFAULT '',
+    turns TEXT NOT NULL DEFAULT '[]',
+    updated_at_ms INTEGER NOT NULL
+);
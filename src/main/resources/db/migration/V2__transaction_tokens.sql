@@ -0,0 +1,5 @@
+-- Расход токенов у SPEND-записи.
+-- В базах, где колонки уже добавлены при старте прежней версии, ALTER пропускается.
+
+ALTER TABLE transactions ADD COLUMN prompt_tokens INTEGER;
+ALTER TABLE transactions ADD COLUMN completion_tokens INTEGER;
@@ -0,0 +1,9 @@
+-- История операций пользователя по времени: WHERE user_id = ? ORDER BY created_at.
+CREATE INDEX IF NOT EXISTS idx_transactions_user_created ON transactions(user_id, created_at);
+
+-- Выборки и отчёты за период: WHERE created_at >= ?.
+CREATE INDEX IF NOT EXISTS idx_transactions_created ON transactions(created_at);
+
+-- Ежедневный бонус: WHERE last_bonus_date IS NULL OR last_bonus_date < ?.
+-- id — rowid и лежит в индексе, так что выборка id для записей в журнал таблицу не читает.
+CREATE INDEX IF NOT EXISTS idx_users_last_bonus_date ON users(last_bonus_date);